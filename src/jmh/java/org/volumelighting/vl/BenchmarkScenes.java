@@ -0,0 +1,118 @@
+package org.volumelighting.vl;
+
+import java.util.EnumSet;
+import java.util.Random;
+
+import com.jme3.light.SpotLight;
+import com.jme3.math.ColorRGBA;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Caps;
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.queue.RenderQueue;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.shape.Box;
+import com.jme3.system.NullRenderer;
+
+/**
+ * Deterministic scenes and lights shared by the benchmarks. Nothing in here
+ * needs a renderer, so the benchmarks run headless.
+ */
+final class BenchmarkScenes {
+
+    static final float SCENE_SIZE = 200f;
+    private static final int GROUP_SIZE = 16;
+
+    private BenchmarkScenes() {
+    }
+
+    /**
+     * Builds a scene of randomly placed shadow casting boxes, grouped under
+     * intermediate nodes the way a level usually is.
+     *
+     * @param geometryCount
+     * @param seed
+     * @return the updated root node
+     */
+    static Node createScene(int geometryCount, long seed) {
+        return createScene(geometryCount, seed, false);
+    }
+
+    /**
+     * The scene of {@link #createScene(int, long)} with every box directly
+     * under the root, like scenes built without grouping.
+     *
+     * @param geometryCount
+     * @param seed
+     * @return the updated root node
+     */
+    static Node createFlatScene(int geometryCount, long seed) {
+        return createScene(geometryCount, seed, true);
+    }
+
+    private static Node createScene(int geometryCount, long seed, boolean flat) {
+        Random random = new Random(seed);
+        Mesh box = new Box(0.5f, 0.5f, 0.5f);
+
+        Node root = new Node("BenchmarkScene");
+        Node group = null;
+        for (int i = 0; i < geometryCount; i++) {
+            if (i % GROUP_SIZE == 0) {
+                group = new Node("Group" + i / GROUP_SIZE);
+                group.setLocalTranslation(randomPosition(random));
+                if (!flat) {
+                    root.attachChild(group);
+                }
+            }
+            Geometry g = new Geometry("Box" + i, box);
+            g.setLocalTranslation(random.nextFloat() * 8f - 4f, random.nextFloat() * 8f - 4f, random.nextFloat() * 8f - 4f);
+            if (flat) {
+                g.move(group.getLocalTranslation());
+                root.attachChild(g);
+            } else {
+                group.attachChild(g);
+            }
+        }
+        root.setShadowMode(RenderQueue.ShadowMode.CastAndReceive);
+        root.updateGeometricState();
+        return root;
+    }
+
+    /**
+     * @param random
+     * @return a spot light somewhere in the scene, pointing at its center
+     */
+    static SpotLight createSpotLight(Random random) {
+        SpotLight spot = new SpotLight();
+        spot.setSpotRange(SCENE_SIZE / 2f);
+        spot.setSpotInnerAngle(5f * FastMath.DEG_TO_RAD);
+        spot.setSpotOuterAngle((10f + random.nextFloat() * 20f) * FastMath.DEG_TO_RAD);
+        spot.setColor(ColorRGBA.White);
+        spot.setPosition(randomPosition(random));
+        spot.setDirection(spot.getPosition().negate().normalizeLocal());
+        return spot;
+    }
+
+    /**
+     * @return a render manager that goes through materials, techniques and
+     * shaders like a real one but never calls into OpenGL
+     */
+    static RenderManager createHeadlessRenderManager() {
+        NullRenderer renderer = new NullRenderer() {
+            private final EnumSet<Caps> caps = EnumSet.of(Caps.GLSL100, Caps.GLSL110, Caps.GLSL120, Caps.GLSL130, Caps.GLSL140, Caps.GLSL150);
+
+            @Override
+            public EnumSet<Caps> getCaps() {
+                return caps;
+            }
+        };
+        return new RenderManager(renderer);
+    }
+
+    static Vector3f randomPosition(Random random) {
+        float half = SCENE_SIZE / 2f;
+        return new Vector3f(random.nextFloat() * SCENE_SIZE - half, random.nextFloat() * SCENE_SIZE - half, random.nextFloat() * SCENE_SIZE - half);
+    }
+}
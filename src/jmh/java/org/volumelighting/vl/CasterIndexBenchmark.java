@@ -0,0 +1,122 @@
+package org.volumelighting.vl;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jme3.light.SpotLight;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.queue.GeometryList;
+import com.jme3.renderer.queue.OpaqueComparator;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+
+/**
+ * The shadow casters of all lights of a frame: every light walking the scene
+ * graph (walk), against one ShadowCasterIndex updated for the frame and
+ * queried by every light (index). The grouped scene is already split by place, the flat one has
+ * every box under the root. The caster counts of both ways are compared
+ * after every iteration, the index may only leave out casters the walk
+ * keeps through the coarser sphere of a group.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CasterIndexBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int nodeCount;
+
+    @Param({"grouped", "flat"})
+    public String layout;
+
+    @Param({"1", "8", "32"})
+    public int lights;
+
+    private Node scene;
+    private List<Spatial> scenes;
+    private Camera[] lightCams;
+    private OccluderCuller culler;
+    private ShadowCasterIndex index;
+    private GeometryList casters;
+    private int walkCount;
+    private int indexCount;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        scene = "flat".equals(layout) ? BenchmarkScenes.createFlatScene(nodeCount, 42)
+                : BenchmarkScenes.createScene(nodeCount, 42);
+        scenes = Collections.<Spatial>singletonList(scene);
+
+        lightCams = new Camera[lights];
+        for (int i = 0; i < lights; i++) {
+            SpotLight spot = BenchmarkScenes.createSpotLight(random);
+            Camera lightCam = new Camera(128, 128);
+            lightCam.setFrustumPerspective(spot.getSpotOuterAngle() * FastMath.RAD_TO_DEG * 2.0f, 1, 1f, spot.getSpotRange());
+            lightCam.lookAtDirection(spot.getDirection(), Vector3f.UNIT_Y);
+            lightCam.setLocation(spot.getPosition());
+            lightCam.update();
+            lightCams[i] = lightCam;
+        }
+        culler = new OccluderCuller();
+        index = new ShadowCasterIndex();
+        index.update(scenes);
+        casters = new GeometryList(new OpaqueComparator());
+    }
+
+    @Benchmark
+    public int walk() {
+        walkCount = 0;
+        for (Camera lightCam : lightCams) {
+            casters.clear();
+            culler.setLightCamera(lightCam);
+            culler.cull(scene, casters);
+            walkCount += casters.size();
+        }
+        return walkCount;
+    }
+
+    @Benchmark
+    public int index() {
+        index.update(scenes);
+        indexCount = 0;
+        for (Camera lightCam : lightCams) {
+            casters.clear();
+            culler.setLightCamera(lightCam);
+            culler.cull(index, casters);
+            indexCount += casters.size();
+        }
+        return indexCount;
+    }
+
+    @TearDown(Level.Iteration)
+    public void checkCasters() {
+        walk();
+        index();
+        // a group sphere keeps a little more than the index boxes
+        if (indexCount > walkCount || indexCount < walkCount * 0.99f) {
+            throw new IllegalStateException("The index found " + indexCount + " casters, the walk " + walkCount);
+        }
+    }
+}
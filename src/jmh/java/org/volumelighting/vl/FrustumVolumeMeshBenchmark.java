@@ -0,0 +1,55 @@
+package org.volumelighting.vl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jme3.math.FastMath;
+import com.jme3.renderer.Camera;
+
+/**
+ * Construction cost of a FrustumVolumeMesh. Run with -prof gc to see the
+ * allocated bytes per mesh; collisionData=true adds the BIH tree the mesh used
+ * to build unconditionally.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FrustumVolumeMeshBenchmark {
+
+    @Param({"64", "128", "256", "512", "1024", "2048"})
+    public int resolution;
+
+    @Param({"false", "true"})
+    public boolean collisionData;
+
+    private Camera lightCam;
+
+    @Setup
+    public void setUp() {
+        lightCam = new Camera(resolution, resolution);
+        lightCam.setFrustumPerspective(0.4f * FastMath.RAD_TO_DEG * 2.0f, 1, 0.46f, 6);
+    }
+
+    @Benchmark
+    public FrustumVolumeMesh generateMesh() {
+        FrustumVolumeMesh mesh = new FrustumVolumeMesh(resolution, lightCam);
+        if (collisionData) {
+            mesh.createCollisionData();
+        }
+        return mesh;
+    }
+}
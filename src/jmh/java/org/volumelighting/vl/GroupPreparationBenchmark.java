@@ -0,0 +1,131 @@
+package org.volumelighting.vl;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.asset.DesktopAssetManager;
+import com.jme3.light.SpotLight;
+import com.jme3.material.Material;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.ViewPort;
+import com.jme3.scene.Node;
+
+/**
+ * The preFrame and postQueue of a VolumeLightGroupFilter with many moving
+ * spot lights, on the render thread (threads=0) and on fork/join pools of
+ * growing size, against a renderer that does nothing. The time per frame
+ * should drop close to linearly with the threads, up to the cores of the
+ * machine. The culled count of the last frame of every iteration is
+ * checked against the render thread run of the same frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroupPreparationBenchmark {
+
+    private static final int FRAMES = 64;
+
+    @Param({"10000"})
+    public int nodeCount;
+
+    @Param({"16", "64"})
+    public int lights;
+
+    @Param({"0", "1", "2", "4", "8"})
+    public int threads;
+
+    private VolumeLightGroupFilter filter;
+    private ViewPort viewPort;
+    private SpotLight[] spots;
+    private ForkJoinPool pool;
+    private int frame = 0;
+    private int[] expectedCulled;
+    private int culled;
+
+    @Setup
+    public void setUp() {
+        AssetManager assetManager = new DesktopAssetManager(true);
+        RenderManager renderManager = BenchmarkScenes.createHeadlessRenderManager();
+        Random random = new Random(42);
+
+        Node scene = BenchmarkScenes.createScene(nodeCount, 42);
+        scene.setMaterial(new Material(assetManager, "Common/MatDefs/Misc/Unshaded.j3md"));
+        scene.updateGeometricState();
+
+        Camera viewCam = new Camera(1280, 720);
+        viewCam.setFrustumPerspective(45f, 1280f / 720f, 1f, 1000f);
+        viewCam.setLocation(new Vector3f(0, 0, BenchmarkScenes.SCENE_SIZE));
+        viewCam.lookAt(Vector3f.ZERO, Vector3f.UNIT_Y);
+        viewPort = new ViewPort("Benchmark", viewCam);
+        viewPort.attachScene(scene);
+
+        filter = new VolumeLightGroupFilter();
+        spots = new SpotLight[lights];
+        for (int i = 0; i < lights; i++) {
+            spots[i] = BenchmarkScenes.createSpotLight(random);
+            filter.addLight(spots[i], 128, 1f);
+        }
+        filter.initFilter(assetManager, renderManager, viewPort, 1280, 720);
+
+        // the reference frames, on the render thread
+        expectedCulled = new int[FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            expectedCulled[i] = frame();
+        }
+        if (threads > 0) {
+            pool = new ForkJoinPool(threads);
+            filter.setPreparationPool(pool);
+        }
+    }
+
+    @Benchmark
+    public int frame() {
+        // moving lights, like the drones in GeneralTest
+        float time = frame % FRAMES * 0.05f;
+        for (int i = 0; i < lights; i++) {
+            spots[i].setDirection(new Vector3f(FastMath.sin(time + i), -1f, FastMath.cos(time + i)).normalizeLocal());
+        }
+        filter.preFrame(0.016f);
+        filter.postQueue(viewPort.getQueue());
+        culled = filter.getCulledLightCount();
+        frame++;
+        return culled;
+    }
+
+    @TearDown(Level.Iteration)
+    public void checkCulled() {
+        int expected = expectedCulled[(frame - 1) % FRAMES];
+        if (culled != expected) {
+            throw new IllegalStateException("Culled " + culled + " lights instead of " + expected);
+        }
+    }
+
+    @TearDown
+    public void shutDown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+}
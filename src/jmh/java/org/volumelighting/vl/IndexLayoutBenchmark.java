@@ -0,0 +1,97 @@
+package org.volumelighting.vl;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jme3.scene.mesh.IndexBuffer;
+
+/**
+ * Index layouts of the volume mesh: the far plane grid in plain rows, as it
+ * used to be written, against the bands of FrustumVolumeMesh.FAR_PLANE_BAND.
+ * Measures the time to write the indices, and prints the index buffer size
+ * and the average cache miss ratio (vertices shaded per triangle) of a FIFO
+ * post transform cache of 16 and 32 entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexLayoutBenchmark {
+
+    @Param({"64", "128", "256", "512"})
+    public int resolution;
+
+    @Param({"rows", "banded"})
+    public String layout;
+
+    private int band;
+    private IndexBuffer indices;
+
+    @Setup
+    public void setUp() {
+        band = "rows".equals(layout) ? resolution : FrustumVolumeMesh.FAR_PLANE_BAND;
+        indices = IndexBuffer.createIndexBuffer(FrustumVolumeMesh.vertexCount(resolution),
+                FrustumVolumeMesh.indexCount(resolution));
+    }
+
+    @Benchmark
+    public IndexBuffer writeIndices() {
+        indices.getBuffer().clear();
+        FrustumVolumeMesh.writeIndices(indices, resolution, band);
+        return indices;
+    }
+
+    @TearDown
+    public void report() {
+        indices.getBuffer().clear();
+        FrustumVolumeMesh.writeIndices(indices, resolution, band);
+        int bytes = indices.size() * indices.getFormat().getComponentSize();
+        System.out.printf("%n%s %d: %d indices, %s, %.1f KB, ACMR fifo16 %.3f, fifo32 %.3f%n",
+                layout, resolution, indices.size(), indices.getFormat(), bytes / 1024f,
+                averageCacheMissRatio(indices, 16), averageCacheMissRatio(indices, 32));
+    }
+
+    /**
+     * @param indices a triangle list
+     * @param cacheSize
+     * @return the vertices shaded per triangle with a FIFO cache of the given
+     * size
+     */
+    static float averageCacheMissRatio(IndexBuffer indices, int cacheSize) {
+        int[] cache = new int[cacheSize];
+        Arrays.fill(cache, -1);
+        int next = 0;
+        int misses = 0;
+        for (int i = 0; i < indices.size(); i++) {
+            int index = indices.get(i);
+            boolean hit = false;
+            for (int cached : cache) {
+                if (cached == index) {
+                    hit = true;
+                    break;
+                }
+            }
+            if (!hit) {
+                cache[next] = index;
+                next = (next + 1) % cacheSize;
+                misses++;
+            }
+        }
+        return misses / (indices.size() / 3f);
+    }
+}
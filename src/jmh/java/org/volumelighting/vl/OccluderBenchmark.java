@@ -0,0 +1,105 @@
+package org.volumelighting.vl;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.asset.DesktopAssetManager;
+import com.jme3.light.SpotLight;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.ViewPort;
+import com.jme3.renderer.queue.GeometryList;
+import com.jme3.renderer.queue.OpaqueComparator;
+import com.jme3.renderer.queue.RenderQueue;
+import com.jme3.scene.Node;
+import com.jme3.shadow.ShadowUtil;
+
+/**
+ * Per frame shadow caster gathering, the part of
+ * VolumeLightRenderer.postQueue that runs before anything is drawn.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OccluderBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int nodeCount;
+
+    @Param({"1", "8", "32"})
+    public int lights;
+
+    private Node scene;
+    private Camera[] lightCams;
+    private VolumeLightRenderer[] renderers;
+    private GeometryList occluders;
+
+    @Setup
+    public void setUp() {
+        AssetManager assetManager = new DesktopAssetManager(true);
+        Random random = new Random(42);
+        scene = BenchmarkScenes.createScene(nodeCount, 42);
+
+        Camera viewCam = new Camera(1280, 720);
+        viewCam.setFrustumPerspective(45f, 1280f / 720f, 1f, 1000f);
+        viewCam.lookAt(Vector3f.ZERO, Vector3f.UNIT_Y);
+        ViewPort viewPort = new ViewPort("Benchmark", viewCam);
+        viewPort.attachScene(scene);
+
+        lightCams = new Camera[lights];
+        renderers = new VolumeLightRenderer[lights];
+        for (int i = 0; i < lights; i++) {
+            SpotLight spot = BenchmarkScenes.createSpotLight(random);
+            Camera lightCam = new Camera(128, 128);
+            lightCam.setFrustumPerspective(spot.getSpotOuterAngle() * FastMath.RAD_TO_DEG * 2.0f, 1, 1f, spot.getSpotRange());
+            lightCam.lookAtDirection(spot.getDirection(), Vector3f.UNIT_Y);
+            lightCam.setLocation(spot.getPosition());
+            lightCam.update();
+            lightCams[i] = lightCam;
+
+            // the shadow pass is never rendered here, so no RenderManager
+            renderers[i] = new VolumeLightRenderer(assetManager, 128);
+            renderers[i].setShadowCam(lightCam);
+            renderers[i].initialize(null, viewPort);
+        }
+        occluders = new GeometryList(new OpaqueComparator());
+    }
+
+    @Benchmark
+    public int getOccludersToRender() {
+        int count = 0;
+        for (VolumeLightRenderer renderer : renderers) {
+            occluders.clear();
+            count += renderer.getOccludersToRender(0, occluders).size();
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int getGeometriesInCamFrustum() {
+        int count = 0;
+        for (Camera lightCam : lightCams) {
+            occluders.clear();
+            ShadowUtil.getGeometriesInCamFrustum(scene, lightCam, RenderQueue.ShadowMode.Cast, occluders);
+            count += occluders.size();
+        }
+        return count;
+    }
+}
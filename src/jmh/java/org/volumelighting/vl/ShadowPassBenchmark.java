@@ -0,0 +1,122 @@
+package org.volumelighting.vl;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.asset.DesktopAssetManager;
+import com.jme3.material.Material;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.ViewPort;
+import com.jme3.scene.Node;
+
+/**
+ * A whole simulated frame of the shadow side of the volume lights: sync,
+ * culling, caster gathering and the shadow pass, against a renderer that
+ * does nothing. Run with -prof gc: gc.alloc.rate.norm must stay at about 80
+ * B/op per light, which is what jME's RenderManager.setCamera allocates, our
+ * own code allocates nothing per frame. The occluder count is checked after
+ * every iteration, it must not change between frames of a static scene. With
+ * shadowMapCaching the scene never moves, so only the caster gathering and
+ * the dirty check are left after the first frame. With maxShadowMaps the
+ * scheduler refreshes that many maps per frame, the others keep their map.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShadowPassBenchmark {
+
+    @Param({"1000", "10000"})
+    public int nodeCount;
+
+    @Param({"1", "8"})
+    public int lights;
+
+    @Param({"false", "true"})
+    public boolean shadowMapCaching;
+
+    @Param({"0", "2"})
+    public int maxShadowMaps;
+
+    private Camera viewCam;
+    private ViewPort viewPort;
+    private VolumeLight[] volumes;
+    private int expectedOccluders = -1;
+    private int occluders;
+    private int updatedShadowMaps;
+
+    @Setup
+    public void setUp() {
+        AssetManager assetManager = new DesktopAssetManager(true);
+        RenderManager renderManager = BenchmarkScenes.createHeadlessRenderManager();
+        Random random = new Random(42);
+
+        Node scene = BenchmarkScenes.createScene(nodeCount, 42);
+        scene.setMaterial(new Material(assetManager, "Common/MatDefs/Misc/Unshaded.j3md"));
+        scene.updateGeometricState();
+
+        viewCam = new Camera(1280, 720);
+        viewCam.setFrustumPerspective(45f, 1280f / 720f, 1f, 1000f);
+        viewCam.setLocation(new Vector3f(0, 0, BenchmarkScenes.SCENE_SIZE));
+        viewCam.lookAt(Vector3f.ZERO, Vector3f.UNIT_Y);
+        viewPort = new ViewPort("Benchmark", viewCam);
+        viewPort.attachScene(scene);
+
+        ShadowMapScheduler scheduler = maxShadowMaps > 0 ? new ShadowMapScheduler(maxShadowMaps) : null;
+        volumes = new VolumeLight[lights];
+        for (int i = 0; i < lights; i++) {
+            volumes[i] = new VolumeLight(BenchmarkScenes.createSpotLight(random), 128, 1f);
+            volumes[i].setShadowMapCaching(shadowMapCaching);
+            volumes[i].setScheduler(scheduler);
+            volumes[i].initialize(assetManager, renderManager, viewPort);
+        }
+    }
+
+    @Benchmark
+    public int frame() {
+        occluders = 0;
+        updatedShadowMaps = 0;
+        for (VolumeLight volume : volumes) {
+            volume.preFrame(viewCam);
+            if (!volume.isCulled()) {
+                volume.postQueue(viewPort.getQueue());
+                occluders += volume.getOccluderCount();
+                if (volume.isShadowMapUpdated()) {
+                    updatedShadowMaps++;
+                }
+            }
+        }
+        return occluders;
+    }
+
+    @TearDown(Level.Iteration)
+    public void checkOccluders() {
+        if (expectedOccluders < 0) {
+            expectedOccluders = occluders;
+        } else if (occluders != expectedOccluders) {
+            throw new IllegalStateException("Occluder count changed from " + expectedOccluders + " to " + occluders);
+        }
+        if (shadowMapCaching && updatedShadowMaps != 0) {
+            throw new IllegalStateException(updatedShadowMaps + " cached shadow maps were rendered again in a static scene");
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.volumelighting.vl;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.jme3.light.SpotLight;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+
+/**
+ * Per frame CPU work the volume filters do on the render thread for each
+ * light, outside of the shadow pass.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VolumeLightBenchmark {
+
+    @Param({"1", "8", "32"})
+    public int lights;
+
+    private SpotLight[] spots;
+    private VolumeLight[] volumes;
+    private float time;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+
+        spots = new SpotLight[lights];
+        volumes = new VolumeLight[lights];
+        for (int i = 0; i < lights; i++) {
+            spots[i] = BenchmarkScenes.createSpotLight(random);
+            volumes[i] = new VolumeLight(spots[i], 64, 1f);
+        }
+    }
+
+    @Benchmark
+    public void syncLightCam() {
+        // moving lights, like the drones in GeneralTest
+        time += 0.016f;
+        Vector3f direction = new Vector3f(FastMath.sin(time), -1f, FastMath.cos(time)).normalizeLocal();
+        for (int i = 0; i < lights; i++) {
+            spots[i].setDirection(direction);
+            volumes[i].syncLightCam();
+        }
+    }
+
+    @Benchmark
+    public void getLinearDepthFactors(Blackhole bh) {
+        for (VolumeLight volume : volumes) {
+            bh.consume(VolumeLight.getLinearDepthFactors(volume.getLightCam()));
+        }
+    }
+}
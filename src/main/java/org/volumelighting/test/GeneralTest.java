@@ -2,7 +2,7 @@ package org.volumelighting.test;
 
 import java.util.Random;
 
-import org.volumelighting.vl.VolumeLightFilter;
+import org.volumelighting.vl.VolumeLightGroupFilter;
 
 import com.jme3.animation.LoopMode;
 import com.jme3.app.SimpleApplication;
@@ -45,6 +45,7 @@ public class GeneralTest extends SimpleApplication {
 
     private Random random = new Random(4l);
     private FilterPostProcessor fpp;
+    private VolumeLightGroupFilter volumeLights;
 
     private final float droneRange = 80f;
     private final float numOfObjects = 4;
@@ -63,6 +64,9 @@ public class GeneralTest extends SimpleApplication {
         rootNode.attachChild(randObjects);
 
         fpp = new FilterPostProcessor(assetManager);
+        // all drones share one light volume pass
+        volumeLights = new VolumeLightGroupFilter();
+        fpp.addFilter(volumeLights);
         addSpotLightDrone(new ColorRGBA(1.0f, 0.96f, 0.7f, 1.0f).mult(.8f), 20f * FastMath.DEG_TO_RAD);
         addSpotLightDrone(ColorRGBA.Cyan, 8f * FastMath.DEG_TO_RAD);
         addSpotLightDrone(new ColorRGBA(1.0f, 0.96f, 0.7f, 1.0f).mult(6f), 4f * FastMath.DEG_TO_RAD);
@@ -107,8 +111,7 @@ public class GeneralTest extends SimpleApplication {
 //        slsf.setEdgeFilteringMode(EdgeFilteringMode.PCFPOISSON);  
 //        filterPostProcessor.addFilter(slsf);
 
-        VolumeLightFilter vsf = new VolumeLightFilter(spot, 128, coneSize * 5, rootNode);
-        fpp.addFilter(vsf);
+        volumeLights.addLight(spot, 128, coneSize * 5);
     }
 
     /**
@@ -93,7 +93,7 @@ public class LampTest extends SimpleApplication {
         rootNode.addLight(spot);
 
         //
-        VolumeLightFilter vsf = new VolumeLightFilter(spot, 128, 0.46f, rootNode);
+        VolumeLightFilter vsf = new VolumeLightFilter(spot, 128, 0.46f);
         vsf.setInensity(3);
         fpp.addFilter(vsf);
         viewPort.addProcessor(fpp);
@@ -76,7 +76,7 @@ public class SunTest extends SimpleApplication {
 
         //
         fpp = new FilterPostProcessor(assetManager);
-        VolumeLightFilter vsf = new VolumeLightFilter(spot, 512, 0.9f, rootNode);
+        VolumeLightFilter vsf = new VolumeLightFilter(spot, 512, 0.9f);
         // VolumeLightFilter vsf = new VolumeLightFilter(spot, 1024, rootNode);
         vsf.setInensity(15);
         fpp.addFilter(vsf);
@@ -0,0 +1,458 @@
+package org.volumelighting.vl;
+
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.bounding.BoundingBox;
+import com.jme3.material.MatParam;
+import com.jme3.material.Material;
+import com.jme3.math.ColorRGBA;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector2f;
+import com.jme3.math.Vector3f;
+import com.jme3.post.Filter;
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.Renderer;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.texture.Image.Format;
+import com.jme3.texture.Texture;
+import com.jme3.util.BufferUtils;
+
+/**
+ * The froxel fog engine, an alternative to drawing a volume mesh per light. A
+ * camera aligned grid of frustum voxels, 160 by 90 by 64 by default with the
+ * slices spaced exponentially, is filled in two passes:
+ *
+ * Every visible light adds the light it scatters at each froxel center,
+ * looked up in its shadow map, only over the froxels around its bound. The
+ * grid is then integrated once front to back through the fog density and
+ * extinction, one slice per pass adding to the previous slice, which leaves
+ * the scattered light and the transmittance up to each slice. The composite
+ * reads them at the scene depth of each pixel.
+ *
+ * The cost follows the size of the grid and of the light bounds in it, not
+ * the screen size. The grid is kept in 2D atlases, one tile per slice, so it
+ * renders like any other filter pass with GLSL100. A slice cannot read the
+ * atlas it is written to, so the integrated slices alternate between two
+ * atlases. Only works with perspective view cameras.
+ */
+class FroxelVolume {
+
+    private int width = 160;
+    private int height = 90;
+    private int slices = 64;
+    private float distance = 100f;
+    private float density = 1f;
+    private float extinction = 0f;
+    private float heightFalloff = 0f;
+
+    private Filter filter;
+    private AssetManager assetManager;
+    private Renderer renderer;
+    private Material composite;
+
+    private int tilesX;
+    private int tilesY;
+    private Filter.Pass injectPass;
+    // the even slices are integrated into the first, the odd ones into the second
+    private final Filter.Pass[] integratePasses = new Filter.Pass[2];
+    private Camera atlasCam;
+    private Material injectMat;
+    // the material of a slice reads the previous slice from the other atlas
+    private final Material[] integrateMats = new Material[2];
+    private Geometry slabs;
+    private FloatBuffer slabPositions;
+    // a quad over the tile of each slice
+    private Geometry[] sliceQuads;
+
+    private final Vector3f corner = new Vector3f();
+    private final Vector3f spanX = new Vector3f();
+    private final Vector3f spanY = new Vector3f();
+    private final Vector3f right = new Vector3f();
+    private final Vector3f up = new Vector3f();
+    private final Vector3f boundCorner = new Vector3f();
+    private final Vector3f viewCorner = new Vector3f();
+    private final Vector2f nearFar = new Vector2f();
+    private final Vector2f depthFactors = new Vector2f();
+    private Camera viewCam;
+    private float near;
+    private float far;
+
+    // names of the VolumetricLight parameters the injection needs
+    private static final String[] LIGHT_PARAMETERS = {"LightViewProjectionMatrix", "ShadowDepthMap",
+        "LinearDepthFactorsLight", "LightPos", "LightColor", "LightIntensity", "Directional", "CubeFace"};
+
+    /**
+     * Allocates the atlases and sets the composite parameters. A previous
+     * allocation is released first.
+     *
+     * @param filter the filter owning the grid
+     * @param manager
+     * @param renderer
+     * @param composite the filter material
+     */
+    void init(Filter filter, AssetManager manager, Renderer renderer, Material composite) {
+        this.filter = filter;
+        this.assetManager = manager;
+        this.renderer = renderer;
+        this.composite = composite;
+
+        cleanup();
+        // a roughly square atlas, 6 by 11 tiles for 160 by 90 by 64
+        tilesX = (int) Math.ceil(Math.sqrt(slices * (double) height / width));
+        tilesY = (slices + tilesX - 1) / tilesX;
+        int atlasWidth = width * tilesX;
+        int atlasHeight = height * tilesY;
+
+        injectPass = filter.new Pass();
+        injectPass.init(renderer, atlasWidth, atlasHeight, Format.RGBA16F, Format.Depth, 1, true);
+        injectPass.getRenderedTexture().setMinFilter(Texture.MinFilter.NearestNoMipMaps);
+        injectPass.getRenderedTexture().setMagFilter(Texture.MagFilter.Nearest);
+        for (int i = 0; i < integratePasses.length; i++) {
+            integratePasses[i] = filter.new Pass();
+            integratePasses[i].init(renderer, atlasWidth, atlasHeight, Format.RGBA16F, Format.Depth, 1, true);
+        }
+        atlasCam = new Camera(atlasWidth, atlasHeight);
+
+        injectMat = new Material(manager, "MatDefs/VolumetricLighting/FroxelInject.j3md");
+        for (int i = 0; i < integrateMats.length; i++) {
+            integrateMats[i] = new Material(manager, "MatDefs/VolumetricLighting/FroxelIntegrate.j3md");
+            integrateMats[i].setTexture("FroxelInjectTex", injectPass.getRenderedTexture());
+            integrateMats[i].setTexture("FroxelPreviousTex", integratePasses[1 - i].getRenderedTexture());
+            integrateMats[i].setFloat("FogDensity", density);
+            integrateMats[i].setFloat("FogExtinction", extinction);
+            integrateMats[i].setFloat("FogHeightFalloff", heightFalloff);
+        }
+
+        slabs = new Geometry("froxel slabs", createSlabMesh());
+        slabs.setMaterial(injectMat);
+        slabs.updateGeometricState();
+        sliceQuads = new Geometry[slices];
+        for (int s = 0; s < slices; s++) {
+            sliceQuads[s] = new Geometry("froxel slice " + s, createSliceMesh(s));
+            sliceQuads[s].setMaterial(integrateMats[s % 2]);
+            sliceQuads[s].updateGeometricState();
+        }
+
+        Vector3f grid = new Vector3f(width, height, slices);
+        Vector2f tiles = new Vector2f(tilesX, tilesY);
+        for (Material mat : new Material[]{injectMat, integrateMats[0], integrateMats[1], composite}) {
+            mat.setVector3("FroxelGrid", grid);
+            mat.setVector2("FroxelTiles", tiles);
+        }
+        composite.clearParam("LightingVolumeTex");
+        composite.clearParam("VolumeResolution");
+        composite.clearParam("IntensityOnly");
+        composite.clearParam("Temporal");
+        composite.setTexture("FroxelTex", integratePasses[0].getRenderedTexture());
+        composite.setTexture("FroxelOddTex", integratePasses[1].getRenderedTexture());
+    }
+
+    // a quad per slice, rewritten for each light
+    private Mesh createSlabMesh() {
+        slabPositions = BufferUtils.createFloatBuffer(slices * 4 * 3);
+        ShortBuffer indices = BufferUtils.createShortBuffer(slices * 6);
+        for (int i = 0; i < slices; i++) {
+            int v = i * 4;
+            indices.put((short) v).put((short) (v + 1)).put((short) (v + 2));
+            indices.put((short) v).put((short) (v + 2)).put((short) (v + 3));
+        }
+        indices.flip();
+
+        Mesh mesh = new Mesh();
+        mesh.setBuffer(VertexBuffer.Type.Position, 3, slabPositions);
+        mesh.setBuffer(VertexBuffer.Type.Index, 3, indices);
+        mesh.getBuffer(VertexBuffer.Type.Position).setUsage(VertexBuffer.Usage.Stream);
+        mesh.updateBound();
+        return mesh;
+    }
+
+    // a quad over the atlas tile of a slice
+    private Mesh createSliceMesh(int slice) {
+        float left = (float) (slice % tilesX) / tilesX;
+        float right = (float) (slice % tilesX + 1) / tilesX;
+        float bottom = (float) (slice / tilesX) / tilesY;
+        float top = (float) (slice / tilesX + 1) / tilesY;
+
+        Mesh mesh = new Mesh();
+        mesh.setBuffer(VertexBuffer.Type.Position, 3, new float[]{
+            left, bottom, 0f, right, bottom, 0f, right, top, 0f, left, top, 0f});
+        mesh.setBuffer(VertexBuffer.Type.Index, 3, new short[]{0, 1, 2, 0, 2, 3});
+        mesh.updateBound();
+        return mesh;
+    }
+
+    /**
+     * Releases the atlases and clears the composite parameters, {@link #init}
+     * allocates them again.
+     */
+    void cleanup() {
+        if (injectPass != null) {
+            injectPass.cleanup(renderer);
+            injectPass = null;
+            for (int i = 0; i < integratePasses.length; i++) {
+                integratePasses[i].cleanup(renderer);
+                integratePasses[i] = null;
+            }
+            composite.clearParam("FroxelTex");
+            composite.clearParam("FroxelOddTex");
+        }
+        if (slabs != null) {
+            MeshUtil.disposeMesh(slabs.getMesh());
+            for (Geometry quad : sliceQuads) {
+                MeshUtil.disposeMesh(quad.getMesh());
+            }
+            slabs = null;
+            slabPositions = null;
+            sliceQuads = null;
+        }
+    }
+
+    /**
+     * @return true between init and cleanup
+     */
+    boolean isInitialized() {
+        return injectPass != null;
+    }
+
+    /**
+     * Follows the view camera and clears the grid, before the lights are
+     * injected.
+     *
+     * @param renderManager
+     * @param viewCam
+     */
+    void begin(RenderManager renderManager, Camera viewCam) {
+        this.viewCam = viewCam;
+        near = viewCam.getFrustumNear();
+        far = Math.max(Math.min(distance, viewCam.getFrustumFar()), near * 2f);
+
+        // the view rays through the corners at a view depth of 1
+        float tanLeft = viewCam.getFrustumLeft() / near;
+        float tanRight = viewCam.getFrustumRight() / near;
+        float tanBottom = viewCam.getFrustumBottom() / near;
+        float tanTop = viewCam.getFrustumTop() / near;
+        viewCam.getLeft(right).negateLocal();
+        viewCam.getUp(up);
+        viewCam.getDirection(corner);
+        corner.addLocal(right.x * tanLeft + up.x * tanBottom, right.y * tanLeft + up.y * tanBottom,
+                right.z * tanLeft + up.z * tanBottom);
+        spanX.set(right).multLocal(tanRight - tanLeft);
+        spanY.set(up).multLocal(tanTop - tanBottom);
+
+        nearFar.set(near, far);
+        setGridParameters(injectMat);
+        setGridParameters(integrateMats[0]);
+        setGridParameters(integrateMats[1]);
+        composite.setVector2("FroxelNearFar", nearFar);
+        composite.setVector2("LinearDepthFactorsCam", VolumeLight.getLinearDepthFactors(viewCam, depthFactors));
+
+        renderManager.setCamera(atlasCam, true);
+        renderer.setFrameBuffer(injectPass.getRenderFrameBuffer());
+        renderer.setBackgroundColor(ColorRGBA.BlackNoAlpha);
+        renderer.clearBuffers(true, false, false);
+    }
+
+    private void setGridParameters(Material mat) {
+        mat.setVector2("FroxelNearFar", nearFar);
+        mat.setVector3("FrustumCorner", corner);
+        mat.setVector3("FrustumSpanX", spanX);
+        mat.setVector3("FrustumSpanY", spanY);
+        mat.setVector3("CameraPos", viewCam.getLocation());
+    }
+
+    /**
+     * Adds a light to the grid, over the froxels its bound covers.
+     *
+     * @param renderManager
+     * @param lightMaterial the VolumetricLight material of the light, with
+     * its shadow map
+     * @param bound the world bound of the light volume
+     * @return false if the bound is outside the grid
+     */
+    boolean inject(RenderManager renderManager, Material lightMaterial, BoundingBox bound) {
+        // the froxel range of the bound, in cells and slices
+        float minU = Float.POSITIVE_INFINITY, maxU = Float.NEGATIVE_INFINITY;
+        float minV = Float.POSITIVE_INFINITY, maxV = Float.NEGATIVE_INFINITY;
+        float minZ = Float.POSITIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        boolean crossesNear = false;
+        float tanLeft = viewCam.getFrustumLeft() / near;
+        float tanRight = viewCam.getFrustumRight() / near;
+        float tanBottom = viewCam.getFrustumBottom() / near;
+        float tanTop = viewCam.getFrustumTop() / near;
+        Vector3f center = bound.getCenter();
+        for (int i = 0; i < 8; i++) {
+            boundCorner.set(center.x + ((i & 1) == 0 ? -bound.getXExtent() : bound.getXExtent()),
+                    center.y + ((i & 2) == 0 ? -bound.getYExtent() : bound.getYExtent()),
+                    center.z + ((i & 4) == 0 ? -bound.getZExtent() : bound.getZExtent()));
+            viewCam.getViewMatrix().mult(boundCorner, viewCorner);
+            float z = -viewCorner.z;
+            minZ = Math.min(minZ, z);
+            maxZ = Math.max(maxZ, z);
+            if (z < near) {
+                crossesNear = true;
+                continue;
+            }
+            float u = (viewCorner.x / z - tanLeft) / (tanRight - tanLeft);
+            float v = (viewCorner.y / z - tanBottom) / (tanTop - tanBottom);
+            minU = Math.min(minU, u);
+            maxU = Math.max(maxU, u);
+            minV = Math.min(minV, v);
+            maxV = Math.max(maxV, v);
+        }
+        if (maxZ < near || minZ > far) {
+            return false;
+        }
+        if (crossesNear) {
+            // the projection of the bound is unbounded
+            minU = minV = 0f;
+            maxU = maxV = 1f;
+        }
+        int x0 = clamp((int) FastMath.floor(minU * width), 0, width);
+        int x1 = clamp((int) FastMath.ceil(maxU * width), 0, width);
+        int y0 = clamp((int) FastMath.floor(minV * height), 0, height);
+        int y1 = clamp((int) FastMath.ceil(maxV * height), 0, height);
+        int s0 = clamp((int) FastMath.floor(sliceAt(Math.max(minZ, near))), 0, slices);
+        int s1 = clamp((int) FastMath.ceil(sliceAt(Math.min(maxZ, far))), 0, slices);
+        if (x0 >= x1 || y0 >= y1 || s0 >= s1) {
+            return false;
+        }
+
+        // the quads of the covered slices, the others collapse to nothing
+        float atlasWidth = width * tilesX;
+        float atlasHeight = height * tilesY;
+        slabPositions.clear();
+        for (int s = 0; s < slices; s++) {
+            if (s < s0 || s >= s1) {
+                for (int i = 0; i < 12; i++) {
+                    slabPositions.put(0f);
+                }
+                continue;
+            }
+            float left = ((s % tilesX) * width + x0) / atlasWidth;
+            float rightEdge = ((s % tilesX) * width + x1) / atlasWidth;
+            float bottom = ((s / tilesX) * height + y0) / atlasHeight;
+            float top = ((s / tilesX) * height + y1) / atlasHeight;
+            slabPositions.put(left).put(bottom).put(0f);
+            slabPositions.put(rightEdge).put(bottom).put(0f);
+            slabPositions.put(rightEdge).put(top).put(0f);
+            slabPositions.put(left).put(top).put(0f);
+        }
+        slabPositions.flip();
+        slabs.getMesh().getBuffer(VertexBuffer.Type.Position).updateData(slabPositions);
+
+        for (String name : LIGHT_PARAMETERS) {
+            MatParam param = lightMaterial.getParam(name);
+            if (param != null) {
+                injectMat.setParam(name, param.getVarType(), param.getValue());
+            } else {
+                injectMat.clearParam(name);
+            }
+        }
+        renderManager.renderGeometry(slabs);
+        return true;
+    }
+
+    /**
+     * Integrates the grid front to back into the atlases the composite reads,
+     * a pass per slice.
+     *
+     * @param renderManager
+     */
+    void integrate(RenderManager renderManager) {
+        for (int s = 0; s < slices; s++) {
+            renderer.setFrameBuffer(integratePasses[s % 2].getRenderFrameBuffer());
+            renderManager.renderGeometry(sliceQuads[s]);
+        }
+    }
+
+    private float sliceAt(float depth) {
+        return (float) (Math.log(depth / near) / Math.log(far / near)) * slices;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.min(Math.max(value, min), max);
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getSlices() {
+        return slices;
+    }
+
+    /**
+     * Reallocates the grid right away if it was already initialized.
+     *
+     * @param width the froxels across the view
+     * @param height the froxels up the view
+     * @param slices the depth slices, spaced exponentially
+     */
+    void setGridSize(int width, int height, int slices) {
+        if (width < 1 || height < 1 || slices < 1 || slices * 4 > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid froxel grid size " + width + "x" + height + "x" + slices);
+        }
+        this.width = width;
+        this.height = height;
+        this.slices = slices;
+        if (isInitialized()) {
+            init(filter, assetManager, renderer, composite);
+        }
+    }
+
+    float getDistance() {
+        return distance;
+    }
+
+    /**
+     * @param distance the view distance the grid covers, up to the far plane
+     */
+    void setDistance(float distance) {
+        this.distance = distance;
+    }
+
+    float getDensity() {
+        return density;
+    }
+
+    void setDensity(float density) {
+        this.density = density;
+        if (integrateMats[0] != null) {
+            integrateMats[0].setFloat("FogDensity", density);
+            integrateMats[1].setFloat("FogDensity", density);
+        }
+    }
+
+    float getExtinction() {
+        return extinction;
+    }
+
+    void setExtinction(float extinction) {
+        this.extinction = extinction;
+        if (integrateMats[0] != null) {
+            integrateMats[0].setFloat("FogExtinction", extinction);
+            integrateMats[1].setFloat("FogExtinction", extinction);
+        }
+    }
+
+    float getHeightFalloff() {
+        return heightFalloff;
+    }
+
+    void setHeightFalloff(float heightFalloff) {
+        this.heightFalloff = heightFalloff;
+        if (integrateMats[0] != null) {
+            integrateMats[0].setFloat("FogHeightFalloff", heightFalloff);
+            integrateMats[1].setFloat("FogHeightFalloff", heightFalloff);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.volumelighting.vl;
+
+import java.nio.FloatBuffer;
+
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.mesh.IndexBuffer;
+import com.jme3.util.BufferUtils;
+
+/**
+ * The grid of a {@link FrustumVolumeMesh} in frustum units, the same for every
+ * light of a resolution. x and y go across the frustum from -1 to 1, z is 0 on
+ * the near plane and 1 on the far plane. VolumetricLight.vert scales it by the
+ * frustum of the light when the Procedural parameter is set.
+ */
+public class FrustumGridMesh extends Mesh {
+
+    private int resolution;
+
+    /**
+     * Constructor.
+     *
+     * @param resolution
+     */
+    public FrustumGridMesh(int resolution) {
+        this.resolution = resolution;
+        generateMesh();
+    }
+
+    public int getResolution() {
+        return resolution;
+    }
+
+    private void generateMesh() {
+        int vertexCount = FrustumVolumeMesh.vertexCount(resolution);
+
+        FloatBuffer positions = BufferUtils.createFloatBuffer(vertexCount * 3);
+        IndexBuffer indices = IndexBuffer.createIndexBuffer(vertexCount, FrustumVolumeMesh.indexCount(resolution));
+
+        writePositions(positions);
+        FrustumVolumeMesh.writeIndices(indices, resolution);
+
+        positions.flip();
+        indices.getBuffer().flip();
+
+        setBuffer(VertexBuffer.Type.Position, 3, positions);
+        setBuffer(VertexBuffer.Type.Index, 1, indices.getFormat(), indices.getBuffer());
+
+        // the bound of the unit grid, the volume is drawn directly and never culled
+        updateBound();
+    }
+
+    // same vertex order as FrustumVolumeMesh.writePositions
+    private void writePositions(FloatBuffer positions) {
+        float step = 2f / resolution;
+        float last = 1f - step;
+
+        positions.put(0).put(0).put(0);
+
+        // near plane ring
+        for (int ii = 0; ii < resolution; ii++) {
+            positions.put(-1f).put(ii * step - 1f).put(0);
+        }
+
+        for (int ii = 1; ii < resolution - 1; ii++) {
+            float x = ii * step - 1f;
+            positions.put(x).put(-1f).put(0);
+            positions.put(x).put(last).put(0);
+        }
+
+        for (int ii = 0; ii < resolution; ii++) {
+            positions.put(last).put(ii * step - 1f).put(0);
+        }
+
+        // far plane grid
+        for (int ii = 0; ii < resolution; ii++) {
+            for (int jj = 0; jj < resolution; jj++) {
+                positions.put(ii * step - 1f).put(jj * step - 1f).put(1f);
+            }
+        }
+    }
+}
@@ -1,21 +1,28 @@
 package org.volumelighting.vl;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.FloatBuffer;
 
-import com.jme3.math.Vector3f;
 import com.jme3.renderer.Camera;
 import com.jme3.scene.Mesh;
 import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.mesh.IndexBuffer;
 import com.jme3.util.BufferUtils;
 
 public class FrustumVolumeMesh extends Mesh {
 
-    private int resolution;
-    private Camera targetCam;
+    /**
+     * Width in quads of the bands the far plane grid is written in. The two
+     * rows of vertices of a band fit in a 16 entry post transform cache, so
+     * most vertices are shaded once instead of twice.
+     */
+    static final int FAR_PLANE_BAND = 7;
 
-    private List<Vector3f> finalVertices = new ArrayList<>();
-    private List<Integer> finalFaces = new ArrayList<>();
+    private int resolution;
+    private float frustumLeft;
+    private float frustumTop;
+    private float frustumNear;
+    private float frustumFar;
+    private boolean parallel;
 
     /**
      * Constructor.
@@ -24,58 +31,127 @@ public class FrustumVolumeMesh extends Mesh {
      * @param targetCam
      */
     public FrustumVolumeMesh(int resolution, Camera targetCam) {
-        this.targetCam = targetCam;
         this.resolution = resolution;
+        setFrustum(targetCam);
         generateMesh();
     }
 
+    /**
+     * Moves the vertices to the frustum of the camera, in the buffer they
+     * already are in. The triangles only depend on the resolution, so the
+     * indices stay, and only the positions are uploaded again.
+     *
+     * @param targetCam
+     */
+    void reshape(Camera targetCam) {
+        setFrustum(targetCam);
+
+        VertexBuffer vb = getBuffer(VertexBuffer.Type.Position);
+        FloatBuffer positions = (FloatBuffer) vb.getData();
+        positions.clear();
+        writePositions(positions);
+        positions.flip();
+        vb.updateData(positions);
+
+        updateBound();
+    }
+
+    private void setFrustum(Camera targetCam) {
+        // copy the frustum, the mesh may outlive or be shared beyond the camera
+        this.frustumLeft = targetCam.getFrustumLeft();
+        this.frustumTop = targetCam.getFrustumTop();
+        this.frustumNear = targetCam.getFrustumNear();
+        this.frustumFar = targetCam.getFrustumFar();
+        this.parallel = targetCam.isParallelProjection();
+    }
+
     public float farPlaneGridDistance() {
-        return targetCam.getFrustumFar();
+        return frustumFar;
+    }
+
+    /**
+     * @param resolution
+     * @return the number of vertices of a mesh with the given resolution: the
+     * apex, the near plane ring and the far plane grid
+     */
+    static int vertexCount(int resolution) {
+        return 1 + 2 * resolution + 2 * Math.max(resolution - 2, 0) + resolution * resolution;
+    }
+
+    /**
+     * @param resolution
+     * @return the number of indices of a mesh with the given resolution: two
+     * triangles per far plane quad, three per edge segment on each side
+     */
+    static int indexCount(int resolution) {
+        return 6 * (resolution - 1) * (resolution - 1) + 36 * (resolution - 1);
     }
 
     private void generateMesh() {
+        int vertexCount = vertexCount(resolution);
+
+        // written in place, no intermediate vertex or index lists
+        FloatBuffer positions = BufferUtils.createFloatBuffer(vertexCount * 3);
+        IndexBuffer indices = IndexBuffer.createIndexBuffer(vertexCount, indexCount(resolution));
 
-        float stepX = 2f * (targetCam.getFrustumLeft() / targetCam.getFrustumNear()) / resolution;
-        float stepY = 2f * (targetCam.getFrustumTop() / targetCam.getFrustumNear()) / resolution;
+        writePositions(positions);
+        writeIndices(indices, resolution);
+
+        positions.flip();
+        indices.getBuffer().flip();
+
+        setBuffer(VertexBuffer.Type.Position, 3, positions);
+        setBuffer(VertexBuffer.Type.Index, 1, indices.getFormat(), indices.getBuffer());
+
+        updateBound();
+        // no createCollisionData(), the volume is never picked. Mesh.collideWith
+        // builds the tree on first use if anyone does.
+    }
+
+    private void writePositions(FloatBuffer positions) {
+
+        // per unit of depth, or absolute for parallel projections
+        float stepX = 2f * (parallel ? frustumLeft : frustumLeft / frustumNear) / resolution;
+        float stepY = 2f * (parallel ? frustumTop : frustumTop / frustumNear) / resolution;
 
         // stepX = stepY = step;
         // offsetX = offsetY = offset;
         float x, y;
-        float z = targetCam.getFrustumNear();
+        float z = frustumNear;
 
-        stepX *= z;
-        stepY *= z;
+        stepX *= extentAt(z);
+        stepY *= extentAt(z);
 
         float offsetX = -stepX * resolution / 2.0f;
         float offsetY = -stepY * resolution / 2.0f;
 
-        finalVertices.add(new Vector3f(0, 0, z));
+        positions.put(0).put(0).put(z);
 
         // top ring
         for (int ii = 0; ii < resolution; ii++) {
             y = (float) ii * stepY + offsetY;
-            finalVertices.add(new Vector3f(offsetX, y, z));
+            positions.put(offsetX).put(y).put(z);
         }
 
         for (int ii = 1; ii < resolution - 1; ii++) {
             x = (float) ii * stepX + offsetX;
-            finalVertices.add(new Vector3f(x, offsetY, z));
-            finalVertices.add(new Vector3f(x, -1f * offsetY - stepY, z));
+            positions.put(x).put(offsetY).put(z);
+            positions.put(x).put(-1f * offsetY - stepY).put(z);
         }
 
         x = -1f * offsetX - stepX;
         for (int ii = 0; ii < resolution; ii++) {
             y = (float) ii * stepY + offsetY;
-            finalVertices.add(new Vector3f(x, y, z));
+            positions.put(x).put(y).put(z);
         }
 
-        stepX /= z;
-        stepY /= z;
+        stepX /= extentAt(z);
+        stepY /= extentAt(z);
 
         // front grid
         z = farPlaneGridDistance();
-        stepX *= z;
-        stepY *= z;
+        stepX *= extentAt(z);
+        stepY *= extentAt(z);
         offsetX = -stepX * resolution / 2.0f;
         offsetY = -stepY * resolution / 2.0f;
 
@@ -83,113 +159,101 @@ public class FrustumVolumeMesh extends Mesh {
             for (int jj = 0; jj < resolution; jj++) {
                 x = ii * stepX + offsetX;
                 y = jj * stepY + offsetY;
-                finalVertices.add(new Vector3f(x, y, z));
+                positions.put(x).put(y).put(z);
             }
         }
+    }
 
-        // faces
-        for (int ii = 1; ii < resolution; ii++) {
-            for (int jj = 1; jj < resolution; jj++) {
+    private float extentAt(float z) {
+        return parallel ? 1f : z;
+    }
 
-                finalFaces.add(calcIndex(jj - 1, ii - 1));
-                finalFaces.add(calcIndex(jj, ii - 1));
-                finalFaces.add(calcIndex(jj - 1, ii));
+    /**
+     * Writes the triangles of a mesh with the given resolution, they only
+     * depend on the resolution and are shared with {@link FrustumGridMesh}.
+     *
+     * @param indices
+     * @param resolution
+     */
+    static void writeIndices(IndexBuffer indices, int resolution) {
+        writeIndices(indices, resolution, FAR_PLANE_BAND);
+    }
 
-                finalFaces.add(calcIndex(jj, ii));
-                finalFaces.add(calcIndex(jj - 1, ii));// swap this with the below if faces are on wrong side
-                finalFaces.add(calcIndex(jj, ii - 1));
+    /**
+     * @param indices
+     * @param resolution
+     * @param band the width in quads of the far plane bands, the resolution
+     * or more for plain rows
+     */
+    static void writeIndices(IndexBuffer indices, int resolution, int band) {
+
+        // faces, in bands so the shared vertices of the previous row are
+        // still in the vertex cache
+        for (int start = 1; start < resolution; start += band) {
+            int end = Math.min(start + band, resolution);
+            for (int ii = 1; ii < resolution; ii++) {
+                for (int jj = start; jj < end; jj++) {
+
+                    indices.put(calcIndex(resolution, jj - 1, ii - 1));
+                    indices.put(calcIndex(resolution, jj, ii - 1));
+                    indices.put(calcIndex(resolution, jj - 1, ii));
+
+                    indices.put(calcIndex(resolution, jj, ii));
+                    indices.put(calcIndex(resolution, jj - 1, ii));// swap this with the below if faces are on wrong side
+                    indices.put(calcIndex(resolution, jj, ii - 1));
+                }
             }
         }
 
         // edges
         int p1, p2, p3, p4;
         for (int ii = 1; ii < resolution; ii++) {
-            p1 = calcTopIndex(ii - 1, 0);
-            p2 = calcTopIndex(ii, 0);
-            p3 = calcIndex(ii - 1, 0);
-            p4 = calcIndex(ii, 0);
-
-            finalFaces.add(p1);
-            finalFaces.add(p2);
-            finalFaces.add(p3);
-
-            finalFaces.add(p3);
-            finalFaces.add(p2);
-            finalFaces.add(p4);
-
-            finalFaces.add(p1);
-            finalFaces.add(0);
-            finalFaces.add(p2);
-
-            p1 = calcTopIndex(ii - 1, resolution - 1);
-            p2 = calcTopIndex(ii, resolution - 1);
-            p3 = calcIndex(ii - 1, resolution - 1);
-            p4 = calcIndex(ii, resolution - 1);
-
-            finalFaces.add(p1);
-            finalFaces.add(p3);
-            finalFaces.add(p2);
-
-            finalFaces.add(p3);
-            finalFaces.add(p4);
-            finalFaces.add(p2);
-
-            finalFaces.add(p1);
-            finalFaces.add(p2);
-            finalFaces.add(0);
-
-            p1 = calcTopIndex(0, ii - 1);
-            p2 = calcTopIndex(0, ii);
-            p3 = calcIndex(0, ii - 1);
-            p4 = calcIndex(0, ii);
-
-            finalFaces.add(p1);
-            finalFaces.add(p3);
-            finalFaces.add(p2);
-
-            finalFaces.add(p3);
-            finalFaces.add(p4);
-            finalFaces.add(p2);
-
-            finalFaces.add(p1);
-            finalFaces.add(p2);
-            finalFaces.add(0);
-
-            p1 = calcTopIndex(resolution - 1, ii - 1);
-            p2 = calcTopIndex(resolution - 1, ii);
-            p3 = calcIndex(resolution - 1, ii - 1);
-            p4 = calcIndex(resolution - 1, ii);
-
-            finalFaces.add(p1);
-            finalFaces.add(p2);
-            finalFaces.add(p3);
-
-            finalFaces.add(p3);
-            finalFaces.add(p2);
-            finalFaces.add(p4);
-
-            finalFaces.add(p1);
-
-            finalFaces.add(0);
-            finalFaces.add(p2);
+            p1 = calcTopIndex(resolution, ii - 1, 0);
+            p2 = calcTopIndex(resolution, ii, 0);
+            p3 = calcIndex(resolution, ii - 1, 0);
+            p4 = calcIndex(resolution, ii, 0);
+
+            indices.put(p1).put(p2).put(p3);
+            indices.put(p3).put(p2).put(p4);
+            indices.put(p1).put(0).put(p2);
+
+            p1 = calcTopIndex(resolution, ii - 1, resolution - 1);
+            p2 = calcTopIndex(resolution, ii, resolution - 1);
+            p3 = calcIndex(resolution, ii - 1, resolution - 1);
+            p4 = calcIndex(resolution, ii, resolution - 1);
+
+            indices.put(p1).put(p3).put(p2);
+            indices.put(p3).put(p4).put(p2);
+            indices.put(p1).put(p2).put(0);
+
+            p1 = calcTopIndex(resolution, 0, ii - 1);
+            p2 = calcTopIndex(resolution, 0, ii);
+            p3 = calcIndex(resolution, 0, ii - 1);
+            p4 = calcIndex(resolution, 0, ii);
+
+            indices.put(p1).put(p3).put(p2);
+            indices.put(p3).put(p4).put(p2);
+            indices.put(p1).put(p2).put(0);
+
+            p1 = calcTopIndex(resolution, resolution - 1, ii - 1);
+            p2 = calcTopIndex(resolution, resolution - 1, ii);
+            p3 = calcIndex(resolution, resolution - 1, ii - 1);
+            p4 = calcIndex(resolution, resolution - 1, ii);
+
+            indices.put(p1).put(p2).put(p3);
+            indices.put(p3).put(p2).put(p4);
+            indices.put(p1).put(0).put(p2);
         }
-
-        setBuffer(VertexBuffer.Type.Position, 3, BufferUtils.createFloatBuffer((Vector3f[]) finalVertices.toArray(new Vector3f[finalVertices.size()])));
-        setBuffer(VertexBuffer.Type.Index, 1, BufferUtils.createIntBuffer(toIntArray(finalFaces)));
-
-        updateBound();
-        createCollisionData();
-
     }
 
     // calculates the index for a far plane face vert
-    private int calcIndex(int row, int col) {
+    private static int calcIndex(int resolution, int row, int col) {
         int topVerts = (resolution - 1) * 4;
         return col * resolution + row + 1 + topVerts;
     }
 
     // calculates the index for near plane ring vert
-    private int calcTopIndex(int row, int col) {
+    private static int calcTopIndex(int resolution, int row, int col) {
         int index = 1;
         if (col == 0) {
             return row + 1;
@@ -204,13 +268,4 @@ public class FrustumVolumeMesh extends Mesh {
         return index;
     }
 
-    private int[] toIntArray(List<Integer> list) {
-        int[] ret = new int[list.size()];
-        int i = 0;
-        for (Integer ii : list) {
-            ret[i++] = ii.intValue();
-        }
-        return ret;
-    }
-
 }
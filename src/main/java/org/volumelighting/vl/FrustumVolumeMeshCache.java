@@ -0,0 +1,227 @@
+package org.volumelighting.vl;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.jme3.renderer.Camera;
+import com.jme3.scene.Mesh;
+
+/**
+ * Shares FrustumVolumeMesh instances between lights whose frustums have the
+ * same shape, and FrustumGridMesh instances between all lights of a
+ * resolution. Meshes are reference counted, the last release drops the mesh
+ * from the cache and frees its buffers.
+ */
+public final class FrustumVolumeMeshCache {
+
+    private static final Map<Key, Entry> entries = new HashMap<>();
+    private static final Map<Mesh, Entry> owners = new IdentityHashMap<>();
+
+    private FrustumVolumeMeshCache() {
+    }
+
+    /**
+     * Returns a mesh for the given resolution and frustum, generating it only
+     * if no light with the same shape holds one. Every call must be balanced
+     * by a call to {@link #release(Mesh)}.
+     *
+     * @param resolution
+     * @param cam
+     * @return
+     */
+    public static synchronized FrustumVolumeMesh acquire(int resolution, Camera cam) {
+        Key key = new Key(resolution, cam);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(key, new FrustumVolumeMesh(resolution, cam));
+            entries.put(key, entry);
+            owners.put(entry.mesh, entry);
+        }
+        entry.refCount++;
+        return (FrustumVolumeMesh) entry.mesh;
+    }
+
+    /**
+     * Gives a mesh obtained from {@link #acquire(int, Camera)} the shape of
+     * another frustum. A mesh no other light holds is rescaled in place,
+     * keeping its buffers and indices, unless a mesh of the new shape is
+     * already shared. Otherwise the mesh is released and one of the new shape
+     * acquired.
+     *
+     * @param mesh
+     * @param cam the camera with the new frustum
+     * @return the mesh for the new shape, to release instead of the given one
+     */
+    public static FrustumVolumeMesh reshape(FrustumVolumeMesh mesh, Camera cam) {
+        return reshape(mesh, cam, null);
+    }
+
+    /**
+     * Like {@link #reshape(FrustumVolumeMesh, Camera)}, but a mesh that lost
+     * its last reference is added to the given list instead of being freed,
+     * for callers off the render thread that free it later on the render
+     * thread.
+     *
+     * @param mesh
+     * @param cam the camera with the new frustum
+     * @param released collects the meshes to free, null to free them here
+     * @return the mesh for the new shape, to release instead of the given one
+     */
+    public static synchronized FrustumVolumeMesh reshape(FrustumVolumeMesh mesh, Camera cam, List<Mesh> released) {
+        Entry entry = owners.get(mesh);
+        if (entry == null || entry.key.grid) {
+            throw new IllegalArgumentException("Mesh is not a frustum mesh of this cache");
+        }
+        Key key = new Key(entry.key.resolution, cam);
+        if (key.equals(entry.key)) {
+            return mesh;
+        }
+        if (entry.refCount > 1 || entries.containsKey(key)) {
+            if (release(entry)) {
+                if (released != null) {
+                    released.add(mesh);
+                } else {
+                    MeshUtil.disposeMesh(mesh);
+                }
+            }
+            return acquire(key.resolution, cam);
+        }
+
+        entries.remove(entry.key);
+        entry.key = key;
+        entries.put(key, entry);
+        mesh.reshape(cam);
+        return mesh;
+    }
+
+    /**
+     * Returns the frustum independent grid for the given resolution. Every
+     * call must be balanced by a call to {@link #release(Mesh)}.
+     *
+     * @param resolution
+     * @return
+     */
+    public static synchronized FrustumGridMesh acquireGrid(int resolution) {
+        Key key = new Key(resolution);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(key, new FrustumGridMesh(resolution));
+            entries.put(key, entry);
+            owners.put(entry.mesh, entry);
+        }
+        entry.refCount++;
+        return (FrustumGridMesh) entry.mesh;
+    }
+
+    /**
+     * Releases a mesh obtained from {@link #acquire(int, Camera)} or
+     * {@link #acquireGrid(int)}.
+     *
+     * @param mesh
+     * @return true if this was the last reference, the mesh then left the
+     * cache and is empty
+     */
+    public static synchronized boolean release(Mesh mesh) {
+        Entry entry = owners.get(mesh);
+        if (entry == null) {
+            throw new IllegalArgumentException("Mesh is not managed by this cache");
+        }
+        if (!release(entry)) {
+            return false;
+        }
+        MeshUtil.disposeMesh(mesh);
+        return true;
+    }
+
+    // drops the entry with the last reference, the caller frees the mesh
+    private static boolean release(Entry entry) {
+        if (--entry.refCount > 0) {
+            return false;
+        }
+        entries.remove(entry.key);
+        owners.remove(entry.mesh);
+        return true;
+    }
+
+    /**
+     * @return the number of distinct meshes currently shared
+     */
+    public static synchronized int size() {
+        return entries.size();
+    }
+
+    private static class Entry {
+
+        private Key key;
+        private final Mesh mesh;
+        private int refCount;
+
+        private Entry(Key key, Mesh mesh) {
+            this.key = key;
+            this.mesh = mesh;
+        }
+    }
+
+    private static class Key {
+
+        private final int resolution;
+        private final boolean grid;
+        private final boolean parallel;
+        private final float left;
+        private final float top;
+        private final float near;
+        private final float far;
+
+        private Key(int resolution, Camera cam) {
+            this.resolution = resolution;
+            this.grid = false;
+            this.parallel = cam.isParallelProjection();
+            this.left = cam.getFrustumLeft();
+            this.top = cam.getFrustumTop();
+            this.near = cam.getFrustumNear();
+            this.far = cam.getFrustumFar();
+        }
+
+        private Key(int resolution) {
+            this.resolution = resolution;
+            this.grid = true;
+            this.parallel = false;
+            this.left = 0f;
+            this.top = 0f;
+            this.near = 0f;
+            this.far = 0f;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return resolution == k.resolution
+                    && grid == k.grid
+                    && parallel == k.parallel
+                    && Float.floatToIntBits(left) == Float.floatToIntBits(k.left)
+                    && Float.floatToIntBits(top) == Float.floatToIntBits(k.top)
+                    && Float.floatToIntBits(near) == Float.floatToIntBits(k.near)
+                    && Float.floatToIntBits(far) == Float.floatToIntBits(k.far);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = resolution;
+            hash = 31 * hash + (grid ? 1 : 0);
+            hash = 31 * hash + (parallel ? 1 : 0);
+            hash = 31 * hash + Float.floatToIntBits(left);
+            hash = 31 * hash + Float.floatToIntBits(top);
+            hash = 31 * hash + Float.floatToIntBits(near);
+            hash = 31 * hash + Float.floatToIntBits(far);
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.volumelighting.vl;
+
+import com.jme3.scene.Mesh;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.util.BufferUtils;
+
+/**
+ * Mesh helpers shared by the volume buffers and the mesh cache.
+ */
+final class MeshUtil {
+
+    private MeshUtil() {
+    }
+
+    /**
+     * Queues the GL buffers for deletion and frees the direct buffers right
+     * away, the renderer only frees them on its own when running unsafe.
+     * The buffers are removed from the mesh so nothing can read them after.
+     *
+     * @param mesh
+     */
+    static void disposeMesh(Mesh mesh) {
+        VertexBuffer[] buffers = mesh.getBufferList().getArray();
+        for (VertexBuffer vb : buffers) {
+            vb.dispose();
+            if (vb.getData() != null) {
+                BufferUtils.destroyDirectBuffer(vb.getData());
+            }
+            mesh.clearBuffer(vb.getBufferType());
+        }
+    }
+}
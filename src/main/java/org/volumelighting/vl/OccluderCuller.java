@@ -0,0 +1,249 @@
+package org.volumelighting.vl;
+
+import java.util.Arrays;
+
+import com.jme3.bounding.BoundingBox;
+import com.jme3.bounding.BoundingSphere;
+import com.jme3.bounding.BoundingVolume;
+import com.jme3.math.FastMath;
+import com.jme3.math.Plane;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.queue.GeometryList;
+import com.jme3.renderer.queue.RenderQueue.ShadowMode;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+
+/**
+ * Collects the shadow casters of a light. Whole subtrees are rejected by
+ * their world bound, first against the planes of the light frustum, then for
+ * spot lights against the circular cone the frustum is built around.
+ *
+ * Only reads the scene graph and the light camera, so one instance per light
+ * can run alongside the others. With a {@link ShadowCasterIndex} the boxes
+ * of the index are rejected instead of the scene nodes.
+ */
+class OccluderCuller {
+
+    private static final int OUTSIDE = 0;
+    private static final int CUT = 1;
+    private static final int INSIDE = 2;
+
+    private final Vector3f apex = new Vector3f();
+    private final Vector3f axis = new Vector3f();
+    private final Vector3f toCenter = new Vector3f();
+    private final Vector3f nodeMin = new Vector3f();
+    private final Vector3f nodeMax = new Vector3f();
+    private final BoundingBox nodeBound = new BoundingBox();
+    private int[] stack = new int[64];
+    private Camera lightCam;
+    private boolean cone;
+    private float range;
+    private float sinAngle;
+    private float cosAngle;
+
+    private int culledCount;
+
+    /**
+     * Sets the light camera to cull against, also resets the culled count.
+     * Must be called again whenever the camera moved.
+     *
+     * @param lightCam
+     */
+    void setLightCamera(Camera lightCam) {
+        setLightCamera(lightCam, true);
+    }
+
+    /**
+     * Sets the light camera to cull against, also resets the culled count.
+     * Must be called again whenever the camera moved.
+     *
+     * @param lightCam
+     * @param cone true to also cull against the cone inscribed in the
+     * frustum, for spot lights
+     */
+    void setLightCamera(Camera lightCam, boolean cone) {
+        this.lightCam = lightCam;
+        this.cone = cone;
+        apex.set(lightCam.getLocation());
+        lightCam.getDirection(axis);
+        range = lightCam.getFrustumFar();
+
+        if (!cone) {
+            culledCount = 0;
+            return;
+        }
+        // the cone is inscribed in the square frustum
+        float angle = FastMath.atan(FastMath.abs(lightCam.getFrustumTop()) / lightCam.getFrustumNear());
+        sinAngle = FastMath.sin(angle);
+        cosAngle = FastMath.cos(angle);
+
+        culledCount = 0;
+    }
+
+    /**
+     * Adds every shadow casting geometry of the scene that may be inside the
+     * light cone to the list.
+     *
+     * @param scene
+     * @param casters
+     */
+    void cull(Spatial scene, GeometryList casters) {
+        if (scene.getCullHint() == Spatial.CullHint.Always) {
+            return;
+        }
+
+        BoundingVolume bv = scene.getWorldBound();
+        if (bv != null && isOutside(bv)) {
+            culledCount++;
+            return;
+        }
+
+        if (scene instanceof Node) {
+            Node node = (Node) scene;
+            for (int i = 0; i < node.getQuantity(); i++) {
+                cull(node.getChild(i), casters);
+            }
+        } else if (scene instanceof Geometry && bv != null) {
+            ShadowMode mode = scene.getShadowMode();
+            if (mode == ShadowMode.Cast || mode == ShadowMode.CastAndReceive) {
+                casters.add((Geometry) scene);
+            }
+        }
+    }
+
+    /**
+     * Adds every caster of the index that may be inside the light cone to the
+     * list, in the order of the index.
+     *
+     * @param index updated for this frame
+     * @param casters
+     */
+    void cull(ShadowCasterIndex index, GeometryList casters) {
+        if (index.getNodeCount() == 0) {
+            return;
+        }
+
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            index.getNodeBound(node, nodeMin, nodeMax);
+            nodeBound.setMinMax(nodeMin, nodeMax);
+            int side = classify(nodeBound);
+            if (side == OUTSIDE) {
+                culledCount++;
+                continue;
+            }
+
+            int first = index.getNodeFirst(node);
+            int size = index.getNodeSize(node);
+            if (side == INSIDE) {
+                // everything under the node is a caster
+                for (int i = first; i < first + size; i++) {
+                    casters.add(index.getGeometry(i));
+                }
+                continue;
+            }
+
+            int right = index.getNodeRight(node);
+            if (right != 0) {
+                if (top + 2 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                // the left child is visited first
+                stack[top++] = right;
+                stack[top++] = node + 1;
+                continue;
+            }
+            for (int i = first; i < first + size; i++) {
+                Geometry g = index.getGeometry(i);
+                if (!isOutside(g.getWorldBound())) {
+                    casters.add(g);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of spatials rejected since the last
+     * {@link #setLightCamera(Camera)}, a rejected node counts once for its
+     * whole subtree
+     */
+    int getCulledCount() {
+        return culledCount;
+    }
+
+    boolean isOutside(BoundingVolume bv) {
+        for (int i = 0; i < 6; i++) {
+            Plane plane = lightCam.getWorldPlane(i);
+            if (bv.whichSide(plane) == Plane.Side.Negative) {
+                return true;
+            }
+        }
+        return cone && isOutsideCone(bv);
+    }
+
+    /**
+     * Like isOutside, but also tells boxes completely inside the frustum
+     * and the cone apart.
+     *
+     * @return OUTSIDE, CUT or INSIDE
+     */
+    private int classify(BoundingBox box) {
+        int side = INSIDE;
+        for (int i = 0; i < 6; i++) {
+            Plane.Side planeSide = box.whichSide(lightCam.getWorldPlane(i));
+            if (planeSide == Plane.Side.Negative) {
+                return OUTSIDE;
+            } else if (planeSide != Plane.Side.Positive) {
+                side = CUT;
+            }
+        }
+        if (!cone) {
+            return side;
+        }
+
+        float radius = getRadius(box);
+        float distance = getConeDistance(box.getCenter(), radius);
+        if (distance > radius) {
+            return OUTSIDE;
+        }
+        return distance < -radius ? side : CUT;
+    }
+
+    // sphere against cone, boxes use the sphere around them
+    private boolean isOutsideCone(BoundingVolume bv) {
+        float radius;
+        if (bv instanceof BoundingBox) {
+            radius = getRadius((BoundingBox) bv);
+        } else if (bv instanceof BoundingSphere) {
+            radius = ((BoundingSphere) bv).getRadius();
+        } else {
+            return false;
+        }
+        return getConeDistance(bv.getCenter(), radius) > radius;
+    }
+
+    private static float getRadius(BoundingBox box) {
+        return FastMath.sqrt(box.getXExtent() * box.getXExtent()
+                + box.getYExtent() * box.getYExtent()
+                + box.getZExtent() * box.getZExtent());
+    }
+
+    /**
+     * @return the signed distance from the center to the cone surface,
+     * negative inside, infinite for spheres of the radius before the apex or
+     * beyond the range
+     */
+    private float getConeDistance(Vector3f center, float radius) {
+        toCenter.set(center).subtractLocal(apex);
+        float along = toCenter.dot(axis);
+        if (along < -radius || along > range + radius) {
+            return Float.POSITIVE_INFINITY;
+        }
+        float fromAxis = FastMath.sqrt(Math.max(toCenter.lengthSquared() - along * along, 0f));
+        return fromAxis * cosAngle - along * sinAngle;
+    }
+}
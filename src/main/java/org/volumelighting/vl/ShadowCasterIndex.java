@@ -0,0 +1,581 @@
+package org.volumelighting.vl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.jme3.bounding.BoundingBox;
+import com.jme3.bounding.BoundingSphere;
+import com.jme3.bounding.BoundingVolume;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.queue.RenderQueue.ShadowMode;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Node;
+import com.jme3.scene.Spatial;
+
+/**
+ * A bounding volume hierarchy of the shadow casting geometries of a scene,
+ * shared by all the lights that cast into it. Instead of every light walking
+ * the scene graph, the scene is walked once per frame and every light only
+ * descends into the boxes its frustum and cone cut, the casters of a box
+ * completely inside are taken without looking at them.
+ *
+ * The walk notices added and removed casters, the tree is then built again.
+ * Casters that moved only update their own leaf and the boxes above it, the
+ * tree is built again once those boxes grew to twice the surface they had
+ * after the last build.
+ *
+ * The walk reads every caster once, so the index pays off with several
+ * lights, and most with scenes that are flat or grouped by something else
+ * than place, where each light would otherwise read every caster itself.
+ * jME keeps no change count on a spatial that could be checked instead, so
+ * for large scenes that rarely change, {@link #setChangeTracking(boolean)}
+ * replaces the walk with the changes the application reports: a frame
+ * without any then costs nothing.
+ *
+ * One index serves the lights of one set of scenes, share it between the
+ * filters of a viewport, the first of them to need it in a frame updates it.
+ * Queries only read the tree, so lights prepared in parallel can query it
+ * together, but not while it is updated.
+ */
+public class ShadowCasterIndex {
+
+    /**
+     * The most casters in a leaf.
+     */
+    static final int LEAF_SIZE = 4;
+
+    private static final float REBUILD_GROWTH = 2f;
+
+    // the casters in scene order, to notice added, removed and moved ones
+    // while walking, and their place in leaf order
+    private Geometry[] sceneCasters = new Geometry[0];
+    private float[] sceneBounds = new float[0];
+    private int[] sceneSlots = new int[0];
+    private final List<Geometry> gathered = new ArrayList<>();
+    private boolean sameCasters;
+    // the scene order index of every caster, for the reported ones
+    private final Map<Geometry, Integer> sceneIndices = new IdentityHashMap<>();
+
+    private boolean changeTracking = false;
+    private boolean casterSetChanged = true;
+    private final List<Spatial> moved = new ArrayList<>();
+    private boolean frameUpdated = false;
+
+    // the casters in leaf order, their world bounds as min and max corners,
+    // and the leaf holding each of them
+    private Geometry[] geometries = new Geometry[0];
+    private float[] geometryBounds = new float[0];
+    private int[] geometryLeaves = new int[0];
+
+    // depth first, the left child of an inner node follows it, the right
+    // child is stored, 0 for leaves. Every node holds the range of casters
+    // under it.
+    private int nodeCount = 0;
+    private float[] nodeBounds = new float[0];
+    private int[] nodeRights = new int[0];
+    private int[] nodeFirst = new int[0];
+    private int[] nodeSizes = new int[0];
+    private int[] nodeParents = new int[0];
+    private boolean[] nodeDirty = new boolean[0];
+
+    private int[] dirtyNodes = new int[16];
+    private int dirtyCount = 0;
+    private float surface;
+    private float builtSurface;
+
+    private int[] order = new int[0];
+    private float[] centers = new float[0];
+    private final float[] bound = new float[6];
+
+    private int buildCount = 0;
+    private int movedCount = 0;
+
+    /**
+     * Starts a frame, called by the filters the index is set on in preFrame.
+     * The first {@link #updateFrame(List)} after it updates the index.
+     */
+    void beginFrame() {
+        frameUpdated = false;
+    }
+
+    /**
+     * Updates the index unless another filter did since the frame began.
+     *
+     * @param scenes the scenes of the viewport
+     */
+    void updateFrame(List<Spatial> scenes) {
+        if (!frameUpdated) {
+            frameUpdated = true;
+            update(scenes);
+        }
+    }
+
+    /**
+     * Walks the scenes for their shadow casters, or with change tracking
+     * reads the reported changes. The filters the index is set on call this
+     * once per frame, before the lights query it.
+     *
+     * @param scenes the scenes of the viewport
+     */
+    public void update(List<Spatial> scenes) {
+        if (changeTracking && !casterSetChanged) {
+            movedCount = 0;
+            for (int i = 0; i < moved.size() && !casterSetChanged; i++) {
+                readMoved(moved.get(i));
+            }
+            moved.clear();
+            if (!casterSetChanged) {
+                refitIfGrown();
+                return;
+            }
+        }
+        moved.clear();
+        casterSetChanged = false;
+
+        gathered.clear();
+        sameCasters = true;
+        movedCount = 0;
+        for (int i = 0; i < scenes.size(); i++) {
+            gather(scenes.get(i));
+        }
+
+        if (!sameCasters || gathered.size() != sceneCasters.length) {
+            build();
+        } else {
+            refitIfGrown();
+        }
+    }
+
+    private void refitIfGrown() {
+        if (dirtyCount > 0) {
+            refit();
+            // the casters of the last walk are still the gathered ones
+            if (surface > REBUILD_GROWTH * builtSurface) {
+                build();
+            }
+        }
+    }
+
+    // the same test as the walk, on a reported subtree
+    private void readMoved(Spatial spatial) {
+        if (spatial.getCullHint() == Spatial.CullHint.Always) {
+            return;
+        }
+        if (spatial instanceof Node) {
+            Node node = (Node) spatial;
+            for (int i = 0; i < node.getQuantity() && !casterSetChanged; i++) {
+                readMoved(node.getChild(i));
+            }
+            return;
+        }
+        Integer index = sceneIndices.get(spatial);
+        if (index == null) {
+            // a caster the index does not hold yet
+            casterSetChanged = isCaster(spatial);
+        } else if (!isCaster(spatial)) {
+            casterSetChanged = true;
+        } else {
+            readCaster(spatial, index);
+        }
+    }
+
+    private static boolean isCaster(Spatial spatial) {
+        ShadowMode mode = spatial.getShadowMode();
+        return spatial instanceof Geometry && spatial.getWorldBound() != null
+                && (mode == ShadowMode.Cast || mode == ShadowMode.CastAndReceive);
+    }
+
+    private void readCaster(Spatial spatial, int index) {
+        if (readBound(spatial.getWorldBound(), index)) {
+            int slot = sceneSlots[index];
+            System.arraycopy(sceneBounds, index * 6, geometryBounds, slot * 6, 6);
+            movedCount++;
+            markDirty(geometryLeaves[slot]);
+        }
+    }
+
+    // the same casters OccluderCuller collects, compared with the last ones
+    // on the way
+    private void gather(Spatial spatial) {
+        if (spatial.getCullHint() == Spatial.CullHint.Always) {
+            return;
+        }
+
+        if (spatial instanceof Node) {
+            Node node = (Node) spatial;
+            for (int i = 0; i < node.getQuantity(); i++) {
+                gather(node.getChild(i));
+            }
+            return;
+        }
+        if (!isCaster(spatial)) {
+            return;
+        }
+
+        int index = gathered.size();
+        gathered.add((Geometry) spatial);
+        if (!sameCasters) {
+            return;
+        }
+        if (index >= sceneCasters.length || sceneCasters[index] != spatial) {
+            sameCasters = false;
+            return;
+        }
+        readCaster(spatial, index);
+    }
+
+    /**
+     * Reads the world bound of a caster, as the box around it, into the
+     * scene order bounds.
+     *
+     * @return true if it changed since the last read
+     */
+    private boolean readBound(BoundingVolume bv, int index) {
+        Vector3f center = bv.getCenter();
+        float x;
+        float y;
+        float z;
+        if (bv instanceof BoundingBox) {
+            BoundingBox box = (BoundingBox) bv;
+            x = box.getXExtent();
+            y = box.getYExtent();
+            z = box.getZExtent();
+        } else if (bv instanceof BoundingSphere) {
+            x = y = z = ((BoundingSphere) bv).getRadius();
+        } else {
+            // unknown shape, never culled
+            x = y = z = Float.POSITIVE_INFINITY;
+        }
+        // a float step out, so the boxes the culler makes of the corners
+        // still hold the bound after rounding
+        bound[0] = Math.nextDown(center.x - x);
+        bound[1] = Math.nextDown(center.y - y);
+        bound[2] = Math.nextDown(center.z - z);
+        bound[3] = Math.nextUp(center.x + x);
+        bound[4] = Math.nextUp(center.y + y);
+        bound[5] = Math.nextUp(center.z + z);
+
+        int offset = index * 6;
+        boolean changed = false;
+        for (int i = 0; i < 6; i++) {
+            if (sceneBounds[offset + i] != bound[i]) {
+                sceneBounds[offset + i] = bound[i];
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private void build() {
+        int count = gathered.size();
+        sceneCasters = gathered.toArray(new Geometry[count]);
+        if (geometries.length != count) {
+            geometries = new Geometry[count];
+            geometryBounds = new float[count * 6];
+            sceneBounds = new float[count * 6];
+            geometryLeaves = new int[count];
+            sceneSlots = new int[count];
+            order = new int[count];
+            centers = new float[count * 3];
+        }
+
+        // bounds and centers in scene order first
+        for (int i = 0; i < count; i++) {
+            readBound(sceneCasters[i].getWorldBound(), i);
+            order[i] = i;
+            for (int axis = 0; axis < 3; axis++) {
+                centers[i * 3 + axis] = (sceneBounds[i * 6 + axis] + sceneBounds[i * 6 + 3 + axis]) * 0.5f;
+            }
+        }
+
+        // the median splits leave at least 2 casters in a leaf, so there are
+        // fewer nodes than casters
+        int maxNodes = Math.max(count, 1);
+        if (nodeFirst.length < maxNodes) {
+            nodeBounds = new float[maxNodes * 6];
+            nodeRights = new int[maxNodes];
+            nodeFirst = new int[maxNodes];
+            nodeSizes = new int[maxNodes];
+            nodeParents = new int[maxNodes];
+            nodeDirty = new boolean[maxNodes];
+        }
+        nodeCount = 0;
+        dirtyCount = 0;
+        movedCount = 0;
+        surface = 0f;
+        if (count > 0) {
+            buildNode(-1, 0, count);
+        }
+        builtSurface = surface;
+
+        // then in leaf order
+        for (int i = 0; i < count; i++) {
+            geometries[i] = sceneCasters[order[i]];
+            sceneSlots[order[i]] = i;
+            System.arraycopy(sceneBounds, order[i] * 6, geometryBounds, i * 6, 6);
+        }
+        if (changeTracking) {
+            indexCasters();
+        }
+        buildCount++;
+    }
+
+    /**
+     * Builds the subtree of the casters from to to of the order, split at
+     * the median center along the axis the centers spread the most.
+     *
+     * @return the node
+     */
+    private int buildNode(int parent, int from, int to) {
+        int node = nodeCount++;
+        int offset = node * 6;
+        nodeParents[node] = parent;
+        nodeDirty[node] = false;
+        nodeFirst[node] = from;
+        nodeSizes[node] = to - from;
+        nodeRights[node] = 0;
+
+        float[] centerBound = bound;
+        Arrays.fill(nodeBounds, offset, offset + 3, Float.POSITIVE_INFINITY);
+        Arrays.fill(nodeBounds, offset + 3, offset + 6, Float.NEGATIVE_INFINITY);
+        Arrays.fill(centerBound, 0, 3, Float.POSITIVE_INFINITY);
+        Arrays.fill(centerBound, 3, 6, Float.NEGATIVE_INFINITY);
+        for (int i = from; i < to; i++) {
+            int caster = order[i];
+            for (int axis = 0; axis < 3; axis++) {
+                nodeBounds[offset + axis] = Math.min(nodeBounds[offset + axis], sceneBounds[caster * 6 + axis]);
+                nodeBounds[offset + 3 + axis] = Math.max(nodeBounds[offset + 3 + axis], sceneBounds[caster * 6 + 3 + axis]);
+                centerBound[axis] = Math.min(centerBound[axis], centers[caster * 3 + axis]);
+                centerBound[3 + axis] = Math.max(centerBound[3 + axis], centers[caster * 3 + axis]);
+            }
+        }
+
+        if (to - from <= LEAF_SIZE) {
+            for (int i = from; i < to; i++) {
+                geometryLeaves[i] = node;
+            }
+            return node;
+        }
+
+        surface += surfaceArea(node);
+        int axis = 0;
+        for (int i = 1; i < 3; i++) {
+            if (centerBound[3 + i] - centerBound[i] > centerBound[3 + axis] - centerBound[axis]) {
+                axis = i;
+            }
+        }
+        int middle = (from + to) >>> 1;
+        select(from, to, middle, axis);
+
+        buildNode(node, from, middle);
+        nodeRights[node] = buildNode(node, middle, to);
+        return node;
+    }
+
+    /**
+     * Partially sorts the order so the caster at k has the k-th center along
+     * the axis, the ones before it are not further along and the ones after
+     * it not closer.
+     */
+    private void select(int from, int to, int k, int axis) {
+        int low = from;
+        int high = to - 1;
+        while (low < high) {
+            float pivot = centers[order[(low + high) >>> 1] * 3 + axis];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (centers[order[i] * 3 + axis] < pivot) {
+                    i++;
+                }
+                while (centers[order[j] * 3 + axis] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int swap = order[i];
+                    order[i] = order[j];
+                    order[j] = swap;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                high = j;
+            } else if (k >= i) {
+                low = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void markDirty(int node) {
+        while (node >= 0 && !nodeDirty[node]) {
+            nodeDirty[node] = true;
+            if (dirtyCount == dirtyNodes.length) {
+                dirtyNodes = Arrays.copyOf(dirtyNodes, dirtyCount * 2);
+            }
+            dirtyNodes[dirtyCount++] = node;
+            node = nodeParents[node];
+        }
+    }
+
+    // children come after their parent, so the highest index goes first
+    private void refit() {
+        Arrays.sort(dirtyNodes, 0, dirtyCount);
+        for (int i = dirtyCount - 1; i >= 0; i--) {
+            int node = dirtyNodes[i];
+            int offset = node * 6;
+            nodeDirty[node] = false;
+            if (nodeRights[node] == 0) {
+                Arrays.fill(nodeBounds, offset, offset + 3, Float.POSITIVE_INFINITY);
+                Arrays.fill(nodeBounds, offset + 3, offset + 6, Float.NEGATIVE_INFINITY);
+                int first = nodeFirst[node];
+                for (int g = first; g < first + nodeSizes[node]; g++) {
+                    for (int axis = 0; axis < 3; axis++) {
+                        nodeBounds[offset + axis] = Math.min(nodeBounds[offset + axis], geometryBounds[g * 6 + axis]);
+                        nodeBounds[offset + 3 + axis] = Math.max(nodeBounds[offset + 3 + axis], geometryBounds[g * 6 + 3 + axis]);
+                    }
+                }
+                continue;
+            }
+
+            surface -= surfaceArea(node);
+            int left = (node + 1) * 6;
+            int right = nodeRights[node] * 6;
+            for (int axis = 0; axis < 3; axis++) {
+                nodeBounds[offset + axis] = Math.min(nodeBounds[left + axis], nodeBounds[right + axis]);
+                nodeBounds[offset + 3 + axis] = Math.max(nodeBounds[left + 3 + axis], nodeBounds[right + 3 + axis]);
+            }
+            surface += surfaceArea(node);
+        }
+        dirtyCount = 0;
+    }
+
+    private void indexCasters() {
+        sceneIndices.clear();
+        for (int i = 0; i < sceneCasters.length; i++) {
+            sceneIndices.put(sceneCasters[i], i);
+        }
+    }
+
+    private float surfaceArea(int node) {
+        int offset = node * 6;
+        float x = nodeBounds[offset + 3] - nodeBounds[offset];
+        float y = nodeBounds[offset + 4] - nodeBounds[offset + 1];
+        float z = nodeBounds[offset + 5] - nodeBounds[offset + 2];
+        return x * y + y * z + z * x;
+    }
+
+    public boolean isChangeTracking() {
+        return changeTracking;
+    }
+
+    /**
+     * Stops walking the scenes every frame, update only reads the casters
+     * reported with {@link #markMoved(Spatial)} and walks the scenes again
+     * after {@link #markChanged()}. A frame without changes costs nothing,
+     * but every change has to be reported, the shadows of unreported ones
+     * are wrong. For large scenes that mostly stand still.
+     *
+     * @param changeTracking true to update from the reported changes, false
+     * (the default) to walk the scenes every frame
+     */
+    public void setChangeTracking(boolean changeTracking) {
+        if (this.changeTracking == changeTracking) {
+            return;
+        }
+        this.changeTracking = changeTracking;
+        moved.clear();
+        sceneIndices.clear();
+        if (changeTracking) {
+            indexCasters();
+        }
+    }
+
+    /**
+     * Reports that a caster, or casters under a node, moved or changed shape
+     * since the last update. Only needed with change tracking. Casters added
+     * under the spatial are noticed as well, removed ones are not, see
+     * {@link #markChanged()}.
+     *
+     * @param spatial a caster or a node of casters
+     */
+    public void markMoved(Spatial spatial) {
+        if (changeTracking) {
+            moved.add(spatial);
+        }
+    }
+
+    /**
+     * Reports casters that were added, removed or changed their shadow mode
+     * or cull hint, the next update walks the scenes. Only needed with change
+     * tracking.
+     */
+    public void markChanged() {
+        casterSetChanged = true;
+    }
+
+    /**
+     * @return the number of casters in the index
+     */
+    public int getCasterCount() {
+        return geometries.length;
+    }
+
+    /**
+     * @return the number of times the tree was built, for tuning
+     */
+    public int getBuildCount() {
+        return buildCount;
+    }
+
+    /**
+     * @return the number of casters that moved in the last update, 0 if the
+     * tree was built again
+     */
+    public int getMovedCount() {
+        return movedCount;
+    }
+
+    int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @param node
+     * @return the right child of an inner node, 0 for a leaf
+     */
+    int getNodeRight(int node) {
+        return nodeRights[node];
+    }
+
+    /**
+     * @param node
+     * @return the first caster under the node
+     */
+    int getNodeFirst(int node) {
+        return nodeFirst[node];
+    }
+
+    /**
+     * @param node
+     * @return the number of casters under the node
+     */
+    int getNodeSize(int node) {
+        return nodeSizes[node];
+    }
+
+    void getNodeBound(int node, Vector3f min, Vector3f max) {
+        int offset = node * 6;
+        min.set(nodeBounds[offset], nodeBounds[offset + 1], nodeBounds[offset + 2]);
+        max.set(nodeBounds[offset + 3], nodeBounds[offset + 4], nodeBounds[offset + 5]);
+    }
+
+    Geometry getGeometry(int index) {
+        return geometries[index];
+    }
+}
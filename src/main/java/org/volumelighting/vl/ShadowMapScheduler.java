@@ -0,0 +1,192 @@
+package org.volumelighting.vl;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Spreads the shadow map refreshes of many lights over several frames. Every
+ * visible light asks for a refresh each frame, the most urgent ones are
+ * rendered within the budget and the others keep the depth map of their last
+ * refresh.
+ *
+ * A light is more urgent the more of the screen it covers, the closer it is
+ * to the camera and the further it moved or turned since its last refresh,
+ * so fast lights come back sooner. The urgency is multiplied by the number of
+ * frames the light has been waiting, so every light is refreshed eventually.
+ * Lights without a shadow map yet, or whose map was invalidated, are always
+ * refreshed, on top of the budget.
+ *
+ * One scheduler can be shared by several filters, the budget then covers all
+ * of their lights.
+ */
+public class ShadowMapScheduler {
+
+    private static final Comparator<VolumeLight> BY_PRIORITY = new Comparator<VolumeLight>() {
+        @Override
+        public int compare(VolumeLight a, VolumeLight b) {
+            return Float.compare(b.getSchedulePriority(), a.getSchedulePriority());
+        }
+    };
+
+    private int maxShadowMaps;
+    private int maxCasterTriangles;
+    private float coverageWeight = 1f;
+    private float distanceWeight = 1f;
+    private float motionWeight = 1f;
+
+    private final List<VolumeLight> requests = new ArrayList<>();
+    private int round = 0;
+    private boolean resolved = false;
+    private int grantedCount = 0;
+    private int deferredCount = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param maxShadowMaps the number of shadow maps rendered per frame, 0 for
+     * no limit
+     */
+    public ShadowMapScheduler(int maxShadowMaps) {
+        this.maxShadowMaps = maxShadowMaps;
+    }
+
+    /**
+     * Asks for a shadow map refresh in this frame, called by the light in
+     * preFrame once its priority is up to date. A light asking twice starts
+     * the next frame.
+     *
+     * @param light
+     */
+    void submit(VolumeLight light) {
+        if (resolved || light.getScheduleRound() == round) {
+            round++;
+            requests.clear();
+            resolved = false;
+        }
+        light.setScheduleRound(round);
+        requests.add(light);
+    }
+
+    /**
+     * Called in postQueue, the first call of a frame hands out the budget.
+     *
+     * @param light
+     * @return true if the light may render its shadow map this frame
+     */
+    boolean isGranted(VolumeLight light) {
+        if (!resolved) {
+            resolve();
+        }
+        return light.getScheduleRound() == round && light.isShadowMapGranted();
+    }
+
+    private void resolve() {
+        requests.sort(BY_PRIORITY);
+
+        grantedCount = 0;
+        deferredCount = 0;
+        int triangles = 0;
+        for (int i = 0; i < requests.size(); i++) {
+            VolumeLight light = requests.get(i);
+            // the casters of the last refresh are the best guess for this one
+            int estimate = light.getCasterTriangleCount();
+            boolean granted = light.getSchedulePriority() == Float.MAX_VALUE
+                    || (maxShadowMaps <= 0 || grantedCount < maxShadowMaps)
+                    && (maxCasterTriangles <= 0 || grantedCount == 0 || triangles + estimate <= maxCasterTriangles);
+            light.setShadowMapGranted(granted);
+            if (granted) {
+                grantedCount++;
+                triangles += estimate;
+            } else {
+                deferredCount++;
+            }
+        }
+        resolved = true;
+    }
+
+    /**
+     * @return the number of shadow maps rendered per frame, 0 for no limit
+     */
+    public int getMaxShadowMaps() {
+        return maxShadowMaps;
+    }
+
+    /**
+     * @param maxShadowMaps the number of shadow maps rendered per frame, 0 for
+     * no limit
+     */
+    public void setMaxShadowMaps(int maxShadowMaps) {
+        this.maxShadowMaps = maxShadowMaps;
+    }
+
+    /**
+     * @return the number of caster triangles rendered per frame, 0 for no
+     * limit
+     */
+    public int getMaxCasterTriangles() {
+        return maxCasterTriangles;
+    }
+
+    /**
+     * Limits the shadow maps of a frame by the triangles of their casters, as
+     * counted in their last refresh. The most urgent light is always
+     * refreshed, even if it is over the budget by itself.
+     *
+     * @param maxCasterTriangles the number of caster triangles rendered per
+     * frame, 0 (the default) for no limit
+     */
+    public void setMaxCasterTriangles(int maxCasterTriangles) {
+        this.maxCasterTriangles = maxCasterTriangles;
+    }
+
+    public float getCoverageWeight() {
+        return coverageWeight;
+    }
+
+    /**
+     * @param coverageWeight how much the screen coverage of a light counts,
+     * default 1
+     */
+    public void setCoverageWeight(float coverageWeight) {
+        this.coverageWeight = coverageWeight;
+    }
+
+    public float getDistanceWeight() {
+        return distanceWeight;
+    }
+
+    /**
+     * @param distanceWeight how much closeness to the camera counts, default 1
+     */
+    public void setDistanceWeight(float distanceWeight) {
+        this.distanceWeight = distanceWeight;
+    }
+
+    public float getMotionWeight() {
+        return motionWeight;
+    }
+
+    /**
+     * @param motionWeight how much the movement of a light since its last
+     * refresh counts, default 1
+     */
+    public void setMotionWeight(float motionWeight) {
+        this.motionWeight = motionWeight;
+    }
+
+    /**
+     * @return the number of shadow maps granted in the last frame
+     */
+    public int getGrantedCount() {
+        return grantedCount;
+    }
+
+    /**
+     * @return the number of lights that kept an old shadow map in the last
+     * frame
+     */
+    public int getDeferredCount() {
+        return deferredCount;
+    }
+}
@@ -0,0 +1,440 @@
+package org.volumelighting.vl;
+
+import java.util.Collection;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.material.Material;
+import com.jme3.math.Matrix4f;
+import com.jme3.math.Vector2f;
+import com.jme3.post.Filter;
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.Caps;
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.Renderer;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.shape.Quad;
+import com.jme3.texture.FrameBuffer;
+import com.jme3.texture.Image.Format;
+
+/**
+ * The off screen buffer the light volumes are accumulated into, and the
+ * composite material parameters that go with it.
+ *
+ * The format of the buffer is chosen among the float formats the renderer
+ * supports. RGBA32F and RGBA16F take the signed front and back face
+ * contributions in any order. RGB111110F can not store negative values, so
+ * the back faces have to be drawn before the front faces. R32F and R16F only
+ * hold the intensity, the light color is then applied by the composite.
+ *
+ * The buffer can be a fraction of the screen size. The volumes are then
+ * rendered through a copy of the view camera resized to the buffer, and the
+ * composite upsamples with the scene depth so volume edges on foreground
+ * geometry stay sharp.
+ *
+ * With temporal accumulation the volumes are rendered with a sub texel jitter
+ * that changes every frame, then blended into a history reprojected from the
+ * last frame with the view projection matrices. History is dropped where its
+ * depth does not match the surface behind the pixel, and clamped to the
+ * range of the current neighbourhood. The composite reads the history.
+ *
+ * With depth rejection the buffer gets a depth and stencil buffer holding the
+ * scene depth, so the volumes can be drawn with the depth test on, see
+ * {@link VolumeLight#renderVolumeRejected}. The copy keeps the farthest scene
+ * depth under a texel of a downsampled buffer.
+ */
+class VolumeBuffer {
+
+    private static final int JITTER_SAMPLES = 8;
+
+    // the scene texels the depth copy reads per texel are bounded
+    private static final int MAX_REJECTION_DOWNSAMPLE = 15;
+
+    private int downsample = 1;
+    private Format format = Format.RGBA32F;
+    private Format actualFormat;
+    private boolean temporal = false;
+    private float temporalBlend = 0.1f;
+    private boolean depthRejection = false;
+    private boolean rejecting;
+
+    private Filter filter;
+    private AssetManager assetManager;
+    private Renderer renderer;
+    private Camera viewCam;
+    private Material composite;
+    private int screenWidth;
+    private int screenHeight;
+
+    private Filter.Pass pass;
+    private Camera volumeCam;
+
+    // ping pong, the one written last frame is the history
+    private final Filter.Pass[] history = new Filter.Pass[2];
+    private int historyIndex;
+    private boolean historyValid;
+    private Camera historyCam;
+    private Material resolveMat;
+    private Geometry fullscreen;
+    private int jitterIndex;
+    private final Matrix4f jitteredProjection = new Matrix4f();
+    private final Matrix4f viewProjectionInverse = new Matrix4f();
+    private final Matrix4f prevViewProjection = new Matrix4f();
+
+    private Material depthMat;
+    private Geometry depthQuad;
+    private Camera depthCam;
+
+    /**
+     * Allocates the buffer, again on every reshape. A previous buffer is
+     * released first.
+     *
+     * @param filter the filter owning the buffer
+     * @param manager
+     * @param renderer
+     * @param viewCam
+     * @param w the screen width
+     * @param h the screen height
+     * @param composite the filter material
+     */
+    void init(Filter filter, AssetManager manager, Renderer renderer, Camera viewCam, int w, int h, Material composite) {
+        this.filter = filter;
+        this.assetManager = manager;
+        this.renderer = renderer;
+        this.viewCam = viewCam;
+        this.screenWidth = w;
+        this.screenHeight = h;
+        this.composite = composite;
+
+        int width = Math.max(w / downsample, 1);
+        int height = Math.max(h / downsample, 1);
+
+        cleanup();
+        actualFormat = selectFormat(format, renderer.getCaps());
+        rejecting = depthRejection && downsample <= MAX_REJECTION_DOWNSAMPLE
+                && renderer.getCaps().contains(Caps.PackedDepthStencilBuffer);
+        pass = filter.new Pass();
+        pass.init(renderer, width, height, actualFormat, rejecting ? Format.Depth24Stencil8 : Format.Depth, 1, true);
+
+        volumeCam = viewCam.clone();
+        volumeCam.resize(width, height, false);
+
+        composite.setTexture("LightingVolumeTex", pass.getRenderedTexture());
+        if (downsample > 1) {
+            composite.setVector2("VolumeResolution", new Vector2f(width, height));
+            composite.setVector2("LinearDepthFactorsCam", VolumeLight.getLinearDepthFactors(viewCam));
+        } else {
+            composite.clearParam("VolumeResolution");
+        }
+        if (isIntensityOnly()) {
+            composite.setBoolean("IntensityOnly", true);
+        } else {
+            composite.clearParam("IntensityOnly");
+        }
+
+        if (temporal) {
+            initHistory(width, height);
+        } else {
+            composite.clearParam("Temporal");
+        }
+        if (rejecting) {
+            initDepthCopy(width, height);
+        }
+    }
+
+    private void initDepthCopy(int width, int height) {
+        depthMat = new Material(assetManager, "MatDefs/VolumetricLighting/VolumeDepth.j3md");
+        if (downsample > 1) {
+            depthMat.setVector2("VolumeResolution", new Vector2f(width, height));
+            depthMat.setVector2("SceneResolution", new Vector2f(screenWidth, screenHeight));
+        }
+        depthQuad = new Geometry("volume depth", new Quad(1, 1));
+        depthQuad.setMaterial(depthMat);
+        depthQuad.updateGeometricState();
+        depthCam = new Camera(width, height);
+    }
+
+    private void initHistory(int width, int height) {
+        for (int i = 0; i < history.length; i++) {
+            history[i] = filter.new Pass();
+            // alpha keeps the depth the history was blended at
+            history[i].init(renderer, width, height, Format.RGBA16F, Format.Depth, 1, true);
+        }
+        historyIndex = 0;
+        historyValid = false;
+        historyCam = new Camera(width, height);
+
+        resolveMat = new Material(assetManager, "MatDefs/VolumetricLighting/TemporalResolve.j3md");
+        resolveMat.setTexture("VolumeTex", pass.getRenderedTexture());
+        resolveMat.setVector2("VolumeResolution", new Vector2f(width, height));
+        resolveMat.setFloat("TemporalBlend", temporalBlend);
+        resolveMat.setMatrix4("ViewProjectionMatrixInverse", viewProjectionInverse);
+        resolveMat.setMatrix4("PrevViewProjectionMatrix", prevViewProjection);
+        fullscreen = new Geometry("temporal resolve", new Quad(1, 1));
+        fullscreen.setMaterial(resolveMat);
+        fullscreen.updateGeometricState();
+
+        composite.setBoolean("Temporal", true);
+    }
+
+    /**
+     * Releases the buffer, {@link #init} allocates it again.
+     */
+    void cleanup() {
+        if (pass != null) {
+            pass.cleanup(renderer);
+            pass = null;
+        }
+        if (history[0] != null) {
+            for (int i = 0; i < history.length; i++) {
+                history[i].cleanup(renderer);
+                history[i] = null;
+            }
+            MeshUtil.disposeMesh(fullscreen.getMesh());
+            fullscreen = null;
+            resolveMat = null;
+        }
+        if (depthQuad != null) {
+            MeshUtil.disposeMesh(depthQuad.getMesh());
+            depthQuad = null;
+            depthMat = null;
+        }
+    }
+
+    /**
+     * @param requested
+     * @param caps
+     * @return the requested format if it can be rendered to, else RGBA16F,
+     * else RGBA32F as before formats were selectable
+     */
+    static Format selectFormat(Format requested, Collection<Caps> caps) {
+        if (isSupported(requested, caps)) {
+            return requested;
+        }
+        if (isSupported(Format.RGBA16F, caps)) {
+            return Format.RGBA16F;
+        }
+        return Format.RGBA32F;
+    }
+
+    private static boolean isSupported(Format format, Collection<Caps> caps) {
+        if (format == Format.RGB111110F) {
+            return caps.contains(Caps.PackedFloatTexture) && caps.contains(Caps.PackedFloatColorBuffer);
+        }
+        return caps.contains(Caps.FloatTexture) && caps.contains(Caps.FloatColorBuffer);
+    }
+
+    /**
+     * Binds and clears the buffer, with the camera the volumes have to be
+     * rendered through. With depth rejection the scene depth is copied in.
+     *
+     * @param renderManager
+     * @param sceneBuffer the frame buffer with the scene depth
+     */
+    void begin(RenderManager renderManager, FrameBuffer sceneBuffer) {
+        Camera cam = viewCam;
+        if (downsample > 1 || temporal) {
+            // follows the view, only the viewport and the jitter differ
+            volumeCam.copyFrom(viewCam);
+            volumeCam.resize(pass.getRenderFrameBuffer().getWidth(), pass.getRenderFrameBuffer().getHeight(), false);
+            if (temporal) {
+                jitter(volumeCam);
+            }
+            cam = volumeCam;
+        }
+        renderManager.getRenderer().setFrameBuffer(pass.getRenderFrameBuffer());
+        renderManager.getRenderer().clearBuffers(true, true, true);
+        if (rejecting) {
+            depthMat.setTexture("DepthTexture", sceneBuffer.getDepthTarget().getTexture());
+            renderManager.setCamera(depthCam, true);
+            renderManager.renderGeometry(depthQuad);
+        }
+
+        renderManager.setCamera(cam, false);
+    }
+
+    /**
+     * Shifts the projection of the camera by a sub texel offset, a different
+     * one every frame over {@value #JITTER_SAMPLES} frames.
+     */
+    private void jitter(Camera cam) {
+        jitterIndex = jitterIndex % JITTER_SAMPLES + 1;
+        // in clip space, a texel is 2 / size wide
+        float x = (halton(jitterIndex, 2) - 0.5f) * 2f / cam.getWidth();
+        float y = (halton(jitterIndex, 3) - 0.5f) * 2f / cam.getHeight();
+
+        Matrix4f p = jitteredProjection.set(cam.getProjectionMatrix());
+        p.m00 += x * p.m30;
+        p.m01 += x * p.m31;
+        p.m02 += x * p.m32;
+        p.m03 += x * p.m33;
+        p.m10 += y * p.m30;
+        p.m11 += y * p.m31;
+        p.m12 += y * p.m32;
+        p.m13 += y * p.m33;
+        cam.setProjectionMatrix(p);
+    }
+
+    private static float halton(int index, int base) {
+        float fraction = 1f;
+        float result = 0f;
+        while (index > 0) {
+            fraction /= base;
+            result += fraction * (index % base);
+            index /= base;
+        }
+        return result;
+    }
+
+    /**
+     * Blends the volumes rendered since {@link #begin} into the history when
+     * temporal accumulation is on, the composite then reads the history.
+     *
+     * @param renderManager
+     * @param sceneBuffer the frame buffer with the scene depth
+     */
+    void end(RenderManager renderManager, FrameBuffer sceneBuffer) {
+        if (!temporal) {
+            return;
+        }
+
+        Filter.Pass target = history[historyIndex];
+        if (historyValid) {
+            resolveMat.setTexture("HistoryTex", history[1 - historyIndex].getRenderedTexture());
+        } else {
+            resolveMat.clearParam("HistoryTex");
+        }
+        resolveMat.setTexture("DepthTexture", sceneBuffer.getDepthTarget().getTexture());
+        resolveMat.setVector2("LinearDepthFactorsCam", VolumeLight.getLinearDepthFactors(viewCam));
+        viewCam.getViewProjectionMatrix().invert(viewProjectionInverse);
+
+        renderManager.setCamera(historyCam, true);
+        renderer.setFrameBuffer(target.getRenderFrameBuffer());
+        renderManager.renderGeometry(fullscreen);
+        composite.setTexture("LightingVolumeTex", target.getRenderedTexture());
+
+        // the history of a skipped frame stays with the matrix it was made with
+        prevViewProjection.set(viewCam.getViewProjectionMatrix());
+        historyValid = true;
+        historyIndex = 1 - historyIndex;
+    }
+
+    Format getFormat() {
+        return format;
+    }
+
+    /**
+     * @return the format the buffer was allocated with, after the fallbacks,
+     * null before init
+     */
+    Format getActualFormat() {
+        return actualFormat;
+    }
+
+    /**
+     * Reallocates the buffer right away if it was already initialized.
+     *
+     * @param format RGBA32F, RGBA16F, RGB111110F, R32F or R16F
+     */
+    void setFormat(Format format) {
+        if (format != Format.RGBA32F && format != Format.RGBA16F && format != Format.RGB111110F
+                && format != Format.R32F && format != Format.R16F) {
+            throw new IllegalArgumentException("Unsupported light volume format " + format);
+        }
+        this.format = format;
+        if (pass != null) {
+            init(filter, assetManager, renderer, viewCam, screenWidth, screenHeight, composite);
+        }
+    }
+
+    /**
+     * @return false if the buffer can not hold negative values, the back
+     * faces of the volumes must then be drawn before the front faces
+     */
+    boolean isSigned() {
+        return actualFormat != Format.RGB111110F;
+    }
+
+    /**
+     * @return true if the buffer only holds the intensity, the volumes must
+     * then write it without the light color
+     */
+    boolean isIntensityOnly() {
+        return actualFormat == Format.R32F || actualFormat == Format.R16F;
+    }
+
+    /**
+     * @return true if the buffer holds the scene depth, the volumes must then
+     * be drawn with {@link VolumeLight#renderVolumeRejected}
+     */
+    boolean isRejecting() {
+        return rejecting;
+    }
+
+    boolean isDepthRejection() {
+        return depthRejection;
+    }
+
+    /**
+     * Reallocates the buffer right away if it was already initialized. Off
+     * when the renderer has no packed depth and stencil buffers, or the
+     * downsample factor is above {@value #MAX_REJECTION_DOWNSAMPLE}.
+     *
+     * @param depthRejection true to test the volumes against the scene depth
+     */
+    void setDepthRejection(boolean depthRejection) {
+        this.depthRejection = depthRejection;
+        if (pass != null) {
+            init(filter, assetManager, renderer, viewCam, screenWidth, screenHeight, composite);
+        }
+    }
+
+    boolean isTemporal() {
+        return temporal;
+    }
+
+    /**
+     * Reallocates the buffer right away if it was already initialized.
+     *
+     * @param temporal true to accumulate the volumes over frames
+     */
+    void setTemporal(boolean temporal) {
+        this.temporal = temporal;
+        if (pass != null) {
+            init(filter, assetManager, renderer, viewCam, screenWidth, screenHeight, composite);
+        }
+    }
+
+    float getTemporalBlend() {
+        return temporalBlend;
+    }
+
+    /**
+     * @param temporalBlend the weight of the current frame against the
+     * history
+     */
+    void setTemporalBlend(float temporalBlend) {
+        this.temporalBlend = temporalBlend;
+        if (resolveMat != null) {
+            resolveMat.setFloat("TemporalBlend", temporalBlend);
+        }
+    }
+
+    int getDownsample() {
+        return downsample;
+    }
+
+    /**
+     * Reallocates the buffer right away if it was already initialized.
+     *
+     * @param downsample the screen size divisor of the buffer
+     */
+    void setDownsample(int downsample) {
+        if (downsample < 1) {
+            throw new IllegalArgumentException("Downsample factor must be at least 1");
+        }
+        this.downsample = downsample;
+        if (pass != null) {
+            init(filter, assetManager, renderer, viewCam, screenWidth, screenHeight, composite);
+        }
+    }
+}
@@ -0,0 +1,1103 @@
+package org.volumelighting.vl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.bounding.BoundingBox;
+import com.jme3.light.DirectionalLight;
+import com.jme3.light.Light;
+import com.jme3.light.PointLight;
+import com.jme3.light.SpotLight;
+import com.jme3.material.Material;
+import com.jme3.material.RenderState;
+import com.jme3.material.RenderState.FaceCullMode;
+import com.jme3.material.RenderState.StencilOperation;
+import com.jme3.material.RenderState.TestFunction;
+import com.jme3.math.FastMath;
+import com.jme3.math.Plane;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector2f;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.ViewPort;
+import com.jme3.renderer.queue.RenderQueue;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Spatial;
+import com.jme3.texture.FrameBuffer;
+
+/**
+ * The per light part of the volumetric lighting: the light camera, the volume
+ * mesh, its material and the shadow map renderer. Filters own one or more of
+ * these and decide where the volumes get accumulated.
+ */
+class VolumeLight {
+
+    /**
+     * The scattering intensity of a new light.
+     */
+    static final float DEFAULT_INTENSITY = 10f;
+
+    /**
+     * The number of volumes of a point light, one per cube face.
+     */
+    static final int CUBE_FACES = 6;
+
+    private static final Vector3f[] FACE_DIRECTIONS = {
+        Vector3f.UNIT_X, Vector3f.UNIT_X.negate(),
+        Vector3f.UNIT_Y, Vector3f.UNIT_Y.negate(),
+        Vector3f.UNIT_Z, Vector3f.UNIT_Z.negate()
+    };
+    private static final Vector3f[] FACE_UPS = {
+        Vector3f.UNIT_Y, Vector3f.UNIT_Y,
+        Vector3f.UNIT_Z, Vector3f.UNIT_Z,
+        Vector3f.UNIT_Y, Vector3f.UNIT_Y
+    };
+
+    private final int resolution;
+    private Light light;
+    private int face = 0;
+    private float startFrom;
+    private float intensity = DEFAULT_INTENSITY;
+    // the spot shape the frustum was made for
+    private float spotAngle;
+    private float spotRange;
+
+    private Camera lightCam;
+    private Mesh fvm;
+    // one mesh per level, fvm is the current one
+    private Mesh[] meshes;
+    // meshes a reshape let go of in prepareFrame, freed on the render thread
+    private final List<Mesh> releasedMeshes = new ArrayList<>();
+    private boolean proceduralGrid = false;
+    private Geometry lightVolume;
+    private Material lightVolumeMat;
+    private VolumeLightRenderer shadowVolumeRenderer;
+    private AssetManager assetManager;
+    private RenderManager renderManager;
+    private ViewPort viewPort;
+
+    private VolumeLightQuality quality;
+    // fixed by setQuality, the meshes and the shadow maps always agree on it
+    private int levelCount = 1;
+    private int level = 0;
+    private int framesAtLevel = 0;
+
+    private boolean shadowMapCaching = false;
+    private ShadowMapScheduler scheduler;
+    private VolumeLightStats stats;
+    private ShadowCasterIndex casterIndex;
+    private float schedulePriority;
+    private int scheduleRound = -1;
+    private boolean shadowMapGranted = true;
+    private int framesSinceRefresh = 0;
+    private final Vector3f refreshPosition = new Vector3f();
+    private final Vector3f refreshDirection = new Vector3f();
+    private final Vector3f lightDirection = new Vector3f();
+    private float maxDistance = 0f;
+    private boolean culled = false;
+    private final BoundingBox worldBound = new BoundingBox();
+    private final Vector3f camUp = new Vector3f();
+    private final Vector3f farCenter = new Vector3f();
+    private final Vector3f farLeft = new Vector3f();
+    private final Vector3f farUp = new Vector3f();
+    private final Vector3f boundMin = new Vector3f();
+    private final Vector3f boundMax = new Vector3f();
+    private final Vector3f nearCenter = new Vector3f();
+    private final Vector3f fitCenter = new Vector3f();
+    private final Quaternion fitRotation = new Quaternion();
+
+    /**
+     * Constructor.
+     *
+     * @param spot
+     * @param resolution
+     * @param startFrom
+     */
+    VolumeLight(SpotLight spot, int resolution, float startFrom) {
+        this(spot, 0, resolution, startFrom);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param light a spot, point or directional light
+     * @param face the cube face for point lights, 0 to 5
+     * @param resolution
+     * @param startFrom the distance from the light where the volume starts,
+     * for directional lights the distance from the view the volume covers
+     */
+    VolumeLight(Light light, int face, int resolution, float startFrom) {
+        this.resolution = resolution;
+
+        lightCam = new Camera(resolution, resolution);
+        // not part of the scene, drawn directly and updated before each draw
+        lightVolume = new Geometry("fvm");
+        lightVolume.setIgnoreTransform(false);
+        lightVolume.setCullHint(Spatial.CullHint.Always);
+
+        setLight(light, face, startFrom);
+    }
+
+    /**
+     * Points this volume at another light, keeping the shadow map and the
+     * material. Used to recycle volumes of removed lights.
+     *
+     * @param light a spot, point or directional light
+     * @param face the cube face for point lights, 0 to 5
+     * @param startFrom the distance from the light where the volume starts,
+     * for directional lights the distance from the view the volume covers
+     */
+    void setLight(Light light, int face, float startFrom) {
+        this.light = light;
+        this.face = face;
+        this.startFrom = startFrom;
+        // nothing of the previous light carries over to a reused volume
+        setIntensity(DEFAULT_INTENSITY);
+        framesSinceRefresh = 0;
+        framesAtLevel = 0;
+        schedulePriority = 0f;
+        shadowMapGranted = true;
+        culled = false;
+
+        if (light instanceof SpotLight) {
+            SpotLight spot = (SpotLight) light;
+            lightCam.setParallelProjection(false);
+            spotAngle = spot.getSpotOuterAngle();
+            spotRange = spot.getSpotRange();
+            lightCam.setFrustumPerspective(spotAngle * FastMath.RAD_TO_DEG * 2.0f, 1, startFrom, spotRange);
+        } else if (light instanceof PointLight) {
+            PointLight point = (PointLight) light;
+            if (point.getRadius() <= 0f) {
+                throw new IllegalArgumentException("Point light volumes need a light radius");
+            }
+            lightCam.setParallelProjection(false);
+            lightCam.setFrustumPerspective(90f, 1, startFrom, point.getRadius());
+        } else if (light instanceof DirectionalLight) {
+            // a first guess, fitted to the view on the first preFrame
+            lightCam.setParallelProjection(true);
+            setDirectionalFrustum(startFrom);
+        } else {
+            throw new IllegalArgumentException("Unsupported light type " + light.getType());
+        }
+        lightCam.update();
+
+        // !! NEED TO SET METHOD OF LIGHT FRONT PLANE
+        acquireMeshes();
+
+        syncLightCam();
+        if (lightVolumeMat != null) {
+            updateLightParameters();
+            shadowVolumeRenderer.setConeCulling(light instanceof SpotLight);
+            shadowVolumeRenderer.invalidateShadowMap();
+        }
+    }
+
+    void syncLightCam() {
+        if (light instanceof SpotLight) {
+            SpotLight spot = (SpotLight) light;
+            lightCam.getRotation().lookAt(spot.getDirection(), lightCam.getUp(camUp));
+            lightCam.setLocation(spot.getPosition());
+        } else if (light instanceof PointLight) {
+            lightCam.getRotation().lookAt(FACE_DIRECTIONS[face], FACE_UPS[face]);
+            lightCam.setLocation(((PointLight) light).getPosition());
+        } else {
+            // placed by fitDirectional, setRotation only updates the frame
+            lightCam.getRotation().lookAt(((DirectionalLight) light).getDirection(), lightCam.getUp(camUp));
+            lightCam.setRotation(lightCam.getRotation());
+        }
+    }
+
+    /**
+     * Centers the parallel light camera on the bounding sphere of the view
+     * frustum, up to the volume distance. The sphere only depends on the
+     * shape of the view frustum, so the volume mesh is kept while the view
+     * moves, and its center is snapped to shadow map texels so the shadows do
+     * not shimmer.
+     *
+     * @param viewCam
+     */
+    private void fitDirectional(Camera viewCam) {
+        float near = viewCam.getFrustumNear();
+        float far = Math.min(startFrom, viewCam.getFrustumFar());
+        float tanX = Math.max(FastMath.abs(viewCam.getFrustumLeft()), FastMath.abs(viewCam.getFrustumRight()));
+        float tanY = Math.max(FastMath.abs(viewCam.getFrustumTop()), FastMath.abs(viewCam.getFrustumBottom()));
+        float nearExtent = 1f;
+        float farExtent = 1f;
+        if (!viewCam.isParallelProjection()) {
+            tanX /= near;
+            tanY /= near;
+            nearExtent = near;
+            farExtent = far;
+        }
+        // squared distance of the slice corners from the view axis
+        float nearCorner = (tanX * tanX + tanY * tanY) * nearExtent * nearExtent;
+        float farCorner = (tanX * tanX + tanY * tanY) * farExtent * farExtent;
+
+        // on the view axis, as far as the far corners allow
+        float center = (far * far + farCorner - near * near - nearCorner) / (2f * (far - near));
+        center = FastMath.clamp(center, near, far);
+        float radius = FastMath.sqrt(Math.max((center - near) * (center - near) + nearCorner,
+                (far - center) * (far - center) + farCorner));
+        // room for the snapping, up to half a texel
+        radius /= 1f - 1f / lightCam.getWidth();
+
+        if (radius != lightCam.getFrustumTop()) {
+            // the view frustum changed shape
+            setDirectionalFrustum(radius);
+            reshapeMeshes();
+            if (lightVolumeMat != null) {
+                lightVolumeMat.setVector2("LinearDepthFactorsLight", getLinearDepthFactors(lightCam));
+                lightVolumeMat.setVector2("LightNearFar", new Vector2f(lightCam.getFrustumNear(), lightCam.getFrustumFar()));
+                if (proceduralGrid) {
+                    lightVolumeMat.setVector2("FrustumTangents", getFrustumTangents());
+                }
+            }
+        }
+
+        viewCam.getDirection(fitCenter).multLocal(center).addLocal(viewCam.getLocation());
+        fitRotation.set(lightCam.getRotation()).inverseLocal().multLocal(fitCenter);
+        float texel = 2f * radius / lightCam.getWidth();
+        fitCenter.x = Math.round(fitCenter.x / texel) * texel;
+        fitCenter.y = Math.round(fitCenter.y / texel) * texel;
+        lightCam.getRotation().multLocal(fitCenter);
+
+        // a diameter back, casters up to a radius in front of the sphere still
+        // shadow it
+        lightCam.getDirection(camUp).multLocal(2f * radius);
+        lightCam.setLocation(fitCenter.subtractLocal(camUp));
+    }
+
+    private void setDirectionalFrustum(float radius) {
+        lightCam.setFrustum(0f, 3f * radius, -radius, radius, radius, -radius);
+    }
+
+    /**
+     * Follows a spot light whose angle or range changed since the last frame:
+     * the frustum, the meshes rescaled in place, and only the material
+     * parameters that depend on what changed.
+     */
+    private void updateSpotFrustum() {
+        SpotLight spot = (SpotLight) light;
+        float angle = spot.getSpotOuterAngle();
+        float range = spot.getSpotRange();
+        if (angle == spotAngle && range == spotRange) {
+            return;
+        }
+
+        lightCam.setFrustumPerspective(angle * FastMath.RAD_TO_DEG * 2.0f, 1, startFrom, range);
+        reshapeMeshes();
+        if (lightVolumeMat != null) {
+            if (range != spotRange) {
+                lightVolumeMat.setVector2("LinearDepthFactorsLight", getLinearDepthFactors(lightCam));
+                lightVolumeMat.setVector2("LightNearFar", new Vector2f(lightCam.getFrustumNear(), lightCam.getFrustumFar()));
+            }
+            if (angle != spotAngle && proceduralGrid) {
+                lightVolumeMat.setVector2("FrustumTangents", getFrustumTangents());
+            }
+            // the old map covers another cone
+            shadowVolumeRenderer.invalidateShadowMap();
+        }
+        spotAngle = angle;
+        spotRange = range;
+    }
+
+    /**
+     * Gives the meshes of every level the shape of the light frustum, in
+     * place when no other light shares them. Procedural grids are shaped in
+     * the shader and stay.
+     */
+    private void reshapeMeshes() {
+        if (proceduralGrid || meshes == null) {
+            return;
+        }
+        for (int i = 0; i < meshes.length; i++) {
+            meshes[i] = FrustumVolumeMeshCache.reshape((FrustumVolumeMesh) meshes[i], lightCam, releasedMeshes);
+        }
+        if (fvm != meshes[level]) {
+            fvm = meshes[level];
+            lightVolume.setMesh(fvm);
+        }
+    }
+
+    /**
+     * Gets the meshes of every level from the cache, lights with the same
+     * frustum shape share them. Procedural grids are shared by all lights of
+     * a resolution.
+     */
+    private void acquireMeshes() {
+        releaseMeshes();
+        meshes = new Mesh[levelCount];
+        for (int i = 0; i < meshes.length; i++) {
+            int size = Math.max(resolution >> i, 1);
+            meshes[i] = proceduralGrid
+                    ? FrustumVolumeMeshCache.acquireGrid(size)
+                    : FrustumVolumeMeshCache.acquire(size, lightCam);
+        }
+        level = Math.min(level, meshes.length - 1);
+        fvm = meshes[level];
+        lightVolume.setMesh(fvm);
+    }
+
+    private void releaseMeshes() {
+        if (meshes != null) {
+            for (Mesh mesh : meshes) {
+                FrustumVolumeMeshCache.release(mesh);
+            }
+            meshes = null;
+            fvm = null;
+        }
+    }
+
+    void initialize(AssetManager manager, RenderManager renderManager, ViewPort vp) {
+        this.assetManager = manager;
+        this.renderManager = renderManager;
+        this.viewPort = vp;
+
+        if (meshes == null) {
+            // re-added after a cleanup
+            acquireMeshes();
+        }
+
+        createShadowRenderer();
+
+        lightVolumeMat = new Material(manager, "MatDefs/VolumetricLighting/VolumetricLight.j3md");
+        lightVolumeMat.getAdditionalRenderState().setWireframe(false); // good for debugging
+        // volumeShadow_mat.setTexture("CookieMap", assetManager.loadTexture("Textures/Cookie2.png")); // Cookie coming soon
+        lightVolumeMat.setVector3("CameraPos", vp.getCamera().getLocation());
+        lightVolumeMat.setFloat("LightIntensity", intensity);
+        lightVolumeMat.setVector2("LinearDepthFactorsCam", getLinearDepthFactors(vp.getCamera()));
+        updateLightParameters();
+
+        lightVolume.setMaterial(lightVolumeMat);
+        shadowVolumeRenderer.setPostShadowMaterial2(lightVolumeMat);
+    }
+
+    private void createShadowRenderer() {
+        if (shadowVolumeRenderer != null) {
+            // reshape or a new number of levels
+            shadowVolumeRenderer.cleanup();
+        }
+        shadowVolumeRenderer = new VolumeLightRenderer(assetManager, resolution, levelCount);
+        shadowVolumeRenderer.setShadowCam(lightCam);
+        shadowVolumeRenderer.setConeCulling(light instanceof SpotLight);
+        shadowVolumeRenderer.setShadowMapCaching(shadowMapCaching);
+        shadowVolumeRenderer.setStats(stats);
+        shadowVolumeRenderer.setCasterIndex(casterIndex);
+        shadowVolumeRenderer.setShadowMapLevel(level);
+        shadowVolumeRenderer.initialize(renderManager, viewPort);
+        if (lightVolumeMat != null) {
+            shadowVolumeRenderer.setPostShadowMaterial2(lightVolumeMat);
+        }
+    }
+
+    /**
+     * Switches the volume mesh, the shadow map and the light camera to the
+     * given level, all of them are ready so nothing gets built here.
+     */
+    private void setLevel(int level) {
+        this.level = level;
+        framesAtLevel = 0;
+        if (meshes != null) {
+            fvm = meshes[level];
+            lightVolume.setMesh(fvm);
+        }
+        int size = Math.max(resolution >> level, 1);
+        lightCam.resize(size, size, false);
+        if (shadowVolumeRenderer != null) {
+            shadowVolumeRenderer.setShadowMapLevel(level);
+        }
+    }
+
+    /**
+     * Lets go of the light when the volume is parked for reuse, setLight
+     * points it at the next one.
+     */
+    void releaseLight() {
+        light = null;
+        stats = null;
+        if (lightVolumeMat != null) {
+            lightVolumeMat.clearParam("LightColor");
+        }
+    }
+
+    private void updateLightParameters() {
+        if (light == null) {
+            // parked, setLight fills these in
+            return;
+        }
+        lightVolumeMat.setMatrix4("LightViewProjectionMatrix", lightCam.getViewProjectionMatrix());
+        lightVolumeMat.setMatrix4("LightViewProjectionInverseMatrix", lightCam.getViewProjectionMatrix().invert());
+        lightVolumeMat.setColor("LightColor", light.getColor());
+        lightVolumeMat.setVector2("LinearDepthFactorsLight", getLinearDepthFactors(lightCam));
+        // this is nasty, but is silly to calculate every frame
+        lightVolumeMat.setVector2("LightNearFar", new Vector2f(lightCam.getFrustumNear(), lightCam.getFrustumFar()));
+        if (proceduralGrid) {
+            lightVolumeMat.setBoolean("Procedural", true);
+            lightVolumeMat.setVector2("FrustumTangents", getFrustumTangents());
+        } else {
+            lightVolumeMat.clearParam("Procedural");
+            lightVolumeMat.clearParam("FrustumTangents");
+        }
+        setFlag("Directional", light instanceof DirectionalLight);
+        setFlag("CubeFace", light instanceof PointLight);
+    }
+
+    // half extents for parallel projections
+    private Vector2f getFrustumTangents() {
+        float scale = lightCam.isParallelProjection() ? 1f : lightCam.getFrustumNear();
+        return new Vector2f(lightCam.getFrustumLeft() / scale, lightCam.getFrustumTop() / scale);
+    }
+
+    private void setFlag(String name, boolean value) {
+        if (value) {
+            lightVolumeMat.setBoolean(name, true);
+        } else {
+            lightVolumeMat.clearParam(name);
+        }
+    }
+
+    /**
+     * Pre calculate the depth linearization factors so they can be passed to
+     * the shader since they rarely change
+     *
+     * @param cam
+     * @return
+     */
+    static Vector2f getLinearDepthFactors(Camera cam) {
+        return getLinearDepthFactors(cam, new Vector2f());
+    }
+
+    static Vector2f getLinearDepthFactors(Camera cam, Vector2f store) {
+        float near = cam.getFrustumNear();
+        float far = cam.getFrustumFar();
+        float a = far / (far - near);
+        float b = far * near / (near - far);
+
+        return store.set(a, b);
+    }
+
+    void preFrame(Camera viewCam) {
+        if (stats != null) {
+            stats.beginPreFrame();
+        }
+        prepareFrame(viewCam);
+        disposeReleasedMeshes();
+        submitShadowMap();
+        if (stats != null) {
+            stats.endPreFrame();
+        }
+    }
+
+    /**
+     * The part of preFrame that only writes this volume, its camera and its
+     * material, and only reads the view camera. The volumes of different
+     * lights can prepare in parallel, the faces of a point light share their
+     * stats and have to prepare one after the other.
+     * {@link #disposeReleasedMeshes()} and {@link #submitShadowMap()} follow
+     * on the render thread.
+     *
+     * @param viewCam
+     */
+    void prepareFrame(Camera viewCam) {
+        if (stats == null) {
+            update(viewCam);
+            return;
+        }
+
+        if (face == 0) {
+            // the faces of a point light share the stats
+            stats.beginFrame();
+        }
+        long start = System.nanoTime();
+        update(viewCam);
+        stats.addCpuTime(VolumeLightStats.Metric.PreFrameCpu, System.nanoTime() - start);
+        stats.addCount(VolumeLightStats.Metric.Culled, culled ? 1 : 0);
+    }
+
+    /**
+     * Frees the meshes the last prepareFrame stopped using, on the render
+     * thread since the GL objects are queued for deletion.
+     */
+    void disposeReleasedMeshes() {
+        for (int i = 0; i < releasedMeshes.size(); i++) {
+            MeshUtil.disposeMesh(releasedMeshes.get(i));
+        }
+        releasedMeshes.clear();
+    }
+
+    /**
+     * Asks the scheduler for a shadow map refresh, with the priority from
+     * the last prepareFrame. The scheduler is shared, so the volumes submit
+     * one after the other, in the same order every frame.
+     */
+    void submitShadowMap() {
+        if (!culled && scheduler != null) {
+            scheduler.submit(this);
+        }
+    }
+
+    private void update(Camera viewCam) {
+        if (light instanceof SpotLight) {
+            updateSpotFrustum();
+        }
+        syncLightCam();
+        if (light instanceof DirectionalLight) {
+            fitDirectional(viewCam);
+        }
+
+        culled = isOutside(viewCam);
+        if (culled) {
+            return;
+        }
+
+        lightVolumeMat.setVector3("CameraPos", viewCam.getLocation());
+        lightVolumeMat.setVector3("LightPos", lightCam.getLocation());
+
+        if (quality != null && ++framesAtLevel >= quality.getSwitchDelay()) {
+            float screenSize = getProjectedSize(viewCam) * viewCam.getHeight();
+            int wanted = quality.selectLevel(resolution, meshes.length, level, screenSize);
+            if (wanted != level) {
+                setLevel(wanted);
+            }
+        }
+
+        if (scheduler != null) {
+            schedulePriority = computeSchedulePriority(viewCam);
+        }
+    }
+
+    /**
+     * How urgent a shadow map refresh is, from the screen coverage of the
+     * volume, its distance and how far the light moved or turned since the
+     * last refresh, scaled up by the frames it has been waiting. Uses the
+     * world bound of the last culling test.
+     */
+    private float computeSchedulePriority(Camera viewCam) {
+        if (!shadowVolumeRenderer.isShadowMapValid()) {
+            return Float.MAX_VALUE;
+        }
+
+        float range = lightCam.getFrustumFar();
+        float distance = Math.max(worldBound.distanceToEdge(viewCam.getLocation()), viewCam.getFrustumNear());
+        float coverage = Math.min(getProjectedSize(viewCam), 1f);
+        float closeness = range / (range + distance);
+
+        lightCam.getDirection(lightDirection);
+        float turned = FastMath.acos(FastMath.clamp(lightDirection.dot(refreshDirection), -1f, 1f));
+        float halfAngle = lightCam.isParallelProjection() ? FastMath.QUARTER_PI
+                : FastMath.atan(FastMath.abs(lightCam.getFrustumTop()) / lightCam.getFrustumNear());
+        float motion = refreshPosition.distance(lightCam.getLocation()) / range + turned / halfAngle;
+
+        float urgency = scheduler.getCoverageWeight() * coverage
+                + scheduler.getDistanceWeight() * closeness
+                + scheduler.getMotionWeight() * motion;
+        return urgency * (1 + framesSinceRefresh);
+    }
+
+    /**
+     * @param viewCam
+     * @return the size of the world bound of the last culling test on
+     * screen, as a fraction of the screen height, more than 1 up close
+     */
+    private float getProjectedSize(Camera viewCam) {
+        float distance = Math.max(worldBound.distanceToEdge(viewCam.getLocation()), viewCam.getFrustumNear());
+        float radius = FastMath.sqrt(worldBound.getXExtent() * worldBound.getXExtent()
+                + worldBound.getYExtent() * worldBound.getYExtent()
+                + worldBound.getZExtent() * worldBound.getZExtent());
+        float tanHalfFov = FastMath.abs(viewCam.getFrustumTop()) / viewCam.getFrustumNear();
+        return radius / (distance * tanHalfFov);
+    }
+
+    /**
+     * Tests the light frustum against the view camera. Plain plane tests
+     * instead of Camera.contains, which writes to the camera and the bound.
+     *
+     * @param viewCam
+     * @return true if the whole volume is outside the view or too far away
+     */
+    private boolean isOutside(Camera viewCam) {
+        // box around the apex and the far plane rectangle of the light
+        // frustum, or around both plane rectangles for a parallel one
+        float far = lightCam.getFrustumFar();
+        float halfWidth = FastMath.abs(lightCam.getFrustumLeft());
+        float halfHeight = FastMath.abs(lightCam.getFrustumTop());
+        if (!lightCam.isParallelProjection()) {
+            halfWidth *= far / lightCam.getFrustumNear();
+            halfHeight *= far / lightCam.getFrustumNear();
+        }
+        lightCam.getDirection(farCenter).multLocal(far).addLocal(lightCam.getLocation());
+        lightCam.getLeft(farLeft).multLocal(halfWidth);
+        lightCam.getUp(farUp).multLocal(halfHeight);
+
+        boundMin.set(FastMath.abs(farLeft.x) + FastMath.abs(farUp.x),
+                FastMath.abs(farLeft.y) + FastMath.abs(farUp.y),
+                FastMath.abs(farLeft.z) + FastMath.abs(farUp.z));
+        if (lightCam.isParallelProjection()) {
+            lightCam.getDirection(nearCenter).multLocal(lightCam.getFrustumNear()).addLocal(lightCam.getLocation());
+            boundMax.set(farCenter).maxLocal(nearCenter).addLocal(boundMin);
+            boundMin.negateLocal().addLocal(farCenter.minLocal(nearCenter));
+        } else {
+            boundMax.set(farCenter).addLocal(boundMin).maxLocal(lightCam.getLocation());
+            boundMin.negateLocal().addLocal(farCenter).minLocal(lightCam.getLocation());
+        }
+        worldBound.setMinMax(boundMin, boundMax);
+
+        if (maxDistance > 0f && worldBound.distanceToEdge(viewCam.getLocation()) > maxDistance) {
+            return true;
+        }
+        for (int i = 0; i < 6; i++) {
+            if (worldBound.whichSide(viewCam.getWorldPlane(i)) == Plane.Side.Negative) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Renders the shadow map of the light.
+     *
+     * @param queue
+     */
+    void postQueue(RenderQueue queue) {
+        grantShadowMap();
+        prepareShadowMap();
+        renderShadowMap();
+    }
+
+    /**
+     * Asks the scheduler whether the shadow map may be refreshed this frame,
+     * on the render thread, the first volume asking hands out the budget.
+     */
+    void grantShadowMap() {
+        shadowMapGranted = scheduler == null || scheduler.isGranted(this);
+        if (!shadowMapGranted) {
+            // keeps the map of the last refresh
+            framesSinceRefresh++;
+        }
+    }
+
+    /**
+     * Gathers the casters of a granted shadow map. Like prepareFrame, the
+     * volumes of different lights can do this in parallel.
+     */
+    void prepareShadowMap() {
+        if (!shadowMapGranted) {
+            return;
+        }
+
+        long start = stats != null ? System.nanoTime() : 0L;
+        shadowVolumeRenderer.prepareShadowMap();
+        framesSinceRefresh = 0;
+        refreshPosition.set(lightCam.getLocation());
+        lightCam.getDirection(refreshDirection);
+        if (stats != null) {
+            stats.addCpuTime(VolumeLightStats.Metric.PostQueueCpu, System.nanoTime() - start);
+            stats.addCount(VolumeLightStats.Metric.Occluders, getOccluderCount());
+        }
+    }
+
+    /**
+     * Renders the casters of the last prepareShadowMap into the shadow map,
+     * if it was granted and needs a refresh. Render thread only.
+     */
+    void renderShadowMap() {
+        if (!shadowMapGranted) {
+            return;
+        }
+
+        long start = stats != null ? System.nanoTime() : 0L;
+        shadowVolumeRenderer.renderPreparedShadowMap();
+        if (stats != null) {
+            stats.addCpuTime(VolumeLightStats.Metric.PostQueueCpu, System.nanoTime() - start);
+            stats.addCount(VolumeLightStats.Metric.ShadowTriangles,
+                    isShadowMapUpdated() ? shadowVolumeRenderer.getCasterTriangleCount() : 0);
+        }
+    }
+
+    /**
+     * Updates the shadow parameters of the volume material, must be called
+     * before the volume is rendered.
+     *
+     * @param sceneBuffer
+     */
+    void postFrame(FrameBuffer sceneBuffer) {
+        long start = stats != null ? System.nanoTime() : 0L;
+        shadowVolumeRenderer.postFrame(sceneBuffer);
+        lightVolumeMat.setTexture("SceneDepthTexture", sceneBuffer.getDepthBuffer().getTexture());
+        if (stats != null) {
+            stats.addCpuTime(VolumeLightStats.Metric.PostFrameCpu, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Renders the light volume into the current frame buffer.
+     *
+     * @param renderManager
+     */
+    void renderVolume(RenderManager renderManager) {
+        renderVolume(renderManager, FaceCullMode.Off);
+    }
+
+    /**
+     * Renders only the back or only the front faces of the light volume, for
+     * buffers without negative values: the back faces of every volume have to
+     * be drawn before the front faces.
+     *
+     * @param renderManager
+     * @param cullMode Front to draw the back faces, Back to draw the front
+     * faces, Off to draw both
+     */
+    void renderVolume(RenderManager renderManager, FaceCullMode cullMode) {
+        syncVolume();
+        lightVolumeMat.getAdditionalRenderState().setFaceCullMode(cullMode);
+
+        if (stats == null) {
+            // renderManager.setForcedTechnique("ShadowVolume");
+            renderManager.renderGeometry(lightVolume);
+            // renderManager.setForcedTechnique(null);
+            return;
+        }
+
+        long start = System.nanoTime();
+        stats.beginVolume(renderManager.getRenderer());
+        renderManager.renderGeometry(lightVolume);
+        stats.endVolume();
+        stats.addCpuTime(VolumeLightStats.Metric.PostFrameCpu, System.nanoTime() - start);
+    }
+
+    /**
+     * Renders the light volume against the scene depth in the depth and
+     * stencil buffer of the current frame buffer, for the same result as
+     * {@link #renderVolume} with fewer fragments. The faces behind the scene
+     * all add the scattering up to the scene depth and cancel out, except
+     * where the scene is inside the volume. So the faces behind are counted
+     * into the stencil first, back faces up and front faces down, then only
+     * the faces in front of the scene are drawn, and the faces behind as
+     * often as the stencil says, which leaves it cleared for the next light.
+     * A volume seen through a wall draws nothing.
+     *
+     * @param renderManager
+     * @param signed false to draw the back faces before the front faces, for
+     * buffers without negative values
+     */
+    void renderVolumeRejected(RenderManager renderManager, boolean signed) {
+        syncVolume();
+        long start = 0L;
+        if (stats != null) {
+            start = System.nanoTime();
+            stats.beginVolume(renderManager.getRenderer());
+        }
+
+        RenderState state = lightVolumeMat.getAdditionalRenderState();
+        state.setDepthTest(true);
+        state.setDepthFunc(TestFunction.LessOrEqual);
+        state.setFaceCullMode(FaceCullMode.Off);
+        state.setColorWrite(false);
+        state.setStencil(true,
+                StencilOperation.Keep, StencilOperation.DecrementWrap, StencilOperation.Keep,
+                StencilOperation.Keep, StencilOperation.IncrementWrap, StencilOperation.Keep,
+                TestFunction.Always, TestFunction.Always);
+        renderManager.renderGeometry(lightVolume);
+
+        state.setColorWrite(true);
+        if (signed) {
+            renderFacesRejected(renderManager, FaceCullMode.Off);
+        } else {
+            renderFacesRejected(renderManager, FaceCullMode.Front);
+            renderFacesRejected(renderManager, FaceCullMode.Back);
+        }
+        state.setDepthTest(false);
+        state.setStencil(false,
+                StencilOperation.Keep, StencilOperation.Keep, StencilOperation.Keep,
+                StencilOperation.Keep, StencilOperation.Keep, StencilOperation.Keep,
+                TestFunction.Always, TestFunction.Always);
+
+        if (stats != null) {
+            stats.endVolume();
+            stats.addCpuTime(VolumeLightStats.Metric.PostFrameCpu, System.nanoTime() - start);
+        }
+    }
+
+    // the faces in front of the scene, then the ones behind it until the
+    // stencil count is back to 0
+    private void renderFacesRejected(RenderManager renderManager, FaceCullMode cullMode) {
+        RenderState state = lightVolumeMat.getAdditionalRenderState();
+        state.setFaceCullMode(cullMode);
+        state.setDepthFunc(TestFunction.LessOrEqual);
+        state.setStencil(true,
+                StencilOperation.Keep, StencilOperation.Keep, StencilOperation.Keep,
+                StencilOperation.Keep, StencilOperation.Keep, StencilOperation.Keep,
+                TestFunction.Always, TestFunction.Always);
+        renderManager.renderGeometry(lightVolume);
+
+        state.setDepthFunc(TestFunction.Greater);
+        state.setStencil(true,
+                StencilOperation.Keep, StencilOperation.Keep, StencilOperation.IncrementWrap,
+                StencilOperation.Keep, StencilOperation.Keep, StencilOperation.DecrementWrap,
+                TestFunction.NotEqual, TestFunction.NotEqual);
+        renderManager.renderGeometry(lightVolume);
+    }
+
+    private void syncVolume() {
+        lightVolume.setLocalTranslation(lightCam.getLocation());
+        lightVolume.setLocalRotation(lightCam.getRotation());
+        lightVolume.updateGeometricState();
+    }
+
+    /**
+     * Adds the light to the froxel grid instead of drawing the volume, with
+     * the same shadow map and parameters.
+     *
+     * @param renderManager
+     * @param froxels the grid, begun for this frame
+     */
+    void injectFroxels(RenderManager renderManager, FroxelVolume froxels) {
+        if (stats == null) {
+            froxels.inject(renderManager, lightVolumeMat, worldBound);
+            return;
+        }
+
+        long start = System.nanoTime();
+        stats.beginVolume(renderManager.getRenderer());
+        froxels.inject(renderManager, lightVolumeMat, worldBound);
+        stats.endVolume();
+        stats.addCpuTime(VolumeLightStats.Metric.PostFrameCpu, System.nanoTime() - start);
+    }
+
+    /**
+     * Releases the shared meshes, the last user of a mesh frees it, and the
+     * shadow maps. The volume can be initialized again later.
+     */
+    void cleanup() {
+        disposeReleasedMeshes();
+        releaseMeshes();
+        if (shadowVolumeRenderer != null) {
+            shadowVolumeRenderer.cleanup();
+            shadowVolumeRenderer = null;
+        }
+        lightVolumeMat = null;
+    }
+
+    /**
+     * @return true if the volume was found outside the view in the last
+     * preFrame, the shadow map and the volume are then skipped
+     */
+    boolean isCulled() {
+        return culled;
+    }
+
+    /**
+     * @return the number of shadow casters in the last shadow map
+     */
+    int getOccluderCount() {
+        return shadowVolumeRenderer != null ? shadowVolumeRenderer.getOccluderCount() : 0;
+    }
+
+    boolean isShadowMapCaching() {
+        return shadowMapCaching;
+    }
+
+    /**
+     * @param shadowMapCaching true to render the shadow map again only when
+     * the light or a caster moved
+     */
+    void setShadowMapCaching(boolean shadowMapCaching) {
+        this.shadowMapCaching = shadowMapCaching;
+        if (shadowVolumeRenderer != null) {
+            shadowVolumeRenderer.setShadowMapCaching(shadowMapCaching);
+        }
+    }
+
+    void invalidateShadowMap() {
+        if (shadowVolumeRenderer != null) {
+            shadowVolumeRenderer.invalidateShadowMap();
+        }
+    }
+
+    /**
+     * @return true if the shadow map was rendered in the last frame, false if
+     * it was culled or the cached map was kept
+     */
+    boolean isShadowMapUpdated() {
+        return !culled && shadowMapGranted && shadowVolumeRenderer != null
+                && shadowVolumeRenderer.isShadowMapUpdated();
+    }
+
+    boolean isProceduralGrid() {
+        return proceduralGrid;
+    }
+
+    /**
+     * @param proceduralGrid true to draw a grid shared by all lights of a
+     * resolution and shaped to the frustum in the vertex shader, instead of a
+     * mesh built for the frustum
+     */
+    void setProceduralGrid(boolean proceduralGrid) {
+        if (this.proceduralGrid == proceduralGrid) {
+            return;
+        }
+        this.proceduralGrid = proceduralGrid;
+        if (meshes != null) {
+            acquireMeshes();
+        }
+        if (lightVolumeMat != null) {
+            updateLightParameters();
+        }
+    }
+
+    VolumeLightQuality getQuality() {
+        return quality;
+    }
+
+    /**
+     * Builds the meshes of the new levels, and the shadow maps once
+     * initialized.
+     *
+     * @param quality the controller picking the resolution, null to keep the
+     * full resolution
+     */
+    void setQuality(VolumeLightQuality quality) {
+        this.quality = quality;
+        levelCount = quality != null ? quality.getLevelCount(resolution) : 1;
+        if (meshes != null) {
+            acquireMeshes();
+        }
+        if (shadowVolumeRenderer != null && shadowVolumeRenderer.getShadowMapLevels() != levelCount) {
+            createShadowRenderer();
+        }
+        setLevel(Math.min(quality != null ? level : 0, levelCount - 1));
+    }
+
+    /**
+     * @return the current level, 0 for the full resolution
+     */
+    int getLevel() {
+        return level;
+    }
+
+    VolumeLightStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @param stats the stats to record into, null to stop measuring
+     */
+    void setStats(VolumeLightStats stats) {
+        this.stats = stats;
+        if (shadowVolumeRenderer != null) {
+            shadowVolumeRenderer.setStats(stats);
+        }
+    }
+
+    ShadowCasterIndex getCasterIndex() {
+        return casterIndex;
+    }
+
+    /**
+     * @param casterIndex the index to query the shadow casters from, updated
+     * by the filter, null to walk the scenes
+     */
+    void setCasterIndex(ShadowCasterIndex casterIndex) {
+        this.casterIndex = casterIndex;
+        if (shadowVolumeRenderer != null) {
+            shadowVolumeRenderer.setCasterIndex(casterIndex);
+        }
+    }
+
+    ShadowMapScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @param scheduler the scheduler sharing out shadow map refreshes, null to
+     * refresh every frame
+     */
+    void setScheduler(ShadowMapScheduler scheduler) {
+        this.scheduler = scheduler;
+        shadowMapGranted = true;
+    }
+
+    float getSchedulePriority() {
+        return schedulePriority;
+    }
+
+    int getScheduleRound() {
+        return scheduleRound;
+    }
+
+    void setScheduleRound(int scheduleRound) {
+        this.scheduleRound = scheduleRound;
+    }
+
+    boolean isShadowMapGranted() {
+        return shadowMapGranted;
+    }
+
+    void setShadowMapGranted(boolean shadowMapGranted) {
+        this.shadowMapGranted = shadowMapGranted;
+    }
+
+    /**
+     * @return the caster triangles of the last rendered shadow map
+     */
+    int getCasterTriangleCount() {
+        return shadowVolumeRenderer.getCasterTriangleCount();
+    }
+
+    float getMaxDistance() {
+        return maxDistance;
+    }
+
+    /**
+     * @param maxDistance the distance from the view camera beyond which the
+     * volume is culled, 0 to disable
+     */
+    void setMaxDistance(float maxDistance) {
+        this.maxDistance = maxDistance;
+    }
+
+    /**
+     * @param intensityOnly true to write the scattering intensity without the
+     * light color, for single channel volume buffers
+     */
+    void setIntensityOnly(boolean intensityOnly) {
+        if (intensityOnly) {
+            lightVolumeMat.setBoolean("IntensityOnly", true);
+        } else {
+            lightVolumeMat.clearParam("IntensityOnly");
+        }
+    }
+
+    Light getLight() {
+        return light;
+    }
+
+    /**
+     * @return the cube face of a point light, 0 for other lights
+     */
+    int getFace() {
+        return face;
+    }
+
+    int getResolution() {
+        return resolution;
+    }
+
+    Camera getLightCam() {
+        return lightCam;
+    }
+
+    float getIntensity() {
+        return intensity;
+    }
+
+    void setIntensity(float intensity) {
+        this.intensity = intensity;
+        if (lightVolumeMat != null) {
+            lightVolumeMat.setFloat("LightIntensity", intensity);
+        }
+    }
+}
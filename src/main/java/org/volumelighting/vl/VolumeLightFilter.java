@@ -8,36 +8,35 @@ import com.jme3.export.InputCapsule;
 import com.jme3.export.JmeExporter;
 import com.jme3.export.JmeImporter;
 import com.jme3.export.OutputCapsule;
+import com.jme3.light.DirectionalLight;
+import com.jme3.light.Light;
+import com.jme3.light.PointLight;
 import com.jme3.light.SpotLight;
 import com.jme3.material.Material;
-import com.jme3.math.FastMath;
-import com.jme3.math.Vector2f;
+import com.jme3.material.RenderState.FaceCullMode;
 import com.jme3.post.Filter;
-import com.jme3.renderer.Camera;
 import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.Renderer;
 import com.jme3.renderer.ViewPort;
 import com.jme3.renderer.queue.RenderQueue;
-import com.jme3.scene.Geometry;
 import com.jme3.scene.Node;
-import com.jme3.scene.Spatial;
 import com.jme3.texture.FrameBuffer;
 import com.jme3.texture.Image.Format;
 
+/**
+ * Volumetric lighting for one spot, point or directional light. A point light
+ * gets a volume and a shadow map per cube face, all drawn into the same
+ * buffer and composited once.
+ */
 public class VolumeLightFilter extends Filter {
 
-    private Filter.Pass lightVolumePass;
-    private RenderManager renderManager;
+    private final VolumeBuffer volumeBuffer = new VolumeBuffer();
     private ViewPort viewPort;
-    private VolumeLightRenderer shadowVolumeRenderer;
 
-    private Material lightVolumeMat;
-    private Geometry lightVolume;
-    private int resolution;
-    private float intensity = 10f;
-
-    private Camera lightCam;
-    private SpotLight light;
-    private FrustumVolumeMesh fvm;
+    // one per cube face for point lights
+    private final VolumeLight[] volumes;
+    private boolean culled = false;
+    private boolean passthrough = false;
 
     /**
      * Constructor.
@@ -45,95 +44,85 @@ public class VolumeLightFilter extends Filter {
      * @param spot
      * @param resolution
      * @param startFrom
-     * @param rootNode
      */
-    public VolumeLightFilter(SpotLight spot, int resolution, float startFrom, Node rootNode) {
-        super("Volumetric Light Filter");
-
-        this.light = spot;
-        this.resolution = resolution;
+    public VolumeLightFilter(SpotLight spot, int resolution, float startFrom) {
+        this(spot, 1, resolution, startFrom);
+    }
 
-        lightCam = new Camera(resolution, resolution);
-        lightCam.setFrustumPerspective(light.getSpotOuterAngle() * FastMath.RAD_TO_DEG * 2.0f, 1, startFrom, light.getSpotRange());
-        lightCam.update();
+    /**
+     * Constructor.
+     *
+     * @param point a light with a radius
+     * @param resolution the size of the shadow map and of the volume grid of
+     * each cube face
+     * @param startFrom the distance from the light where the volume starts
+     */
+    public VolumeLightFilter(PointLight point, int resolution, float startFrom) {
+        this(point, VolumeLight.CUBE_FACES, resolution, startFrom);
+    }
 
-        // !! NEED TO SET METHOD OF LIGHT FRONT PLANE
-        fvm = new FrustumVolumeMesh(resolution, lightCam);
-        lightVolume = new Geometry("fvm", fvm);
-        lightVolume.setIgnoreTransform(false);
-        lightVolume.setCullHint(Spatial.CullHint.Always);
-        rootNode.attachChild(lightVolume); // pretty dirty
+    /**
+     * Constructor. The volume follows the view, the intensity is per world
+     * unit of lit air, so much lower than for the other lights.
+     *
+     * @param sun
+     * @param resolution
+     * @param distance the distance from the view the volume covers
+     */
+    public VolumeLightFilter(DirectionalLight sun, int resolution, float distance) {
+        this(sun, 1, resolution, distance);
+    }
 
-        syncLightCam();
+    private VolumeLightFilter(Light light, int faces, int resolution, float startFrom) {
+        super("Volumetric Light Filter");
+        volumes = new VolumeLight[faces];
+        for (int face = 0; face < faces; face++) {
+            volumes[face] = new VolumeLight(light, face, resolution, startFrom);
+        }
     }
 
-    private void syncLightCam() {
-        lightCam.getRotation().lookAt(light.getDirection(), lightCam.getUp());
-        lightCam.setLocation(light.getPosition());
+    /**
+     * Constructor.
+     * 
+     * @param spot
+     * @param resolution
+     * @param startFrom
+     * @param rootNode not used, the volume is no longer attached to the scene
+     * @deprecated use {@link #VolumeLightFilter(SpotLight, int, float)}
+     */
+    @Deprecated
+    public VolumeLightFilter(SpotLight spot, int resolution, float startFrom, Node rootNode) {
+        this(spot, resolution, startFrom);
     }
 
     @Override
     protected void initFilter(AssetManager manager, RenderManager renderManager, ViewPort vp, int w, int h) {
 
         // System.out.println("Init Filter");
-        shadowVolumeRenderer = new VolumeLightRenderer(manager, resolution);
-        shadowVolumeRenderer.setShadowCam(lightCam);
-        shadowVolumeRenderer.initialize(renderManager, vp);
+        for (VolumeLight volume : volumes) {
+            volume.initialize(manager, renderManager, vp);
+        }
 
-        this.renderManager = renderManager;
         this.viewPort = vp;
 
         postRenderPasses = new ArrayList<Filter.Pass>();
 
-        lightVolumeMat = new Material(manager, "MatDefs/VolumetricLighting/VolumetricLight.j3md");
-        lightVolumeMat.getAdditionalRenderState().setWireframe(false); // good for debugging
-        // volumeShadow_mat.setTexture("CookieMap", assetManager.loadTexture("Textures/Cookie2.png")); // Cookie coming soon
-        lightVolumeMat.setMatrix4("LightViewProjectionMatrix", lightCam.getViewProjectionMatrix());
-        lightVolumeMat.setMatrix4("LightViewProjectionInverseMatrix", lightCam.getViewProjectionMatrix().invert());
-        lightVolumeMat.setVector3("CameraPos", vp.getCamera().getLocation());
-        lightVolumeMat.setColor("LightColor", light.getColor());
-        lightVolumeMat.setFloat("LightIntensity", intensity);
-        lightVolumeMat.setVector2("LinearDepthFactorsLight", getLinearDepthFactors(lightCam));
-        lightVolumeMat.setVector2("LinearDepthFactorsCam", getLinearDepthFactors(vp.getCamera()));
-        // this is nasty, but is silly to calculate every frame
-        lightVolumeMat.setVector2("LightNearFar", new Vector2f(lightCam.getFrustumNear(), fvm.farPlaneGridDistance()));
-
-        lightVolume.setMaterial(lightVolumeMat);
-
-        lightVolumePass = new Filter.Pass() {
-//            @Override
-//            public boolean requiresDepthAsTexture() {
-//                return true;
-//            }
-
-//            @Override
-//            public boolean requiresSceneAsTexture() {
-//                return true;
-//            }
-        };
-
-        lightVolumePass.init(renderManager.getRenderer(), w, h, Format.RGBA32F, Format.Depth, 1, true);
-        // could perhaps change to a more supported format, and render front faces then back
-
         material = new Material(manager, "MatDefs/VolumetricLighting/VolumetricLightFilter.j3md");
-        material.setTexture("LightingVolumeTex", lightVolumePass.getRenderedTexture());
-        shadowVolumeRenderer.setPostShadowMaterial2(lightVolumeMat);
+        volumeBuffer.init(this, manager, renderManager.getRenderer(), vp.getCamera(), w, h, material);
+        applyVolumeFormat();
+        passthrough = false;
     }
 
     /**
-     * Pre calculate the depth linearization factors so they can be passed to
-     * the shader since they rarely change
-     *
-     * @param cam
-     * @return
+     * Frees the shadow maps, the volume buffer and the volume mesh once no
+     * other light shares it. Adding the filter again allocates them again.
      */
-    private Vector2f getLinearDepthFactors(Camera cam) {
-        float near = cam.getFrustumNear();
-        float far = cam.getFrustumFar();
-        float a = far / (far - near);
-        float b = far * near / (near - far);
-
-        return new Vector2f(a, b);
+    @Override
+    protected void cleanUpFilter(Renderer r) {
+        for (VolumeLight volume : volumes) {
+            volume.cleanup();
+        }
+        volumeBuffer.cleanup();
     }
 
     @Override
@@ -148,35 +137,77 @@ public class VolumeLightFilter extends Filter {
 
     @Override
     protected void postQueue(RenderQueue queue) {
-        shadowVolumeRenderer.postQueue(queue);
+        ShadowCasterIndex casterIndex = volumes[0].getCasterIndex();
+        if (casterIndex != null && !culled) {
+            casterIndex.updateFrame(viewPort.getScenes());
+        }
+        for (VolumeLight volume : volumes) {
+            if (!volume.isCulled()) {
+                volume.postQueue(queue);
+            }
+        }
     }
 
     @Override
     protected void postFrame(RenderManager renderManager, ViewPort viewPort, FrameBuffer prevFilterBuffer, FrameBuffer sceneBuffer) {
+        if (culled) {
+            return;
+        }
 
-        shadowVolumeRenderer.postFrame(sceneBuffer);
-
-        renderManager.setCamera(viewPort.getCamera(), false);
-
-        lightVolumeMat.setTexture("SceneDepthTexture", sceneBuffer.getDepthBuffer().getTexture());
+        for (VolumeLight volume : volumes) {
+            if (!volume.isCulled()) {
+                volume.postFrame(sceneBuffer);
+            }
+        }
 
-        // sync volume
-        lightVolume.setLocalTranslation(lightCam.getLocation());
-        lightVolume.setLocalRotation(lightCam.getRotation());
+        volumeBuffer.begin(renderManager, sceneBuffer);
+        if (volumeBuffer.isRejecting()) {
+            for (VolumeLight volume : volumes) {
+                if (!volume.isCulled()) {
+                    volume.renderVolumeRejected(renderManager, volumeBuffer.isSigned());
+                }
+            }
+        } else if (volumeBuffer.isSigned()) {
+            renderVolumes(renderManager, FaceCullMode.Off);
+        } else {
+            // all back faces first, the buffer never goes below zero
+            renderVolumes(renderManager, FaceCullMode.Front);
+            renderVolumes(renderManager, FaceCullMode.Back);
+        }
+        volumeBuffer.end(renderManager, sceneBuffer);
+    }
 
-        renderManager.getRenderer().setFrameBuffer(lightVolumePass.getRenderFrameBuffer());
-        renderManager.getRenderer().clearBuffers(true, true, true);
-        // renderManager.setForcedTechnique("ShadowVolume");
-        renderManager.renderGeometry(lightVolume);
-        // renderManager.setForcedTechnique(null);
+    private void renderVolumes(RenderManager renderManager, FaceCullMode cullMode) {
+        for (VolumeLight volume : volumes) {
+            if (!volume.isCulled()) {
+                volume.renderVolume(renderManager, cullMode);
+            }
+        }
     }
 
     @Override
     protected void preFrame(float tpf) {
-        syncLightCam();
+        if (volumes[0].getQuality() != null) {
+            volumes[0].getQuality().update(tpf);
+        }
+        if (volumes[0].getCasterIndex() != null) {
+            volumes[0].getCasterIndex().beginFrame();
+        }
+        culled = true;
+        for (VolumeLight volume : volumes) {
+            volume.preFrame(viewPort.getCamera());
+            culled &= volume.isCulled();
+        }
 
-        lightVolumeMat.setVector3("CameraPos", viewPort.getCamera().getLocation());
-        lightVolumeMat.setVector3("LightPos", lightCam.getLocation());
+        // the processor always runs the composite, make it a plain copy
+        if (culled != passthrough) {
+            passthrough = culled;
+            material.setBoolean("Passthrough", passthrough);
+        }
+        // follows color changes and a new light
+        if (volumeBuffer.isIntensityOnly()) {
+            material.setColor("LightColor", volumes[0].getLight().getColor());
+        }
     }
 
     @Override
@@ -193,20 +224,289 @@ public class VolumeLightFilter extends Filter {
         // intensity = ic.readFloat("Intensity", 1.0f);
     }
 
+    /**
+     * @return true if the light volume was outside the view this frame and
+     * nothing was rendered for it
+     */
+    public boolean isCulled() {
+        return culled;
+    }
+
+    /**
+     * @return the distance beyond which the light volume is culled
+     */
+    public float getMaxDistance() {
+        return volumes[0].getMaxDistance();
+    }
+
+    /**
+     * @param maxDistance the distance from the camera beyond which the light
+     * volume is culled, 0 (the default) to only cull against the view frustum
+     */
+    public void setMaxDistance(float maxDistance) {
+        for (VolumeLight volume : volumes) {
+            volume.setMaxDistance(maxDistance);
+        }
+    }
+
+    /**
+     * @return true if the shadow map is kept between frames
+     */
+    public boolean isShadowMapCaching() {
+        return volumes[0].isShadowMapCaching();
+    }
+
+    /**
+     * Keeps the shadow map between frames for lights that rarely move. It is
+     * rendered again only when the light moved, or when a shadow caster in the
+     * light frustum moved, was added or was removed.
+     *
+     * @param shadowMapCaching true to enable, false (the default) to render
+     * the shadow map every frame
+     */
+    public void setShadowMapCaching(boolean shadowMapCaching) {
+        for (VolumeLight volume : volumes) {
+            volume.setShadowMapCaching(shadowMapCaching);
+        }
+    }
+
+    /**
+     * @return the scheduler of the shadow map refreshes, null if the map is
+     * refreshed every frame
+     */
+    public ShadowMapScheduler getShadowMapScheduler() {
+        return volumes[0].getScheduler();
+    }
+
+    /**
+     * Lets a scheduler shared by several filters decide in which frames the
+     * shadow map is refreshed. The last shadow map is kept in between.
+     *
+     * @param scheduler the scheduler, null (the default) to refresh every
+     * frame
+     */
+    public void setShadowMapScheduler(ShadowMapScheduler scheduler) {
+        for (VolumeLight volume : volumes) {
+            volume.setScheduler(scheduler);
+        }
+    }
+
+    public ShadowCasterIndex getCasterIndex() {
+        return volumes[0].getCasterIndex();
+    }
+
+    /**
+     * Queries the shadow casters from an index shared with other filters
+     * instead of walking the scene. The first filter to need the index in a
+     * frame updates it before its lights query it.
+     *
+     * @param casterIndex the index, null (the default) to walk the scene
+     */
+    public void setCasterIndex(ShadowCasterIndex casterIndex) {
+        for (VolumeLight volume : volumes) {
+            volume.setCasterIndex(casterIndex);
+        }
+    }
+
+    /**
+     * Forces the cached shadow map to be rendered again, for casters that
+     * change shape without moving, like animated models.
+     */
+    public void invalidateShadowMap() {
+        for (VolumeLight volume : volumes) {
+            volume.invalidateShadowMap();
+        }
+    }
+
+    /**
+     * @return the screen size divisor of the light volume buffer
+     */
+    public int getDownsample() {
+        return volumeBuffer.getDownsample();
+    }
+
+    /**
+     * Renders the light volume at a fraction of the screen resolution, the
+     * result is upsampled with the scene depth. 2 cuts the fragment cost of
+     * the volume by 4, 4 by 16.
+     *
+     * @param downsample the screen size divisor, 1 (the default) for full
+     * resolution
+     */
+    public void setDownsample(int downsample) {
+        volumeBuffer.setDownsample(downsample);
+    }
+
+    public boolean isTemporal() {
+        return volumeBuffer.isTemporal();
+    }
+
+    /**
+     * Accumulates the light volume over frames: each frame is rendered with a
+     * different sub pixel jitter and blended into the reprojected result of
+     * the previous frames. Smooths the aliasing of downsampled volume, so a
+     * higher downsample or a lower grid resolution looks about the same.
+     * Moving lights and occluders leave a short trail.
+     *
+     * @param temporal true to accumulate, false (the default) to show each
+     * frame as rendered
+     */
+    public void setTemporal(boolean temporal) {
+        volumeBuffer.setTemporal(temporal);
+    }
+
+    public boolean isDepthRejection() {
+        return volumeBuffer.isDepthRejection();
+    }
+
+    /**
+     * Tests the light volume against a copy of the scene depth, so the faces
+     * hidden by the scene cost no fragment shading, a volume seen through a
+     * wall nothing at all. The result is the same, the volume is drawn a few
+     * times more, only into a stencil or where it is visible. Pays off with
+     * large volumes behind walls and floors. Needs packed depth and stencil
+     * buffers and a downsample of at most 15, else it is ignored.
+     *
+     * @param depthRejection true to reject the hidden faces, false (the
+     * default) to shade every face
+     */
+    public void setDepthRejection(boolean depthRejection) {
+        volumeBuffer.setDepthRejection(depthRejection);
+    }
+
+    public float getTemporalBlend() {
+        return volumeBuffer.getTemporalBlend();
+    }
+
+    /**
+     * @param temporalBlend the weight of the new frame, 0.1 by default, higher
+     * follows changes faster but smooths less
+     */
+    public void setTemporalBlend(float temporalBlend) {
+        volumeBuffer.setTemporalBlend(temporalBlend);
+    }
+
+    /**
+     * @return the requested format of the light volume buffer
+     */
+    public Format getVolumeFormat() {
+        return volumeBuffer.getFormat();
+    }
+
+    /**
+     * @return the format the light volume buffer was allocated with, which
+     * differs from the requested one when the renderer does not support it,
+     * null before the filter is initialized
+     */
+    public Format getActualVolumeFormat() {
+        return volumeBuffer.getActualFormat();
+    }
+
+    /**
+     * Sets the format of the buffer the light volume is accumulated into.
+     * RGBA16F halves the memory and bandwidth of the default RGBA32F.
+     * RGB111110F and R16F need a quarter of it, R32F or R16F only hold the
+     * intensity and the light color is applied by the composite. Formats the
+     * renderer can not render to fall back to RGBA16F, then RGBA32F.
+     *
+     * @param format RGBA32F (the default), RGBA16F, RGB111110F, R32F or R16F
+     */
+    public void setVolumeFormat(Format format) {
+        volumeBuffer.setFormat(format);
+        if (viewPort != null) {
+            applyVolumeFormat();
+        }
+    }
+
+    private void applyVolumeFormat() {
+        for (VolumeLight volume : volumes) {
+            volume.setIntensityOnly(volumeBuffer.isIntensityOnly());
+        }
+        if (!volumeBuffer.isIntensityOnly()) {
+            material.clearParam("LightColor");
+        }
+    }
+
+    public boolean isProceduralGrid() {
+        return volumes[0].isProceduralGrid();
+    }
+
+    /**
+     * Draws the volume with a grid shared by all lights of a resolution, shaped to
+     * the light frustum in the vertex shader, instead of a mesh built for
+     * each frustum shape. Saves the mesh memory and the rebuilds when lights
+     * with many different angles come and go.
+     *
+     * @param proceduralGrid true for the shared grid, false (the default) for
+     * the frustum meshes
+     */
+    public void setProceduralGrid(boolean proceduralGrid) {
+        for (VolumeLight volume : volumes) {
+            volume.setProceduralGrid(proceduralGrid);
+        }
+    }
+
+    /**
+     * @return the controller picking the resolution, null if fixed
+     */
+    public VolumeLightQuality getQuality() {
+        return volumes[0].getQuality();
+    }
+
+    /**
+     * Lets the volume grid and shadow map resolution follow the size of the
+     * light on screen and the frame time. The resolution given to the
+     * constructor becomes the highest one.
+     *
+     * @param quality the controller, may be shared with other filters, null
+     * (the default) to always use the full resolution
+     */
+    public void setQuality(VolumeLightQuality quality) {
+        for (VolumeLight volume : volumes) {
+            volume.setQuality(quality);
+        }
+    }
+
+    /**
+     * @return the timings and counts of the light, of all its cube faces for
+     * a point light, null unless enabled with
+     * {@link #setStatsEnabled(boolean)}
+     */
+    public VolumeLightStats getStats() {
+        return volumes[0].getStats();
+    }
+
+    /**
+     * Measures the CPU and GPU time of the light and counts its shadow
+     * casters, over the last {@value VolumeLightStats#DEFAULT_WINDOW} frames.
+     *
+     * @param enabled true to measure, false (the default) to drop the stats
+     */
+    public void setStatsEnabled(boolean enabled) {
+        VolumeLightStats stats = null;
+        if (enabled) {
+            stats = volumes[0].getStats() != null ? volumes[0].getStats()
+                    : new VolumeLightStats(VolumeLightStats.DEFAULT_WINDOW, getName());
+        }
+        // shared by the cube faces of a point light
+        for (VolumeLight volume : volumes) {
+            volume.setStats(stats);
+        }
+    }
+
     /**
      * @return the intensity
      */
     public float getIntensity() {
-        return intensity;
+        return volumes[0].getIntensity();
     }
 
     /**
      * @param intensity the intensity to set
      */
     public void setInensity(float intensity) {
-        this.intensity = intensity;
-        if (lightVolumeMat != null) {
-            lightVolumeMat.setFloat("LightIntensity", intensity);
+        for (VolumeLight volume : volumes) {
+            volume.setIntensity(intensity);
         }
     }
 }
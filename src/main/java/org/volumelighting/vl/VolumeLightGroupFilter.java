@@ -0,0 +1,890 @@
+package org.volumelighting.vl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.light.DirectionalLight;
+import com.jme3.light.Light;
+import com.jme3.light.PointLight;
+import com.jme3.light.SpotLight;
+import com.jme3.material.Material;
+import com.jme3.material.RenderState.FaceCullMode;
+import com.jme3.post.Filter;
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.Renderer;
+import com.jme3.renderer.ViewPort;
+import com.jme3.renderer.queue.RenderQueue;
+import com.jme3.scene.Node;
+import com.jme3.texture.FrameBuffer;
+import com.jme3.texture.Image.Format;
+
+/**
+ * Volumetric lighting for any number of spot, point and directional lights in
+ * a single filter. Every light volume is accumulated into one shared buffer,
+ * which is composited over the scene once, instead of one buffer and one full
+ * screen pass per VolumeLightFilter. A point light has one volume per cube
+ * face.
+ *
+ * Lights can be added and removed at any time. The shared buffer is never
+ * reallocated, and the volumes of removed lights are recycled by the next
+ * light added with the same resolution.
+ *
+ * With {@link #setFroxelFog(boolean)} the lights are injected into a camera
+ * aligned froxel grid instead, which is integrated once through a fog that
+ * can vary with height, see {@link FroxelVolume}.
+ *
+ * With {@link #setPreparationPool(ForkJoinPool)} the per light CPU work of a
+ * frame, the culling, the light cameras and the caster gathering, runs in
+ * parallel on a fork/join pool. The render thread waits for it and then
+ * submits the shadow maps and draws the volumes in the order of the lights,
+ * so the frame is the same as without the pool.
+ */
+public class VolumeLightGroupFilter extends Filter {
+
+    private final VolumeBuffer volumeBuffer = new VolumeBuffer();
+    private final FroxelVolume froxels = new FroxelVolume();
+    private boolean froxelFog = false;
+    private int width;
+    private int height;
+    private AssetManager assetManager;
+    private RenderManager renderManager;
+    private ViewPort viewPort;
+
+    private final List<VolumeLight> volumes = new ArrayList<>();
+    private final List<VolumeLight> freeVolumes = new ArrayList<>();
+    private float maxDistance = 0f;
+    private boolean shadowMapCaching = false;
+    private ShadowMapScheduler scheduler;
+    private ShadowCasterIndex casterIndex;
+    private VolumeLightQuality quality;
+    private boolean proceduralGrid = false;
+    private boolean statsEnabled = false;
+    private int culledCount = 0;
+    private boolean passthrough = false;
+    private ForkJoinPool preparationPool;
+    // index of the first volume of every light, then the volume count
+    private int[] lightStarts = new int[1];
+    private int lightCount = 0;
+
+    /**
+     * Constructor.
+     */
+    public VolumeLightGroupFilter() {
+        super("Volumetric Light Group Filter");
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param rootNode not used, the volumes are no longer attached to the
+     * scene
+     * @deprecated use {@link #VolumeLightGroupFilter()}
+     */
+    @Deprecated
+    public VolumeLightGroupFilter(Node rootNode) {
+        this();
+    }
+
+    /**
+     * Adds a light to the group.
+     *
+     * @param spot
+     * @param resolution the size of the shadow map and of the volume grid
+     * @param startFrom the distance from the light where the volume starts
+     */
+    public void addLight(SpotLight spot, int resolution, float startFrom) {
+        addVolumes(spot, 1, resolution, startFrom);
+    }
+
+    /**
+     * Adds a point light to the group, with a volume and a shadow map for
+     * each of the six cube faces.
+     *
+     * @param point a light with a radius
+     * @param resolution the size of the shadow maps and of the volume grids
+     * @param startFrom the distance from the light where the volumes start
+     */
+    public void addLight(PointLight point, int resolution, float startFrom) {
+        addVolumes(point, VolumeLight.CUBE_FACES, resolution, startFrom);
+    }
+
+    /**
+     * Adds a directional light to the group. Its volume follows the view,
+     * the intensity is per world unit of lit air.
+     *
+     * @param sun
+     * @param resolution the size of the shadow map and of the volume grid
+     * @param distance the distance from the view the volume covers
+     */
+    public void addLight(DirectionalLight sun, int resolution, float distance) {
+        addVolumes(sun, 1, resolution, distance);
+    }
+
+    private void addVolumes(Light light, int faces, int resolution, float startFrom) {
+        if (indexOf(light) >= 0) {
+            throw new IllegalArgumentException("Light is already in this group");
+        }
+
+        VolumeLightStats stats = statsEnabled ? createStats(light) : null;
+        for (int face = 0; face < faces; face++) {
+            VolumeLight volume = null;
+            for (int i = 0; i < freeVolumes.size(); i++) {
+                if (freeVolumes.get(i).getResolution() == resolution) {
+                    volume = freeVolumes.remove(i);
+                    volume.setLight(light, face, startFrom);
+                    break;
+                }
+            }
+            if (volume == null) {
+                volume = new VolumeLight(light, face, resolution, startFrom);
+                volume.setMaxDistance(maxDistance);
+                volume.setShadowMapCaching(shadowMapCaching);
+                volume.setScheduler(scheduler);
+                volume.setCasterIndex(casterIndex);
+                volume.setQuality(quality);
+                volume.setProceduralGrid(proceduralGrid);
+                if (viewPort != null) {
+                    volume.initialize(assetManager, renderManager, viewPort);
+                }
+            }
+            volume.setStats(stats);
+            volumes.add(volume);
+        }
+    }
+
+    /**
+     * Removes a light from the group, its volumes are kept for reuse by
+     * lights of the same resolution, see {@link #disposeFreeVolumes()}.
+     *
+     * @param light
+     * @return true if the light was part of the group
+     */
+    public boolean removeLight(Light light) {
+        int index = indexOf(light);
+        if (index < 0) {
+            return false;
+        }
+        while (index < volumes.size() && volumes.get(index).getLight() == light) {
+            VolumeLight volume = volumes.remove(index);
+            volume.releaseLight();
+            freeVolumes.add(volume);
+        }
+        return true;
+    }
+
+    /**
+     * Frees the volumes kept from removed lights, their shadow maps and their
+     * meshes, for when the lights coming next will not reuse them.
+     */
+    public void disposeFreeVolumes() {
+        for (VolumeLight volume : freeVolumes) {
+            volume.cleanup();
+        }
+        freeVolumes.clear();
+    }
+
+    /**
+     * @return the number of lights in the group
+     */
+    public int getLightCount() {
+        int count = 0;
+        for (int i = 0; i < volumes.size(); i++) {
+            if (volumes.get(i).getFace() == 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param light
+     * @param intensity the intensity to set for the given light
+     */
+    public void setIntensity(Light light, float intensity) {
+        for (int i = indexOfChecked(light); i < volumes.size() && volumes.get(i).getLight() == light; i++) {
+            volumes.get(i).setIntensity(intensity);
+        }
+    }
+
+    /**
+     * @return the number of light volumes that were outside the view this
+     * frame and skipped the shadow map, the volume and the composite. A point
+     * light has one volume per cube face.
+     */
+    public int getCulledLightCount() {
+        return culledCount;
+    }
+
+    /**
+     * @return the distance beyond which light volumes are culled
+     */
+    public float getMaxDistance() {
+        return maxDistance;
+    }
+
+    /**
+     * @param maxDistance the distance from the camera beyond which light
+     * volumes are culled, 0 (the default) to only cull against the view frustum
+     */
+    public void setMaxDistance(float maxDistance) {
+        this.maxDistance = maxDistance;
+        for (VolumeLight volume : volumes) {
+            volume.setMaxDistance(maxDistance);
+        }
+        for (VolumeLight volume : freeVolumes) {
+            volume.setMaxDistance(maxDistance);
+        }
+    }
+
+    /**
+     * @return true if the shadow maps are kept between frames
+     */
+    public boolean isShadowMapCaching() {
+        return shadowMapCaching;
+    }
+
+    /**
+     * Keeps the shadow maps between frames. The map of a light is rendered
+     * again only when the light moved, or when a shadow caster in its frustum
+     * moved, was added or was removed.
+     *
+     * @param shadowMapCaching true to enable, false (the default) to render
+     * every shadow map every frame
+     */
+    public void setShadowMapCaching(boolean shadowMapCaching) {
+        this.shadowMapCaching = shadowMapCaching;
+        for (VolumeLight volume : volumes) {
+            volume.setShadowMapCaching(shadowMapCaching);
+        }
+        for (VolumeLight volume : freeVolumes) {
+            volume.setShadowMapCaching(shadowMapCaching);
+        }
+    }
+
+    /**
+     * @return the scheduler of the shadow map refreshes, null if every map is
+     * refreshed every frame
+     */
+    public ShadowMapScheduler getShadowMapScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Spreads the shadow map refreshes of the lights over several frames,
+     * within the budget of the scheduler. Lights that are not refreshed keep
+     * their last shadow map.
+     *
+     * @param scheduler the scheduler, may be shared with other filters, null
+     * (the default) to refresh every shadow map every frame
+     */
+    public void setShadowMapScheduler(ShadowMapScheduler scheduler) {
+        this.scheduler = scheduler;
+        for (VolumeLight volume : volumes) {
+            volume.setScheduler(scheduler);
+        }
+        for (VolumeLight volume : freeVolumes) {
+            volume.setScheduler(scheduler);
+        }
+    }
+
+    /**
+     * Forces the cached shadow map of a light to be rendered again, for
+     * casters that change shape without moving, like animated models.
+     *
+     * @param light
+     */
+    public void invalidateShadowMap(Light light) {
+        for (int i = indexOfChecked(light); i < volumes.size() && volumes.get(i).getLight() == light; i++) {
+            volumes.get(i).invalidateShadowMap();
+        }
+    }
+
+    /**
+     * @return the number of shadow maps rendered this frame, the others were
+     * culled, deferred by the scheduler or kept from an earlier frame
+     */
+    public int getUpdatedShadowMapCount() {
+        int count = 0;
+        for (int i = 0; i < volumes.size(); i++) {
+            if (volumes.get(i).isShadowMapUpdated()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the screen size divisor of the shared light volume buffer
+     */
+    public int getDownsample() {
+        return volumeBuffer.getDownsample();
+    }
+
+    /**
+     * Renders the light volumes at a fraction of the screen resolution, the
+     * result is upsampled with the scene depth. 2 cuts the fragment cost of
+     * the volumes by 4, 4 by 16.
+     *
+     * @param downsample the screen size divisor, 1 (the default) for full
+     * resolution
+     */
+    public void setDownsample(int downsample) {
+        volumeBuffer.setDownsample(downsample);
+    }
+
+    public boolean isTemporal() {
+        return volumeBuffer.isTemporal();
+    }
+
+    /**
+     * Accumulates the light volumes over frames: each frame is rendered with a
+     * different sub pixel jitter and blended into the reprojected result of
+     * the previous frames. Smooths the aliasing of downsampled volumes, so a
+     * higher downsample or a lower grid resolution looks about the same.
+     * Moving lights and occluders leave a short trail. Not used by the froxel
+     * fog.
+     *
+     * @param temporal true to accumulate, false (the default) to show each
+     * frame as rendered
+     */
+    public void setTemporal(boolean temporal) {
+        volumeBuffer.setTemporal(temporal);
+    }
+
+    public boolean isDepthRejection() {
+        return volumeBuffer.isDepthRejection();
+    }
+
+    /**
+     * Tests the light volumes against a copy of the scene depth, so the faces
+     * hidden by the scene cost no fragment shading, a volume seen through a
+     * wall nothing at all. The result is the same, the volumes are drawn a few
+     * times more, only into a stencil or where they are visible. Pays off with
+     * large volumes behind walls and floors. Needs packed depth and stencil
+     * buffers and a downsample of at most 15, else it is ignored.
+     *
+     * @param depthRejection true to reject the hidden faces, false (the
+     * default) to shade every face
+     */
+    public void setDepthRejection(boolean depthRejection) {
+        volumeBuffer.setDepthRejection(depthRejection);
+    }
+
+    public float getTemporalBlend() {
+        return volumeBuffer.getTemporalBlend();
+    }
+
+    /**
+     * @param temporalBlend the weight of the new frame, 0.1 by default, higher
+     * follows changes faster but smooths less
+     */
+    public void setTemporalBlend(float temporalBlend) {
+        volumeBuffer.setTemporalBlend(temporalBlend);
+    }
+
+    /**
+     * @return the requested format of the shared light volume buffer
+     */
+    public Format getVolumeFormat() {
+        return volumeBuffer.getFormat();
+    }
+
+    /**
+     * @return the format the shared buffer was allocated with, which differs
+     * from the requested one when the renderer does not support it, null
+     * before the filter is initialized
+     */
+    public Format getActualVolumeFormat() {
+        return volumeBuffer.getActualFormat();
+    }
+
+    /**
+     * Sets the format of the buffer the light volumes are accumulated into.
+     * RGBA16F halves the memory and bandwidth of the default RGBA32F,
+     * RGB111110F needs a quarter of it but has little precision left when
+     * many bright lights overlap. Formats the renderer can not render to fall
+     * back to RGBA16F, then RGBA32F.
+     *
+     * @param format RGBA32F (the default), RGBA16F or RGB111110F, the single
+     * channel formats can not hold lights of different colors
+     */
+    public void setVolumeFormat(Format format) {
+        if (format == Format.R32F || format == Format.R16F) {
+            throw new IllegalArgumentException("Single channel formats only work for one light, use a VolumeLightFilter");
+        }
+        volumeBuffer.setFormat(format);
+    }
+
+    public boolean isFroxelFog() {
+        return froxelFog;
+    }
+
+    /**
+     * Switches between the two ways of rendering the lights. Froxel fog costs
+     * about the same for any number of overlapping lights and takes a
+     * heterogeneous fog, but is coarser than the volume meshes. The shadow
+     * maps are the same in both modes, downsample and volume format only
+     * apply to the volume meshes.
+     *
+     * @param froxelFog true to inject the lights into a froxel grid, false
+     * (the default) to draw a volume mesh per light
+     */
+    public void setFroxelFog(boolean froxelFog) {
+        if (froxelFog == this.froxelFog) {
+            return;
+        }
+        this.froxelFog = froxelFog;
+        if (viewPort != null) {
+            initBuffers();
+        }
+    }
+
+    /**
+     * Sets the size of the froxel grid, 160 by 90 by 64 by default. The
+     * froxels stretch with the screen, the slices are closer together near
+     * the camera.
+     *
+     * @param width the froxels across the view
+     * @param height the froxels up the view
+     * @param slices the depth slices
+     */
+    public void setFroxelGridSize(int width, int height, int slices) {
+        froxels.setGridSize(width, height, slices);
+    }
+
+    public float getFroxelDistance() {
+        return froxels.getDistance();
+    }
+
+    /**
+     * @param distance the view distance the froxel grid covers, 100 by
+     * default, lights beyond it are not seen in the fog
+     */
+    public void setFroxelDistance(float distance) {
+        froxels.setDistance(distance);
+    }
+
+    public float getFogDensity() {
+        return froxels.getDensity();
+    }
+
+    /**
+     * @param density how much light the fog scatters, 1 by default, which
+     * matches the volume meshes
+     */
+    public void setFogDensity(float density) {
+        froxels.setDensity(density);
+    }
+
+    public float getFogExtinction() {
+        return froxels.getExtinction();
+    }
+
+    /**
+     * @param extinction how much the fog dims the scene and the scattered
+     * light per world unit at density 1, 0 (the default) for no dimming like
+     * the volume meshes
+     */
+    public void setFogExtinction(float extinction) {
+        froxels.setExtinction(extinction);
+    }
+
+    public float getFogHeightFalloff() {
+        return froxels.getHeightFalloff();
+    }
+
+    /**
+     * @param heightFalloff how fast the fog thins out above a height of 0,
+     * the density is scaled by exp(-heightFalloff * y), 0 (the default) for
+     * an even fog
+     */
+    public void setFogHeightFalloff(float heightFalloff) {
+        froxels.setHeightFalloff(heightFalloff);
+    }
+
+    public boolean isProceduralGrid() {
+        return proceduralGrid;
+    }
+
+    /**
+     * Draws the volumes with a grid shared by all lights of a resolution, shaped to
+     * the light frustum in the vertex shader, instead of a mesh built for
+     * each frustum shape. Saves the mesh memory and the rebuilds when lights
+     * with many different angles come and go.
+     *
+     * @param proceduralGrid true for the shared grid, false (the default) for
+     * the frustum meshes
+     */
+    public void setProceduralGrid(boolean proceduralGrid) {
+        this.proceduralGrid = proceduralGrid;
+        for (VolumeLight volume : volumes) {
+            volume.setProceduralGrid(proceduralGrid);
+        }
+        for (VolumeLight volume : freeVolumes) {
+            volume.setProceduralGrid(proceduralGrid);
+        }
+    }
+
+    /**
+     * @return the controller picking the resolutions, null if fixed
+     */
+    public VolumeLightQuality getQuality() {
+        return quality;
+    }
+
+    /**
+     * Lets the volume grid and shadow map resolution of every light follow
+     * its size on screen and the frame time. The resolution a light was added
+     * with becomes its highest one.
+     *
+     * @param quality the controller, may be shared with other filters, null
+     * (the default) to always use the full resolutions
+     */
+    public void setQuality(VolumeLightQuality quality) {
+        this.quality = quality;
+        for (VolumeLight volume : volumes) {
+            volume.setQuality(quality);
+        }
+        for (VolumeLight volume : freeVolumes) {
+            volume.setQuality(quality);
+        }
+    }
+
+    public ShadowCasterIndex getCasterIndex() {
+        return casterIndex;
+    }
+
+    /**
+     * Queries the shadow casters of every light from one index instead of
+     * each light walking the scene, the index is updated once per frame
+     * before, by the first filter sharing it that needs it.
+     *
+     * @param casterIndex the index, null (the default) to walk the scene for
+     * every light
+     */
+    public void setCasterIndex(ShadowCasterIndex casterIndex) {
+        this.casterIndex = casterIndex;
+        for (VolumeLight volume : volumes) {
+            volume.setCasterIndex(casterIndex);
+        }
+        for (VolumeLight volume : freeVolumes) {
+            volume.setCasterIndex(casterIndex);
+        }
+    }
+
+    public ForkJoinPool getPreparationPool() {
+        return preparationPool;
+    }
+
+    /**
+     * Prepares the lights in parallel: every light is culled, has its light
+     * camera and material updated and gathers its shadow casters in a task
+     * of its own. The scene must not change during the frame's preQueue and
+     * postQueue, which holds for the usual update before render.
+     *
+     * With stats and an AppProfiler, the preparation is not reported as a
+     * sub step of every light.
+     *
+     * @param pool the pool to prepare on, for example the common pool, null
+     * (the default) to prepare on the render thread
+     */
+    public void setPreparationPool(ForkJoinPool pool) {
+        this.preparationPool = pool;
+    }
+
+    /**
+     * @param light
+     * @return the timings and counts of the light, of all its cube faces for
+     * a point light, null unless enabled with
+     * {@link #setStatsEnabled(boolean)}
+     */
+    public VolumeLightStats getStats(Light light) {
+        return volumes.get(indexOfChecked(light)).getStats();
+    }
+
+    /**
+     * Measures the CPU and GPU time of every light and counts their shadow
+     * casters, over the last {@value VolumeLightStats#DEFAULT_WINDOW} frames.
+     *
+     * @param enabled true to measure, false (the default) to drop the stats
+     */
+    public void setStatsEnabled(boolean enabled) {
+        statsEnabled = enabled;
+        VolumeLightStats stats = null;
+        for (VolumeLight volume : volumes) {
+            if (!enabled) {
+                volume.setStats(null);
+                continue;
+            }
+            // the faces of a point light follow their first one
+            if (volume.getFace() == 0) {
+                stats = volume.getStats() != null ? volume.getStats() : createStats(volume.getLight());
+            }
+            volume.setStats(stats);
+        }
+    }
+
+    private VolumeLightStats createStats(Light light) {
+        String name = light.getName() != null ? light.getName()
+                : light.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(light));
+        return new VolumeLightStats(VolumeLightStats.DEFAULT_WINDOW, getName(), name);
+    }
+
+    // the first volume of the light, the faces of a point light follow it
+    private int indexOf(Light light) {
+        for (int i = 0; i < volumes.size(); i++) {
+            if (volumes.get(i).getLight() == light) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOfChecked(Light light) {
+        int index = indexOf(light);
+        if (index < 0) {
+            throw new IllegalArgumentException("Light is not in this group");
+        }
+        return index;
+    }
+
+    @Override
+    protected void initFilter(AssetManager manager, RenderManager renderManager, ViewPort vp, int w, int h) {
+        this.assetManager = manager;
+        this.renderManager = renderManager;
+        this.viewPort = vp;
+
+        for (VolumeLight volume : volumes) {
+            volume.initialize(manager, renderManager, vp);
+        }
+        for (VolumeLight volume : freeVolumes) {
+            volume.initialize(manager, renderManager, vp);
+        }
+
+        postRenderPasses = new ArrayList<Filter.Pass>();
+
+        material = new Material(manager, "MatDefs/VolumetricLighting/VolumetricLightFilter.j3md");
+        width = w;
+        height = h;
+        initBuffers();
+    }
+
+    // only the buffers of the current mode are allocated
+    private void initBuffers() {
+        if (froxelFog) {
+            volumeBuffer.cleanup();
+            froxels.init(this, assetManager, renderManager.getRenderer(), material);
+        } else {
+            froxels.cleanup();
+            volumeBuffer.init(this, assetManager, renderManager.getRenderer(), viewPort.getCamera(), width, height, material);
+        }
+        passthrough = false;
+        material.clearParam("Passthrough");
+    }
+
+    /**
+     * Frees the shadow maps, the volume buffer and the volume meshes no other
+     * light shares. Adding the filter again allocates them again.
+     */
+    @Override
+    protected void cleanUpFilter(Renderer r) {
+        for (VolumeLight volume : volumes) {
+            volume.cleanup();
+        }
+        for (VolumeLight volume : freeVolumes) {
+            volume.cleanup();
+        }
+        volumeBuffer.cleanup();
+        froxels.cleanup();
+        viewPort = null;
+    }
+
+    @Override
+    protected Material getMaterial() {
+        return material;
+    }
+
+    @Override
+    protected boolean isRequiresDepthTexture() {
+        return true;
+    }
+
+    @Override
+    protected void preFrame(float tpf) {
+        if (quality != null) {
+            quality.update(tpf);
+        }
+        if (casterIndex != null) {
+            casterIndex.beginFrame();
+        }
+
+        culledCount = 0;
+        if (preparationPool != null) {
+            findLightStarts();
+            preparationPool.invoke(new PrepareTask(false, 0, lightCount));
+        }
+        for (int i = 0; i < volumes.size(); i++) {
+            VolumeLight volume = volumes.get(i);
+            if (preparationPool != null) {
+                volume.disposeReleasedMeshes();
+                volume.submitShadowMap();
+            } else {
+                volume.preFrame(viewPort.getCamera());
+            }
+            if (volume.isCulled()) {
+                culledCount++;
+            }
+        }
+
+        // the processor always runs the composite, make it a plain copy, a fog
+        // dims the scene even without lights
+        boolean nothingVisible = culledCount == volumes.size()
+                && (!froxelFog || froxels.getExtinction() == 0f);
+        if (nothingVisible != passthrough) {
+            passthrough = nothingVisible;
+            material.setBoolean("Passthrough", passthrough);
+        }
+    }
+
+    @Override
+    protected void postQueue(RenderQueue queue) {
+        if (casterIndex != null && culledCount < volumes.size()) {
+            casterIndex.updateFrame(viewPort.getScenes());
+        }
+        if (preparationPool == null) {
+            for (int i = 0; i < volumes.size(); i++) {
+                VolumeLight volume = volumes.get(i);
+                if (!volume.isCulled()) {
+                    volume.postQueue(queue);
+                }
+            }
+            return;
+        }
+
+        findLightStarts();
+        for (int i = 0; i < volumes.size(); i++) {
+            VolumeLight volume = volumes.get(i);
+            if (!volume.isCulled()) {
+                volume.grantShadowMap();
+            }
+        }
+        preparationPool.invoke(new PrepareTask(true, 0, lightCount));
+        for (int i = 0; i < volumes.size(); i++) {
+            VolumeLight volume = volumes.get(i);
+            if (!volume.isCulled()) {
+                volume.renderShadowMap();
+            }
+        }
+    }
+
+    // the faces of a point light share their stats, a light is one task
+    private void findLightStarts() {
+        if (lightStarts.length < volumes.size() + 1) {
+            lightStarts = new int[volumes.size() + 1];
+        }
+        lightCount = 0;
+        for (int i = 0; i < volumes.size(); i++) {
+            if (volumes.get(i).getFace() == 0) {
+                lightStarts[lightCount++] = i;
+            }
+        }
+        lightStarts[lightCount] = volumes.size();
+    }
+
+    @Override
+    protected void postFrame(RenderManager renderManager, ViewPort viewPort, FrameBuffer prevFilterBuffer, FrameBuffer sceneBuffer) {
+        if (passthrough) {
+            return;
+        }
+
+        for (int i = 0; i < volumes.size(); i++) {
+            VolumeLight volume = volumes.get(i);
+            if (!volume.isCulled()) {
+                volume.postFrame(sceneBuffer);
+            }
+        }
+
+        if (froxelFog) {
+            froxels.begin(renderManager, viewPort.getCamera());
+            for (int i = 0; i < volumes.size(); i++) {
+                VolumeLight volume = volumes.get(i);
+                if (!volume.isCulled()) {
+                    volume.injectFroxels(renderManager, froxels);
+                }
+            }
+            froxels.integrate(renderManager);
+            return;
+        }
+
+        // every volume adds into the same buffer, composited once by the filter material
+        volumeBuffer.begin(renderManager, sceneBuffer);
+        if (volumeBuffer.isRejecting()) {
+            // the stencil count of a light is used up before the next one
+            for (int i = 0; i < volumes.size(); i++) {
+                VolumeLight volume = volumes.get(i);
+                if (!volume.isCulled()) {
+                    volume.renderVolumeRejected(renderManager, volumeBuffer.isSigned());
+                }
+            }
+        } else if (volumeBuffer.isSigned()) {
+            renderVolumes(FaceCullMode.Off);
+        } else {
+            // all back faces first, the buffer never goes below zero
+            renderVolumes(FaceCullMode.Front);
+            renderVolumes(FaceCullMode.Back);
+        }
+        volumeBuffer.end(renderManager, sceneBuffer);
+    }
+
+    private void renderVolumes(FaceCullMode cullMode) {
+        for (int i = 0; i < volumes.size(); i++) {
+            VolumeLight volume = volumes.get(i);
+            if (!volume.isCulled()) {
+                volume.renderVolume(renderManager, cullMode);
+            }
+        }
+    }
+
+    /**
+     * Prepares a range of lights, split in halves down to single lights. The
+     * volumes only write their own state, so the result does not depend on
+     * how the tasks are spread over the threads.
+     */
+    @SuppressWarnings("serial")
+    private final class PrepareTask extends RecursiveAction {
+
+        private final boolean shadowMaps;
+        private final int from;
+        private final int to;
+
+        private PrepareTask(boolean shadowMaps, int from, int to) {
+            this.shadowMaps = shadowMaps;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new PrepareTask(shadowMaps, from, middle),
+                        new PrepareTask(shadowMaps, middle, to));
+                return;
+            }
+
+            for (int light = from; light < to; light++) {
+                for (int i = lightStarts[light]; i < lightStarts[light + 1]; i++) {
+                    VolumeLight volume = volumes.get(i);
+                    if (!shadowMaps) {
+                        volume.prepareFrame(viewPort.getCamera());
+                    } else if (!volume.isCulled()) {
+                        volume.prepareShadowMap();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package org.volumelighting.vl;
+
+/**
+ * Picks the volume grid and shadow map resolution of each light from its size
+ * on screen, within a frame time budget.
+ *
+ * Every light gets levels from its full resolution down to the minimum
+ * resolution, halving each time. The meshes and shadow maps of all levels
+ * are built when the light is set up, switching is then only a matter of
+ * which one is drawn. A light aims for one grid cell every few pixels of its
+ * projected size, scaled down while the frames take longer than the target,
+ * and only changes level once the wanted resolution is well past the middle
+ * between two levels.
+ *
+ * One instance can be shared by several filters.
+ */
+public class VolumeLightQuality {
+
+    private float targetFrameTime = 1f / 60f;
+    private float pixelsPerCell = 4f;
+    private int minResolution = 32;
+    private float minScale = 0.25f;
+    private float hysteresis = 0.25f;
+    private int switchDelay = 10;
+
+    private float scale = 1f;
+    private float frameTime = -1f;
+    private long lastUpdate = 0L;
+
+    /**
+     * Follows the frame time, called by the filters in preFrame. Calls after
+     * the first one of a frame are ignored, so filters sharing the instance
+     * do not speed it up.
+     *
+     * @param tpf
+     */
+    void update(float tpf) {
+        long now = System.nanoTime();
+        if (now - lastUpdate < (long) (tpf * 0.5e9f)) {
+            return;
+        }
+        lastUpdate = now;
+
+        // smoothed so single spikes do not drop the quality
+        frameTime = frameTime < 0f ? tpf : frameTime + (tpf - frameTime) * 0.1f;
+        if (frameTime > targetFrameTime * 1.05f) {
+            scale = Math.max(scale * 0.97f, minScale);
+        } else if (frameTime < targetFrameTime * 0.9f) {
+            scale = Math.min(scale * 1.01f, 1f);
+        }
+    }
+
+    /**
+     * @param resolution the full resolution of a light
+     * @return the number of levels of a light of this resolution
+     */
+    int getLevelCount(int resolution) {
+        int levels = 1;
+        while ((resolution >> levels) >= minResolution) {
+            levels++;
+        }
+        return levels;
+    }
+
+    /**
+     * @param resolution the full resolution of the light
+     * @param levels the number of levels of the light
+     * @param level the current level
+     * @param screenSize the projected size of the light volume in pixels
+     * @return the level to use
+     */
+    int selectLevel(int resolution, int levels, int level, float screenSize) {
+        float wanted = Math.max(screenSize / pixelsPerCell * scale, 1f);
+        // continuous level, 0 at full resolution
+        float ideal = (float) (Math.log(resolution / wanted) / Math.log(2));
+        if (ideal > level + 0.5f + hysteresis) {
+            level = Math.round(ideal);
+        } else if (ideal < level - 0.5f - hysteresis) {
+            level = Math.round(ideal);
+        }
+        return Math.min(Math.max(level, 0), levels - 1);
+    }
+
+    /**
+     * @return the quality scale from the frame time, 1 when within budget
+     */
+    public float getScale() {
+        return scale;
+    }
+
+    public float getTargetFrameTime() {
+        return targetFrameTime;
+    }
+
+    /**
+     * @param targetFrameTime the frame time in seconds to stay under, 1/60 by
+     * default
+     */
+    public void setTargetFrameTime(float targetFrameTime) {
+        this.targetFrameTime = targetFrameTime;
+    }
+
+    public float getPixelsPerCell() {
+        return pixelsPerCell;
+    }
+
+    /**
+     * @param pixelsPerCell the projected size in pixels of a grid cell and of
+     * a shadow map texel at full quality, 4 by default
+     */
+    public void setPixelsPerCell(float pixelsPerCell) {
+        this.pixelsPerCell = pixelsPerCell;
+    }
+
+    public int getMinResolution() {
+        return minResolution;
+    }
+
+    /**
+     * Only applies to lights the quality is set on afterwards, the others keep
+     * their levels.
+     *
+     * @param minResolution the lowest resolution a light goes down to, 32 by
+     * default
+     */
+    public void setMinResolution(int minResolution) {
+        this.minResolution = minResolution;
+    }
+
+    public float getMinScale() {
+        return minScale;
+    }
+
+    /**
+     * @param minScale how far the frame time may scale the resolutions down,
+     * 0.25 by default
+     */
+    public void setMinScale(float minScale) {
+        this.minScale = minScale;
+    }
+
+    public float getHysteresis() {
+        return hysteresis;
+    }
+
+    /**
+     * @param hysteresis how far past the middle between two levels, in
+     * levels, the wanted resolution has to be to switch, 0.25 by default
+     */
+    public void setHysteresis(float hysteresis) {
+        this.hysteresis = hysteresis;
+    }
+
+    public int getSwitchDelay() {
+        return switchDelay;
+    }
+
+    /**
+     * @param switchDelay the frames a light keeps a level before it may
+     * switch again, 10 by default
+     */
+    public void setSwitchDelay(int switchDelay) {
+        this.switchDelay = switchDelay;
+    }
+}
@@ -1,9 +1,13 @@
 package org.volumelighting.vl;
 
 import com.jme3.asset.AssetManager;
+import com.jme3.bounding.BoundingBox;
+import com.jme3.bounding.BoundingSphere;
+import com.jme3.bounding.BoundingVolume;
 import com.jme3.light.SpotLight;
 import com.jme3.material.Material;
 import com.jme3.math.Matrix4f;
+import com.jme3.math.Quaternion;
 import com.jme3.math.Vector3f;
 import com.jme3.renderer.Camera;
 import com.jme3.renderer.RenderManager;
@@ -13,9 +17,7 @@ import com.jme3.renderer.queue.GeometryList;
 import com.jme3.renderer.queue.OpaqueComparator;
 import com.jme3.renderer.queue.RenderQueue;
 import com.jme3.scene.Geometry;
-import com.jme3.scene.Spatial;
 import com.jme3.shadow.AbstractShadowRenderer;
-import com.jme3.shadow.ShadowUtil;
 import com.jme3.texture.FrameBuffer;
 import com.jme3.texture.Image;
 import com.jme3.texture.Texture2D;
@@ -36,6 +38,9 @@ public class VolumeLightRenderer extends AbstractShadowRenderer {
     private ViewPort viewPort;
     private FrameBuffer shadowFB;
     public Texture2D shadowMap;
+    private final FrameBuffer[] shadowFBs;
+    private final Texture2D[] shadowMaps;
+    private int shadowMapLevel = 0;
     private Camera shadowCam;
     private Material preshadowMat;
     private Material postshadowMat;
@@ -45,6 +50,9 @@ public class VolumeLightRenderer extends AbstractShadowRenderer {
     private Vector3f direction = new Vector3f();
 
     private SpotLight spot;
+    private final OccluderCuller occluderCuller = new OccluderCuller();
+    private boolean coneCulling = true;
+    private ShadowCasterIndex casterIndex;
 
     /**
      * Creates a BasicShadowRenderer
@@ -53,9 +61,29 @@ public class VolumeLightRenderer extends AbstractShadowRenderer {
      * @param size the size of the shadow map (the map is square)
      */
     public VolumeLightRenderer(AssetManager manager, int size) {
-        shadowFB = new FrameBuffer(size, size, 1);
-        shadowMap = new Texture2D(size, size, Image.Format.Depth);
-        shadowFB.setDepthTexture(shadowMap);
+        this(manager, size, 1);
+    }
+
+    /**
+     * Creates a renderer with shadow maps of several sizes, allocated up
+     * front so switching between them never stalls.
+     *
+     * @param manager the asset manager
+     * @param size the size of the largest shadow map (the map is square)
+     * @param levels the number of shadow maps, each half the size of the
+     * previous one
+     */
+    public VolumeLightRenderer(AssetManager manager, int size, int levels) {
+        shadowFBs = new FrameBuffer[levels];
+        shadowMaps = new Texture2D[levels];
+        for (int i = 0; i < levels; i++) {
+            int levelSize = Math.max(size >> i, 1);
+            shadowFBs[i] = new FrameBuffer(levelSize, levelSize, 1);
+            shadowMaps[i] = new Texture2D(levelSize, levelSize, Image.Format.Depth);
+            shadowFBs[i].setDepthTexture(shadowMaps[i]);
+        }
+        shadowFB = shadowFBs[0];
+        shadowMap = shadowMaps[0];
 
         preshadowMat = new Material(manager, "Common/MatDefs/Shadow/PreShadow.j3md");
         dispPic.setTexture(manager, shadowMap, false);
@@ -98,24 +126,56 @@ public class VolumeLightRenderer extends AbstractShadowRenderer {
         // shadowCam.updateViewProjection();
     }
 
-    protected GeometryList sceneReceivers;
+    // reused every frame, postQueue must not allocate
+    private final GeometryList occluders = new GeometryList(new OpaqueComparator());
+    protected final GeometryList sceneReceivers = new GeometryList(new OpaqueComparator());
 
     @Override
     public void postQueue(RenderQueue rq) {
+        prepareShadowMap();
+        renderPreparedShadowMap();
+    }
 
-        GeometryList occluders = new GeometryList(new OpaqueComparator()); // rq.getShadowQueueContent(RenderQueue.ShadowMode.Cast);
-        sceneReceivers = new GeometryList(new OpaqueComparator()); // rq.getShadowQueueContent(RenderQueue.ShadowMode.Receive);
+    /**
+     * The CPU half of postQueue: gathers the casters and decides whether the
+     * shadow map needs a render. Only reads the scene and writes this
+     * renderer, so the renderers of several lights can prepare in parallel.
+     */
+    public void prepareShadowMap() {
+        occluders.clear(); // rq.getShadowQueueContent(RenderQueue.ShadowMode.Cast);
+        sceneReceivers.clear(); // rq.getShadowQueueContent(RenderQueue.ShadowMode.Receive);
 //        if (sceneReceivers.size() == 0 || occluders.size() == 0) {
 //            return;
 //        }
 
         updateCam(viewPort.getCamera());
 
+        int shadowMapIndex = 0;
+        shadowMapOccluders.clear();
+        getOccludersToRender(shadowMapIndex, shadowMapOccluders);
+        occluderCount = shadowMapOccluders.size();
+
+        shadowMapUpdated = !shadowMapCaching || isShadowMapDirty();
+        if (!shadowMapUpdated) {
+            // nothing moved, the depth map of the last render is still right
+            shadowMapOccluders.clear();
+        }
+    }
+
+    /**
+     * The GL half of postQueue, renders the casters of the last
+     * {@link #prepareShadowMap()} if the map needs it. Render thread only.
+     */
+    public void renderPreparedShadowMap() {
+        if (!shadowMapUpdated) {
+            return;
+        }
+
+        int shadowMapIndex = 0;
         Renderer r = renderManager.getRenderer();
         renderManager.setForcedMaterial(preshadowMat);
         renderManager.setForcedTechnique("PreShadow");
 
-        int shadowMapIndex = 0;
         renderShadowMap(shadowMapIndex, occluders, sceneReceivers);
 
         // restore setting for future rendering
@@ -126,20 +186,40 @@ public class VolumeLightRenderer extends AbstractShadowRenderer {
     }
 
     private Matrix4f lightViewProjectionsMatrix = new Matrix4f();
-    private GeometryList shadowMapOccluders = new GeometryList(new OpaqueComparator());
+    private final GeometryList shadowMapOccluders = new GeometryList(new OpaqueComparator());
+    private int occluderCount;
 
-    protected void renderShadowMap(int shadowMapIndex, GeometryList occluders, GeometryList receivers) {
-        shadowMapOccluders = getOccludersToRender(shadowMapIndex, occluders);
+    private boolean shadowMapCaching = false;
+    private boolean shadowMapValid = false;
+    private boolean shadowMapUpdated = false;
+    private long casterChecksum;
+    private int casterTriangleCount;
+    private VolumeLightStats stats;
 
+    /**
+     * Renders the casters gathered by postQueue into the shadow map.
+     */
+    protected void renderShadowMap(int shadowMapIndex, GeometryList occluders, GeometryList receivers) {
         // saving light view projection matrix for this split
         lightViewProjectionsMatrix.set(shadowCam.getViewProjectionMatrix());
+        shadowMapValid = true;
+        casterTriangleCount = 0;
+        for (int i = 0; i < shadowMapOccluders.size(); i++) {
+            casterTriangleCount += shadowMapOccluders.get(i).getTriangleCount();
+        }
         renderManager.setCamera(shadowCam, false);
 
         renderManager.getRenderer().setFrameBuffer(shadowFB);
         renderManager.getRenderer().clearBuffers(false, true, false);
 
         // render shadow casters to shadow map
+        if (stats != null) {
+            stats.beginShadowMap(renderManager.getRenderer());
+        }
         viewPort.getQueue().renderShadowQueue(shadowMapOccluders, renderManager, shadowCam, true);
+        if (stats != null) {
+            stats.endShadowMap();
+        }
 
     }
 
@@ -154,21 +234,198 @@ public class VolumeLightRenderer extends AbstractShadowRenderer {
             Geometry g = inputGeometryList.get(i);
             int planeState = camera.getPlaneState();
             camera.setPlaneState(0);
-            // if (camera.contains(g.getWorldBound()) != Camera.FrustumIntersect.Outside) {
-            outputGeometryList.add(g);
-            // }
+            if (camera.contains(g.getWorldBound()) != Camera.FrustumIntersect.Outside) {
+                outputGeometryList.add(g);
+            }
             camera.setPlaneState(planeState);
         }
     }
 
     @Override
     protected GeometryList getOccludersToRender(int shadowMapIndex, GeometryList shadowMapOccluders) {
-        for (Spatial scene : viewPort.getScenes()) {
-            ShadowUtil.getGeometriesInCamFrustum(scene, shadowCam, RenderQueue.ShadowMode.Cast, shadowMapOccluders);
+        // frustum and cone culling, whole subtrees are skipped by their bound
+        occluderCuller.setLightCamera(shadowCam, coneCulling);
+        if (casterIndex != null) {
+            occluderCuller.cull(casterIndex, shadowMapOccluders);
+            return shadowMapOccluders;
+        }
+        for (int i = 0; i < viewPort.getScenes().size(); i++) {
+            occluderCuller.cull(viewPort.getScenes().get(i), shadowMapOccluders);
         }
         return shadowMapOccluders;
     }
 
+    /**
+     * @param coneCulling true to also reject casters outside the cone
+     * inscribed in the shadow camera frustum, for spot lights
+     */
+    public void setConeCulling(boolean coneCulling) {
+        this.coneCulling = coneCulling;
+    }
+
+    public ShadowCasterIndex getCasterIndex() {
+        return casterIndex;
+    }
+
+    /**
+     * @param casterIndex the index to query the casters from, it has to be
+     * updated for the frame before postQueue, null to walk the scenes of the
+     * viewport
+     */
+    public void setCasterIndex(ShadowCasterIndex casterIndex) {
+        this.casterIndex = casterIndex;
+    }
+
+    /**
+     * @return the number of shadow casters rendered in the last shadow map
+     */
+    public int getOccluderCount() {
+        return occluderCount;
+    }
+
+    /**
+     * @return the number of spatials rejected by the last caster gathering, a
+     * rejected node counts once for its whole subtree
+     */
+    public int getCulledOccluderCount() {
+        return occluderCuller.getCulledCount();
+    }
+
+    /**
+     * In caching mode the shadow map is only rendered again when the light
+     * moved, or when a caster in the light frustum moved, was added or was
+     * removed. Casters that change shape without changing their bound, like
+     * animated meshes, need {@link #invalidateShadowMap()}.
+     *
+     * @param shadowMapCaching true to keep the shadow map between frames
+     */
+    public void setShadowMapCaching(boolean shadowMapCaching) {
+        this.shadowMapCaching = shadowMapCaching;
+        shadowMapValid = false;
+    }
+
+    /**
+     * @return true if the shadow map is kept between frames
+     */
+    public boolean isShadowMapCaching() {
+        return shadowMapCaching;
+    }
+
+    /**
+     * Forces the shadow map to be rendered again on the next frame.
+     */
+    public void invalidateShadowMap() {
+        shadowMapValid = false;
+    }
+
+    /**
+     * @return true if the shadow map was rendered in the last postQueue,
+     * false if the cached one was kept
+     */
+    public boolean isShadowMapUpdated() {
+        return shadowMapUpdated;
+    }
+
+    /**
+     * @return the number of shadow map sizes
+     */
+    public int getShadowMapLevels() {
+        return shadowFBs.length;
+    }
+
+    public int getShadowMapLevel() {
+        return shadowMapLevel;
+    }
+
+    /**
+     * Switches to another of the preallocated shadow maps. The shadow camera
+     * has to be resized to match, the new map is rendered on the next frame.
+     *
+     * @param level 0 for the largest map, each level halves the size
+     */
+    public void setShadowMapLevel(int level) {
+        if (level == shadowMapLevel) {
+            return;
+        }
+        shadowMapLevel = level;
+        shadowFB = shadowFBs[level];
+        shadowMap = shadowMaps[level];
+        if (postshadowMat != null) {
+            postshadowMat.setTexture("ShadowDepthMap", shadowMap);
+        }
+        shadowMapValid = false;
+    }
+
+    public VolumeLightStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @param stats the stats to time the shadow map render into, null to not
+     * time it
+     */
+    public void setStats(VolumeLightStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * @return false if the shadow map was never rendered or was invalidated
+     * since
+     */
+    public boolean isShadowMapValid() {
+        return shadowMapValid;
+    }
+
+    /**
+     * @return the number of caster triangles in the last rendered shadow map
+     */
+    public int getCasterTriangleCount() {
+        return casterTriangleCount;
+    }
+
+    private boolean isShadowMapDirty() {
+        long checksum = computeCasterChecksum(shadowMapOccluders);
+        boolean casterChanged = checksum != casterChecksum;
+        casterChecksum = checksum;
+        return casterChanged || !shadowMapValid
+                || !lightViewProjectionsMatrix.equals(shadowCam.getViewProjectionMatrix());
+    }
+
+    /**
+     * Hash of the caster list, their identity, world bound and rotation. The
+     * list comes from a fixed scene traversal, so it is stable while nothing
+     * changes.
+     */
+    private static long computeCasterChecksum(GeometryList casters) {
+        long hash = casters.size();
+        for (int i = 0; i < casters.size(); i++) {
+            Geometry g = casters.get(i);
+            hash = 31 * hash + System.identityHashCode(g);
+
+            BoundingVolume bv = g.getWorldBound();
+            Vector3f center = bv.getCenter();
+            hash = 31 * hash + Float.floatToIntBits(center.x);
+            hash = 31 * hash + Float.floatToIntBits(center.y);
+            hash = 31 * hash + Float.floatToIntBits(center.z);
+            if (bv instanceof BoundingBox) {
+                BoundingBox box = (BoundingBox) bv;
+                hash = 31 * hash + Float.floatToIntBits(box.getXExtent());
+                hash = 31 * hash + Float.floatToIntBits(box.getYExtent());
+                hash = 31 * hash + Float.floatToIntBits(box.getZExtent());
+            } else if (bv instanceof BoundingSphere) {
+                hash = 31 * hash + Float.floatToIntBits(((BoundingSphere) bv).getRadius());
+            }
+
+            // turning in place does not always change the bound
+            Quaternion rot = g.getWorldRotation();
+            hash = 31 * hash + Float.floatToIntBits(rot.getX());
+            hash = 31 * hash + Float.floatToIntBits(rot.getY());
+            hash = 31 * hash + Float.floatToIntBits(rot.getZ());
+            hash = 31 * hash + Float.floatToIntBits(rot.getW());
+        }
+        return hash;
+    }
+
     @Override
     public void initialize(RenderManager rm, ViewPort vp) {
         renderManager = rm;
@@ -301,7 +558,9 @@ public class VolumeLightRenderer extends AbstractShadowRenderer {
     public void postFrame(FrameBuffer out) {
         // showPic();
         if (!noOccluders) {
-            postshadowMat.setMatrix4("LightViewProjectionMatrix", shadowCam.getViewProjectionMatrix());
+            // the matrix the map was rendered with, which is older than the
+            // light camera when the map was cached or its refresh deferred
+            postshadowMat.setMatrix4("LightViewProjectionMatrix", lightViewProjectionsMatrix);
 //            renderManager.setForcedMaterial(postshadowMat);
 //            viewPort.getQueue().renderShadowQueue(RenderQueue.ShadowMode.Receive, renderManager, viewPort.getCamera(), true);
 //            renderManager.setForcedMaterial(null);
@@ -313,8 +572,16 @@ public class VolumeLightRenderer extends AbstractShadowRenderer {
     public void preFrame(float tpf) {
     }
 
+    /**
+     * Queues the shadow maps of every level for deletion. The renderer can not
+     * be used afterwards.
+     */
     @Override
     public void cleanup() {
+        for (int i = 0; i < shadowFBs.length; i++) {
+            shadowFBs[i].dispose();
+            shadowMaps[i].getImage().dispose();
+        }
     }
 
     @Override
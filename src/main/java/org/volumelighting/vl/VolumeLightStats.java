@@ -0,0 +1,340 @@
+package org.volumelighting.vl;
+
+import java.util.Arrays;
+
+import com.jme3.post.FilterPostProcessor;
+import com.jme3.profile.AppProfiler;
+import com.jme3.profile.SpStep;
+import com.jme3.renderer.Renderer;
+
+/**
+ * Per light timings and counts over the last frames, with averages and
+ * percentiles.
+ *
+ * CPU times are measured around preFrame, postQueue (caster gathering and the
+ * shadow pass) and postFrame (the volume draw). GPU times come from timer
+ * queries around the shadow map and the volume draws, their results arrive a
+ * few frames late. All times are in milliseconds.
+ *
+ * With an AppProfiler, like the DetailedProfiler, the same sections are also
+ * reported as sub steps of the filter. The profiler then measures the GPU
+ * itself and the own timer queries are turned off, GL can not nest them.
+ */
+public class VolumeLightStats {
+
+    public enum Metric {
+        /**
+         * CPU time of the light camera sync and the culling.
+         */
+        PreFrameCpu,
+        /**
+         * CPU time of the caster gathering and of submitting the shadow map.
+         */
+        PostQueueCpu,
+        /**
+         * CPU time of submitting the volume.
+         */
+        PostFrameCpu,
+        /**
+         * GPU time of the shadow map.
+         */
+        ShadowMapGpu,
+        /**
+         * GPU time of the volume draws, or of the froxel injection.
+         */
+        VolumeGpu,
+        /**
+         * Shadow casters in the light frustum.
+         */
+        Occluders,
+        /**
+         * Caster triangles rendered into the shadow map, 0 when the map was
+         * kept.
+         */
+        ShadowTriangles,
+        /**
+         * 1 if the light was culled, the average is the culled fraction. Counts
+         * the culled faces of point lights, 0 to 6.
+         */
+        Culled
+    }
+
+    static final int DEFAULT_WINDOW = 120;
+
+    private static final Metric[] METRICS = Metric.values();
+    private static final int GPU_QUERIES = 16;
+
+    private final float[][] samples;
+    private final int[] sampleCounts = new int[METRICS.length];
+    private final int[] nextSample = new int[METRICS.length];
+    private final float[] frameValues = new float[METRICS.length];
+    private final float[] sorted;
+    private boolean frameStarted = false;
+    private int frame = 0;
+
+    private boolean gpuTiming = true;
+    private GpuTimer shadowMapTimer;
+    private GpuTimer volumeTimer;
+
+    private AppProfiler profiler;
+    private final String[] filterPath;
+    private final String[] preFramePath;
+    private final String[] shadowMapPath;
+    private final String[] volumePath;
+
+    /**
+     * Constructor.
+     *
+     * @param window the number of frames averages and percentiles are taken
+     * over
+     * @param profilerPath the sub step path of the filter in an AppProfiler,
+     * after the FilterPostProcessor
+     */
+    VolumeLightStats(int window, String... profilerPath) {
+        samples = new float[METRICS.length][window];
+        sorted = new float[window];
+
+        filterPath = new String[profilerPath.length + 1];
+        filterPath[0] = FilterPostProcessor.FPP;
+        System.arraycopy(profilerPath, 0, filterPath, 1, profilerPath.length);
+        preFramePath = subPath("preFrame");
+        shadowMapPath = subPath("Shadow map");
+        volumePath = subPath("Volume");
+    }
+
+    private String[] subPath(String step) {
+        String[] path = Arrays.copyOf(filterPath, filterPath.length + 1);
+        path[filterPath.length] = step;
+        return path;
+    }
+
+    /**
+     * @param metric
+     * @return the average over the window, 0 without samples
+     */
+    public float getAverage(Metric metric) {
+        int count = sampleCounts[metric.ordinal()];
+        if (count == 0) {
+            return 0f;
+        }
+        float[] values = samples[metric.ordinal()];
+        float sum = 0f;
+        for (int i = 0; i < count; i++) {
+            sum += values[i];
+        }
+        return sum / count;
+    }
+
+    /**
+     * @param metric
+     * @param percentile 0 to 100, 50 for the median
+     * @return the value of the given percentile over the window, nearest
+     * rank, 0 without samples
+     */
+    public float getPercentile(Metric metric, float percentile) {
+        int count = sampleCounts[metric.ordinal()];
+        if (count == 0) {
+            return 0f;
+        }
+        System.arraycopy(samples[metric.ordinal()], 0, sorted, 0, count);
+        Arrays.sort(sorted, 0, count);
+        int rank = (int) Math.ceil(percentile / 100f * count) - 1;
+        return sorted[Math.min(Math.max(rank, 0), count - 1)];
+    }
+
+    /**
+     * @param metric
+     * @return the newest sample, 0 without samples
+     */
+    public float getLast(Metric metric) {
+        int count = sampleCounts[metric.ordinal()];
+        if (count == 0) {
+            return 0f;
+        }
+        int window = samples[metric.ordinal()].length;
+        return samples[metric.ordinal()][(nextSample[metric.ordinal()] + window - 1) % window];
+    }
+
+    /**
+     * @param metric
+     * @return the number of samples in the window
+     */
+    public int getSampleCount(Metric metric) {
+        return sampleCounts[metric.ordinal()];
+    }
+
+    /**
+     * Drops all samples.
+     */
+    public void reset() {
+        Arrays.fill(sampleCounts, 0);
+        Arrays.fill(nextSample, 0);
+        Arrays.fill(frameValues, 0f);
+        frameStarted = false;
+    }
+
+    public boolean isGpuTiming() {
+        return gpuTiming;
+    }
+
+    /**
+     * @param gpuTiming false to skip the GPU timer queries, true by default
+     */
+    public void setGpuTiming(boolean gpuTiming) {
+        this.gpuTiming = gpuTiming;
+    }
+
+    public AppProfiler getAppProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Reports the sections as sub steps of the filter to the profiler, also
+     * turns the own GPU timer queries off while set.
+     *
+     * @param profiler the application profiler, null to stop reporting
+     */
+    public void setAppProfiler(AppProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * Closes the last frame and starts a new one. CPU times and counts of a
+     * frame, of all the faces of a point light, are summed until then.
+     */
+    void beginFrame() {
+        if (frameStarted) {
+            for (int i = 0; i < METRICS.length; i++) {
+                if (METRICS[i] != Metric.ShadowMapGpu && METRICS[i] != Metric.VolumeGpu) {
+                    record(i, frameValues[i]);
+                }
+            }
+        }
+        Arrays.fill(frameValues, 0f);
+        frameStarted = true;
+        frame++;
+    }
+
+    void addCpuTime(Metric metric, long nanos) {
+        frameValues[metric.ordinal()] += nanos / 1e6f;
+    }
+
+    void addCount(Metric metric, int count) {
+        frameValues[metric.ordinal()] += count;
+    }
+
+    void beginPreFrame() {
+        if (profiler != null) {
+            profiler.spStep(SpStep.ProcPreFrame, preFramePath);
+        }
+    }
+
+    void endPreFrame() {
+        if (profiler != null) {
+            profiler.spStep(SpStep.ProcPreFrame, filterPath);
+        }
+    }
+
+    void beginShadowMap(Renderer renderer) {
+        if (profiler != null) {
+            profiler.spStep(SpStep.ProcPostQueue, shadowMapPath);
+        } else if (gpuTiming) {
+            if (shadowMapTimer == null) {
+                shadowMapTimer = new GpuTimer(renderer, Metric.ShadowMapGpu);
+            }
+            shadowMapTimer.begin();
+        }
+    }
+
+    void endShadowMap() {
+        if (profiler != null) {
+            profiler.spStep(SpStep.ProcPostQueue, filterPath);
+        } else if (shadowMapTimer != null) {
+            shadowMapTimer.end();
+        }
+    }
+
+    void beginVolume(Renderer renderer) {
+        if (profiler != null) {
+            profiler.spStep(SpStep.ProcPostFrame, volumePath);
+        } else if (gpuTiming) {
+            if (volumeTimer == null) {
+                volumeTimer = new GpuTimer(renderer, Metric.VolumeGpu);
+            }
+            volumeTimer.begin();
+        }
+    }
+
+    void endVolume() {
+        if (profiler != null) {
+            profiler.spStep(SpStep.ProcPostFrame, filterPath);
+        } else if (volumeTimer != null) {
+            volumeTimer.end();
+        }
+    }
+
+    private void record(int metric, float value) {
+        float[] values = samples[metric];
+        values[nextSample[metric]] = value;
+        nextSample[metric] = (nextSample[metric] + 1) % values.length;
+        sampleCounts[metric] = Math.min(sampleCounts[metric] + 1, values.length);
+    }
+
+    /**
+     * A ring of timer queries. Results are polled when a new query starts,
+     * the queries of one frame are summed into one sample once a later frame
+     * shows up.
+     */
+    private final class GpuTimer {
+
+        private final Renderer renderer;
+        private final int metric;
+        private final int[] tasks;
+        private final int[] taskFrames;
+        private int head = 0;
+        private int tail = 0;
+        private boolean running = false;
+        private int pendingFrame = -1;
+        private long pendingNanos = 0;
+
+        private GpuTimer(Renderer renderer, Metric metric) {
+            this.renderer = renderer;
+            this.metric = metric.ordinal();
+            // empty on renderers without timer queries
+            this.tasks = renderer.generateProfilingTasks(GPU_QUERIES);
+            this.taskFrames = new int[tasks.length];
+        }
+
+        private void begin() {
+            poll();
+            if (tasks.length == 0 || (head + 1) % tasks.length == tail) {
+                return; // no queries, or all still in flight
+            }
+            taskFrames[head] = frame;
+            renderer.startProfiling(tasks[head]);
+            running = true;
+        }
+
+        private void end() {
+            if (running) {
+                renderer.stopProfiling();
+                head = (head + 1) % tasks.length;
+                running = false;
+            }
+        }
+
+        private void poll() {
+            while (tail != head && renderer.isTaskResultAvailable(tasks[tail])) {
+                if (taskFrames[tail] != pendingFrame) {
+                    if (pendingFrame >= 0) {
+                        record(metric, pendingNanos / 1e6f);
+                    }
+                    pendingFrame = taskFrames[tail];
+                    pendingNanos = 0;
+                }
+                pendingNanos += renderer.getProfilingTime(tasks[tail]);
+                tail = (tail + 1) % tasks.length;
+            }
+        }
+    }
+}
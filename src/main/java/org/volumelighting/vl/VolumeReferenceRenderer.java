@@ -0,0 +1,603 @@
+package org.volumelighting.vl;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jme3.math.Matrix4f;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector2f;
+import com.jme3.math.Vector3f;
+import com.jme3.math.Vector4f;
+import com.jme3.renderer.Camera;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.mesh.IndexBuffer;
+
+/**
+ * A pure Java reference of what VolumetricLight.vert and VolumetricLight.frag
+ * draw into the light volume buffer, to check the shader math and faster
+ * approximations without a GPU.
+ *
+ * The far points of a {@link FrustumVolumeMesh} are moved to the depths of a
+ * shadow map like the vertex shader does, the triangles are clipped and
+ * rasterized with the GL rules, and every covered pixel gets the scattering
+ * integral from the camera to the volume surface, clamped to the scene depth,
+ * negative for front faces. The result is the intensity the volume adds, as
+ * the R32F buffer of a single light would hold it.
+ *
+ * With depth rejection the passes of VolumeLight.renderVolumeRejected are
+ * followed with a stencil per pixel, the image must come out the same with
+ * fewer shaded fragments.
+ *
+ * The image is split into tiles rendered in parallel on a fork/join pool.
+ * Every tile adds its triangles in the same order, so the result does not
+ * depend on the number of threads.
+ */
+public class VolumeReferenceRenderer {
+
+    private static final int DEFAULT_TILE_SIZE = 32;
+
+    // the passes over the triangles of a tile
+    private static final int DRAW = 0;
+    private static final int COUNT_BEHIND = 1;
+    private static final int IN_FRONT = 2;
+    private static final int BEHIND = 3;
+
+    private final int width;
+    private final int height;
+    private int tileSize = DEFAULT_TILE_SIZE;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private boolean circularClip = true;
+    private boolean depthRejection = false;
+    private final AtomicLong shadedFragments = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param width the image width in pixels
+     * @param height the image height in pixels
+     */
+    public VolumeReferenceRenderer(int width, int height) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Invalid image size " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Renders the in-scattering of a light volume.
+     *
+     * @param mesh the volume mesh, built for the light camera
+     * @param lightCam the light camera, placed like the volume geometry
+     * @param shadowDepth the shadow map, shadowSize by shadowSize depth values
+     * from 0 to 1, row by row from the bottom
+     * @param shadowSize the width and height of the shadow map
+     * @param viewCam the camera the volume is seen through, its size is not
+     * used
+     * @param sceneDepth the scene depth buffer, width by height depth values
+     * from 0 to 1, row by row from the bottom, null for an empty scene
+     * @param intensity the light intensity
+     * @return the intensity added to each pixel, row by row from the bottom
+     */
+    public float[] render(FrustumVolumeMesh mesh, Camera lightCam, float[] shadowDepth, int shadowSize,
+            Camera viewCam, float[] sceneDepth, float intensity) {
+        if (shadowDepth.length != shadowSize * shadowSize) {
+            throw new IllegalArgumentException("Shadow map size does not match " + shadowSize);
+        }
+        if (sceneDepth != null && sceneDepth.length != width * height) {
+            throw new IllegalArgumentException("Scene depth size does not match " + width + "x" + height);
+        }
+
+        Frame frame = new Frame(lightCam, shadowDepth, shadowSize, viewCam, sceneDepth, intensity);
+        List<Triangle> triangles = setUpTriangles(mesh, frame);
+
+        // bins the triangles by tile, in mesh order
+        int tilesX = (width + tileSize - 1) / tileSize;
+        int tilesY = (height + tileSize - 1) / tileSize;
+        List<List<Triangle>> bins = new ArrayList<>(tilesX * tilesY);
+        for (int i = 0; i < tilesX * tilesY; i++) {
+            bins.add(new ArrayList<Triangle>());
+        }
+        for (Triangle triangle : triangles) {
+            int x0 = Math.max((int) Math.floor(triangle.minX) / tileSize, 0);
+            int x1 = Math.min((int) Math.floor(triangle.maxX) / tileSize, tilesX - 1);
+            int y0 = Math.max((int) Math.floor(triangle.minY) / tileSize, 0);
+            int y1 = Math.min((int) Math.floor(triangle.maxY) / tileSize, tilesY - 1);
+            for (int y = y0; y <= y1; y++) {
+                for (int x = x0; x <= x1; x++) {
+                    bins.get(y * tilesX + x).add(triangle);
+                }
+            }
+        }
+
+        float[] image = new float[width * height];
+        shadedFragments.set(0L);
+        pool.invoke(new TileTask(frame, bins, tilesX, 0, bins.size(), image));
+        return image;
+    }
+
+    /**
+     * The scattering integral of VolumetricLight.frag: the light reaching a
+     * camera ray over a length, with a 1 / d^2 falloff from the light.
+     *
+     * @param cameraPos
+     * @param lightPos
+     * @param direction the normalized ray direction
+     * @param thickness the length of the ray
+     * @return the integral, without the light intensity
+     */
+    public static float scatteringIntegral(Vector3f cameraPos, Vector3f lightPos, Vector3f direction, float thickness) {
+        float lx = cameraPos.x - lightPos.x;
+        float ly = cameraPos.y - lightPos.y;
+        float lz = cameraPos.z - lightPos.z;
+
+        float direct = direction.x * lx + direction.y * ly + direction.z * lz;
+        float scattered = lx * lx + ly * ly + lz * lz;
+
+        float scattering = 1f / (float) Math.sqrt(scattered - direct * direct);
+        return scattering * (float) (Math.atan((thickness + direct) * scattering) - Math.atan(direct * scattering));
+    }
+
+    /**
+     * The depth linearisation of the shaders, from the factors of
+     * VolumeLight.getLinearDepthFactors.
+     *
+     * @param depth a depth buffer value from 0 to 1
+     * @param factors the linear depth factors of the camera
+     * @return the view depth
+     */
+    public static float linearDepth(float depth, Vector2f factors) {
+        return factors.y / (depth - factors.x);
+    }
+
+    /**
+     * The vertex shader: moves the far points, then transforms and clips the
+     * triangles for the view.
+     */
+    private List<Triangle> setUpTriangles(FrustumVolumeMesh mesh, Frame frame) {
+        FloatBuffer positions = (FloatBuffer) mesh.getBuffer(VertexBuffer.Type.Position).getData();
+        int vertexCount = positions.limit() / 3;
+        Vector4f[] clip = new Vector4f[vertexCount];
+        Vector3f[] world = new Vector3f[vertexCount];
+        Vector3f position = new Vector3f();
+        for (int i = 0; i < vertexCount; i++) {
+            position.set(positions.get(i * 3), positions.get(i * 3 + 1), positions.get(i * 3 + 2));
+            frame.displace(position);
+            world[i] = frame.lightRotation.mult(position).addLocal(frame.lightPos);
+            clip[i] = frame.viewProjection.mult(new Vector4f(world[i].x, world[i].y, world[i].z, 1f), null);
+        }
+
+        IndexBuffer indices = mesh.getIndexBuffer();
+        List<Triangle> triangles = new ArrayList<>(indices.size() / 3);
+        Vertex[] polygon = new Vertex[5];
+        Vertex[] clipped = new Vertex[5];
+        for (int i = 0; i < indices.size(); i += 3) {
+            for (int k = 0; k < 3; k++) {
+                int index = indices.get(i + k);
+                polygon[k] = new Vertex(clip[index], world[index]);
+            }
+            // near and far plane, the others are left to the rasterizer
+            int count = clipPolygon(polygon, 3, clipped, 1f);
+            count = clipPolygon(clipped, count, polygon, -1f);
+            for (int k = 1; k + 1 < count; k++) {
+                Triangle triangle = Triangle.create(polygon[0], polygon[k], polygon[k + 1], width, height);
+                if (triangle != null) {
+                    triangles.add(triangle);
+                }
+            }
+        }
+        return triangles;
+    }
+
+    /**
+     * Sutherland-Hodgman against the plane z = -w (side 1) or z = w (side -1).
+     */
+    private static int clipPolygon(Vertex[] in, int count, Vertex[] out, float side) {
+        int result = 0;
+        for (int i = 0; i < count; i++) {
+            Vertex a = in[i];
+            Vertex b = in[(i + 1) % count];
+            float da = a.clip.w + side * a.clip.z;
+            float db = b.clip.w + side * b.clip.z;
+            if (da >= 0f) {
+                out[result++] = a;
+            }
+            if ((da >= 0f) != (db >= 0f)) {
+                out[result++] = Vertex.lerp(a, b, da / (da - db));
+            }
+        }
+        return result;
+    }
+
+    private static final class Vertex {
+
+        private final Vector4f clip;
+        private final Vector3f world;
+
+        private Vertex(Vector4f clip, Vector3f world) {
+            this.clip = clip;
+            this.world = world;
+        }
+
+        private static Vertex lerp(Vertex a, Vertex b, float t) {
+            Vector4f clip = new Vector4f(a.clip).interpolateLocal(b.clip, t);
+            Vector3f world = new Vector3f(a.world).interpolateLocal(b.world, t);
+            return new Vertex(clip, world);
+        }
+    }
+
+    /**
+     * A triangle in window coordinates, counter clockwise, with its world
+     * positions divided by w for perspective correct interpolation.
+     */
+    private static final class Triangle {
+
+        private final double[] x = new double[3];
+        private final double[] y = new double[3];
+        private final double[] invW = new double[3];
+        private final Vector3f[] worldOverW = new Vector3f[3];
+        // the window depth, linear in window space
+        private final double[] depth = new double[3];
+        private boolean front;
+        private double area;
+        private double minX, maxX, minY, maxY;
+
+        private static Triangle create(Vertex a, Vertex b, Vertex c, int width, int height) {
+            Triangle triangle = new Triangle();
+            Vertex[] vertices = {a, b, c};
+            for (int i = 0; i < 3; i++) {
+                Vector4f clip = vertices[i].clip;
+                triangle.invW[i] = 1.0 / clip.w;
+                triangle.x[i] = (clip.x * triangle.invW[i] * 0.5 + 0.5) * width;
+                triangle.y[i] = (clip.y * triangle.invW[i] * 0.5 + 0.5) * height;
+                triangle.worldOverW[i] = vertices[i].world.mult((float) triangle.invW[i]);
+                triangle.depth[i] = clip.z * triangle.invW[i] * 0.5 + 0.5;
+            }
+
+            triangle.area = (triangle.x[1] - triangle.x[0]) * (triangle.y[2] - triangle.y[0])
+                    - (triangle.x[2] - triangle.x[0]) * (triangle.y[1] - triangle.y[0]);
+            if (triangle.area == 0.0 || Double.isNaN(triangle.area)) {
+                return null;
+            }
+            // counter clockwise in window space is front facing in GL
+            triangle.front = triangle.area > 0.0;
+            if (!triangle.front) {
+                triangle.swap(1, 2);
+                triangle.area = -triangle.area;
+            }
+
+            triangle.minX = Math.min(triangle.x[0], Math.min(triangle.x[1], triangle.x[2]));
+            triangle.maxX = Math.max(triangle.x[0], Math.max(triangle.x[1], triangle.x[2]));
+            triangle.minY = Math.min(triangle.y[0], Math.min(triangle.y[1], triangle.y[2]));
+            triangle.maxY = Math.max(triangle.y[0], Math.max(triangle.y[1], triangle.y[2]));
+            if (triangle.maxX < 0 || triangle.minX > width || triangle.maxY < 0 || triangle.minY > height) {
+                return null;
+            }
+            return triangle;
+        }
+
+        private void swap(int i, int j) {
+            double t = x[i];
+            x[i] = x[j];
+            x[j] = t;
+            t = y[i];
+            y[i] = y[j];
+            y[j] = t;
+            t = invW[i];
+            invW[i] = invW[j];
+            invW[j] = t;
+            t = depth[i];
+            depth[i] = depth[j];
+            depth[j] = t;
+            Vector3f v = worldOverW[i];
+            worldOverW[i] = worldOverW[j];
+            worldOverW[j] = v;
+        }
+
+        // the edge from vertex i to the next, positive inside
+        private double edge(int i, double px, double py) {
+            int j = (i + 1) % 3;
+            return (x[j] - x[i]) * (py - y[i]) - (y[j] - y[i]) * (px - x[i]);
+        }
+
+        // pixel centers on an edge belong to the triangle on its top or left
+        private boolean isTopLeft(int i) {
+            int j = (i + 1) % 3;
+            return y[j] < y[i] || (y[j] == y[i] && x[j] < x[i]);
+        }
+    }
+
+    /**
+     * The parameters of one render, shared by the tiles.
+     */
+    private final class Frame {
+
+        private final Vector3f lightPos;
+        private final Quaternion lightRotation;
+        private final Matrix4f lightViewProjection;
+        private final float lightNear;
+        private final float lightFar;
+        private final Vector2f lightFactors;
+        private final boolean parallel;
+        private final float[] shadowDepth;
+        private final int shadowSize;
+
+        private final Vector3f cameraPos;
+        private final Matrix4f viewProjection;
+        private final Vector2f cameraFactors;
+        private final float[] sceneDepth;
+        private final float intensity;
+
+        private Frame(Camera lightCam, float[] shadowDepth, int shadowSize, Camera viewCam, float[] sceneDepth, float intensity) {
+            lightCam.update();
+            this.lightPos = lightCam.getLocation().clone();
+            this.lightRotation = lightCam.getRotation().clone();
+            this.lightViewProjection = lightCam.getViewProjectionMatrix().clone();
+            this.lightNear = lightCam.getFrustumNear();
+            this.lightFar = lightCam.getFrustumFar();
+            this.lightFactors = VolumeLight.getLinearDepthFactors(lightCam);
+            this.parallel = lightCam.isParallelProjection();
+            this.shadowDepth = shadowDepth;
+            this.shadowSize = shadowSize;
+
+            viewCam.update();
+            this.cameraPos = viewCam.getLocation().clone();
+            this.viewProjection = viewCam.getViewProjectionMatrix().clone();
+            this.cameraFactors = VolumeLight.getLinearDepthFactors(viewCam);
+            this.sceneDepth = sceneDepth;
+            this.intensity = intensity;
+        }
+
+        /**
+         * Moves a far point of the mesh, in light space, to the shadow map
+         * depth, as VolumetricLight.vert does.
+         */
+        private void displace(Vector3f position) {
+            if (parallel) {
+                if (position.z == lightNear) {
+                    return;
+                }
+                Vector4f posInPLS = project(position);
+                float depth = sampleShadow(posInPLS);
+                position.z = lightNear + (lightFar - lightNear) * depth;
+                return;
+            }
+
+            if (position.z == lightNear) {
+                return;
+            }
+            Vector4f posInPLS = project(position);
+            float z = 0f;
+            float radius = (float) Math.sqrt(posInPLS.x * posInPLS.x + posInPLS.y * posInPLS.y);
+            if (!circularClip || radius < posInPLS.w) {
+                z = linearDepth(sampleShadow(posInPLS), lightFactors);
+            } else {
+                z += lightNear;
+            }
+            z -= lightFar;
+            // the light is at the origin of the volume
+            position.addLocal(position.mult(z / lightFar));
+        }
+
+        private Vector4f project(Vector3f position) {
+            Vector3f world = lightRotation.mult(position).addLocal(lightPos);
+            return lightViewProjection.mult(new Vector4f(world.x, world.y, world.z, 1f), null);
+        }
+
+        // texture2DProj with the bias matrix, bilinear with clamped edges
+        private float sampleShadow(Vector4f posInPLS) {
+            float u = (posInPLS.x / posInPLS.w * 0.5f + 0.5f) * shadowSize - 0.5f;
+            float v = (posInPLS.y / posInPLS.w * 0.5f + 0.5f) * shadowSize - 0.5f;
+            int x0 = (int) Math.floor(u);
+            int y0 = (int) Math.floor(v);
+            float fx = u - x0;
+            float fy = v - y0;
+            float d00 = shadowTexel(x0, y0);
+            float d10 = shadowTexel(x0 + 1, y0);
+            float d01 = shadowTexel(x0, y0 + 1);
+            float d11 = shadowTexel(x0 + 1, y0 + 1);
+            return (d00 * (1 - fx) + d10 * fx) * (1 - fy) + (d01 * (1 - fx) + d11 * fx) * fy;
+        }
+
+        private float shadowTexel(int x, int y) {
+            x = Math.min(Math.max(x, 0), shadowSize - 1);
+            y = Math.min(Math.max(y, 0), shadowSize - 1);
+            return shadowDepth[y * shadowSize + x];
+        }
+
+        /**
+         * VolumetricLight.frag for a fragment at a world position.
+         */
+        private float shade(Vector3f posInWS, int pixel, boolean front, Vector3f viewRay) {
+            float depth = sceneDepth != null ? sceneDepth[pixel] : 1f;
+            float depthInCS = linearDepth(depth, cameraFactors);
+            viewRay.set(posInWS).subtractLocal(cameraPos);
+
+            float volumeDepth = viewRay.length();
+            viewRay.divideLocal(volumeDepth);
+            volumeDepth = Math.min(volumeDepth, depthInCS);
+
+            float scattering = parallel ? volumeDepth * intensity
+                    : scatteringIntegral(cameraPos, lightPos, viewRay, volumeDepth) * intensity;
+            return front ? -scattering : scattering;
+        }
+    }
+
+    /**
+     * Renders a range of tiles, split in halves down to one tile per task.
+     */
+    @SuppressWarnings("serial")
+    private final class TileTask extends RecursiveAction {
+
+        private final Frame frame;
+        private final List<List<Triangle>> bins;
+        private final int tilesX;
+        private final int from;
+        private final int to;
+        private final float[] image;
+
+        private TileTask(Frame frame, List<List<Triangle>> bins, int tilesX, int from, int to, float[] image) {
+            this.frame = frame;
+            this.bins = bins;
+            this.tilesX = tilesX;
+            this.from = from;
+            this.to = to;
+            this.image = image;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new TileTask(frame, bins, tilesX, from, middle, image),
+                        new TileTask(frame, bins, tilesX, middle, to, image));
+                return;
+            }
+
+            int tileX0 = (from % tilesX) * tileSize;
+            int tileY0 = (from / tilesX) * tileSize;
+            int tileX1 = Math.min(tileX0 + tileSize, width);
+            int tileY1 = Math.min(tileY0 + tileSize, height);
+            if (!depthRejection) {
+                rasterize(DRAW, null, tileX0, tileY0, tileX1, tileY1);
+                return;
+            }
+            int[] stencil = new int[(tileX1 - tileX0) * (tileY1 - tileY0)];
+            rasterize(COUNT_BEHIND, stencil, tileX0, tileY0, tileX1, tileY1);
+            rasterize(IN_FRONT, stencil, tileX0, tileY0, tileX1, tileY1);
+            rasterize(BEHIND, stencil, tileX0, tileY0, tileX1, tileY1);
+        }
+
+        private void rasterize(int pass, int[] stencil, int tileX0, int tileY0, int tileX1, int tileY1) {
+            Vector3f posInWS = new Vector3f();
+            Vector3f viewRay = new Vector3f();
+            long shaded = 0L;
+            for (Triangle triangle : bins.get(from)) {
+                int x0 = Math.max((int) Math.floor(triangle.minX), tileX0);
+                int x1 = Math.min((int) Math.ceil(triangle.maxX), tileX1);
+                int y0 = Math.max((int) Math.floor(triangle.minY), tileY0);
+                int y1 = Math.min((int) Math.ceil(triangle.maxY), tileY1);
+                for (int py = y0; py < y1; py++) {
+                    for (int px = x0; px < x1; px++) {
+                        double cx = px + 0.5;
+                        double cy = py + 0.5;
+                        double w0 = triangle.edge(1, cx, cy);
+                        double w1 = triangle.edge(2, cx, cy);
+                        double w2 = triangle.edge(0, cx, cy);
+                        if (!inside(w0, triangle, 1) || !inside(w1, triangle, 2) || !inside(w2, triangle, 0)) {
+                            continue;
+                        }
+                        // barycentrics of the vertices facing each edge
+                        double b0 = w0 / triangle.area;
+                        double b1 = w1 / triangle.area;
+                        double b2 = w2 / triangle.area;
+                        int pixel = py * width + px;
+                        if (pass != DRAW) {
+                            // the depth test against the scene, with the stencil ops
+                            double depth = b0 * triangle.depth[0] + b1 * triangle.depth[1] + b2 * triangle.depth[2];
+                            boolean behind = depth > (frame.sceneDepth != null ? frame.sceneDepth[pixel] : 1f);
+                            int texel = (py - tileY0) * (tileX1 - tileX0) + px - tileX0;
+                            if (pass == COUNT_BEHIND) {
+                                if (behind) {
+                                    stencil[texel] += triangle.front ? -1 : 1;
+                                }
+                                continue;
+                            }
+                            if (pass == IN_FRONT && behind || pass == BEHIND && (!behind || stencil[texel] == 0)) {
+                                continue;
+                            }
+                            if (pass == BEHIND) {
+                                stencil[texel] += triangle.front ? 1 : -1;
+                            }
+                        }
+                        double invW = b0 * triangle.invW[0] + b1 * triangle.invW[1] + b2 * triangle.invW[2];
+                        Vector3f[] v = triangle.worldOverW;
+                        posInWS.set((float) ((b0 * v[0].x + b1 * v[1].x + b2 * v[2].x) / invW),
+                                (float) ((b0 * v[0].y + b1 * v[1].y + b2 * v[2].y) / invW),
+                                (float) ((b0 * v[0].z + b1 * v[1].z + b2 * v[2].z) / invW));
+                        image[pixel] += frame.shade(posInWS, pixel, triangle.front, viewRay);
+                        shaded++;
+                    }
+                }
+            }
+            shadedFragments.addAndGet(shaded);
+        }
+
+        private boolean inside(double edge, Triangle triangle, int index) {
+            return edge > 0.0 || (edge == 0.0 && triangle.isTopLeft(index));
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * @param tileSize the width and height of the tiles rendered in
+     * parallel, 32 by default
+     */
+    public void setTileSize(int tileSize) {
+        if (tileSize < 1) {
+            throw new IllegalArgumentException("Tile size must be at least 1");
+        }
+        this.tileSize = tileSize;
+    }
+
+    public boolean isDepthRejection() {
+        return depthRejection;
+    }
+
+    /**
+     * @param depthRejection true to draw the volume like
+     * VolumeLight.renderVolumeRejected, false (the default) like
+     * VolumeLight.renderVolume
+     */
+    public void setDepthRejection(boolean depthRejection) {
+        this.depthRejection = depthRejection;
+    }
+
+    /**
+     * @return the fragments the volume shader ran for in the last render,
+     * the stencil count pass of depth rejection shades none
+     */
+    public long getShadedFragmentCount() {
+        return shadedFragments.get();
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * @param pool the pool the tiles are rendered on, the common pool by
+     * default
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public boolean isCircularClip() {
+        return circularClip;
+    }
+
+    /**
+     * @param circularClip true (the default) to collapse far points outside
+     * the cone of a spot light to the near plane, false for the cube faces of
+     * a point light, like the CUBE_FACE define
+     */
+    public void setCircularClip(boolean circularClip) {
+        this.circularClip = circularClip;
+    }
+}
@@ -0,0 +1,46 @@
+#import "MatDefs/VolumetricLighting/Froxel.glsllib"
+
+uniform mat4 m_LightViewProjectionMatrix;
+uniform sampler2D m_ShadowDepthMap;
+uniform vec2 m_LinearDepthFactorsLight;
+uniform vec3 m_LightPos;
+uniform vec4 m_LightColor;
+uniform float m_LightIntensity;
+
+const mat4 biasMat = mat4(0.5, 0.0, 0.0, 0.0,
+                          0.0, 0.5, 0.0, 0.0,
+                          0.0, 0.0, 0.5, 0.0,
+                          0.5, 0.5, 0.5, 1.0);
+
+// adds the light scattered at the center of a froxel, the same integrand as
+// ScatteringIntegral in VolumetricLight.frag
+void main() {
+    vec3 cell = froxelCell(gl_FragCoord.xy);
+    vec3 position = froxelWorldPosition(cell.xy, froxelDepth(cell.z + 0.5));
+
+    vec4 posInPLS = m_LightViewProjectionMatrix * vec4(position, 1.0);
+    vec3 ndc = posInPLS.xyz / posInPLS.w;
+    if (posInPLS.w <= 0.0 || any(greaterThan(abs(ndc), vec3(1.0)))) {
+        discard;
+    }
+    #if !defined(DIRECTIONAL) && !defined(CUBE_FACE)
+    if (length(ndc.xy) > 1.0) { // the cone of a spot light
+        discard;
+    }
+    #endif
+
+    float shadow = texture2DProj(m_ShadowDepthMap, biasMat * posInPLS).r;
+    #ifdef DIRECTIONAL
+    // orthographic, the depths are linear
+    if (ndc.z * 0.5 + 0.5 > shadow) {
+        discard;
+    }
+    gl_FragColor = vec4(m_LightColor.rgb * m_LightIntensity, 0.0);
+    #else
+    if (posInPLS.w > m_LinearDepthFactorsLight.y / (shadow - m_LinearDepthFactorsLight.x)) {
+        discard;
+    }
+    vec3 toLight = m_LightPos - position;
+    gl_FragColor = vec4(m_LightColor.rgb * m_LightIntensity / dot(toLight, toLight), 0.0);
+    #endif
+}
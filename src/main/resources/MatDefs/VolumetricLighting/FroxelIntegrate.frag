@@ -0,0 +1,37 @@
+#import "MatDefs/VolumetricLighting/Froxel.glsllib"
+
+uniform sampler2D m_FroxelInjectTex;
+// the atlas holding the integrated previous slice
+uniform sampler2D m_FroxelPreviousTex;
+uniform float m_FogDensity;
+uniform float m_FogExtinction;
+uniform float m_FogHeightFalloff;
+
+// the light scattered towards the camera up to the far edge of the slice of
+// this froxel in rgb, the transmittance to that edge in a. One slice per
+// pass, front to back, adding this slice to the values of the previous one.
+void main() {
+    vec3 cell = froxelCell(gl_FragCoord.xy);
+
+    vec4 previous = vec4(0.0, 0.0, 0.0, 1.0);
+    if (cell.z > 0.5) {
+        previous = texture2D(m_FroxelPreviousTex, froxelAtlasCoord(cell.xy, cell.z - 1.0));
+    }
+    float thickness = froxelDepth(cell.z + 1.0) - froxelDepth(cell.z);
+
+    // denser at the bottom with a height falloff
+    vec3 position = froxelWorldPosition(cell.xy, froxelDepth(cell.z + 0.5));
+    float density = m_FogDensity * exp(-m_FogHeightFalloff * position.y);
+    vec3 light = texture2D(m_FroxelInjectTex, froxelAtlasCoord(cell.xy, cell.z)).rgb * density;
+
+    // integrated over the slice with the extinction inside it
+    float extinction = m_FogExtinction * density;
+    float sliceTransmittance = exp(-extinction * thickness);
+    vec3 scattered;
+    if (extinction > 0.00001) {
+        scattered = light * (1.0 - sliceTransmittance) / extinction;
+    } else {
+        scattered = light * thickness;
+    }
+    gl_FragColor = vec4(previous.rgb + previous.a * scattered, previous.a * sliceTransmittance);
+}
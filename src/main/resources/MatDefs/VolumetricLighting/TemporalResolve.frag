@@ -0,0 +1,50 @@
+varying vec2 texCoord;
+
+uniform sampler2D m_VolumeTex;
+uniform sampler2D m_HistoryTex;
+uniform sampler2D m_DepthTexture;
+uniform vec2 m_VolumeResolution;
+uniform vec2 m_LinearDepthFactorsCam;
+uniform mat4 m_ViewProjectionMatrixInverse;
+uniform mat4 m_PrevViewProjectionMatrix;
+uniform float m_TemporalBlend;
+
+// relative difference between the depth kept in the history and the depth
+// the pixel had last frame beyond which the history belongs to another surface
+const float DEPTH_THRESHOLD = 0.1;
+
+float linearDepth(float depth) {
+    return m_LinearDepthFactorsCam.y / (depth - m_LinearDepthFactorsCam.x);
+}
+
+// blends the jittered volume of this frame into the history reprojected from
+// the last frame, rgb the volume, a the linear scene depth it was blended at
+void main() {
+    vec4 current = texture2D(m_VolumeTex, texCoord);
+    float depth = texture2D(m_DepthTexture, texCoord).r;
+
+    // the range of the neighbourhood, history outside of it is stale
+    vec2 texel = 1.0 / m_VolumeResolution;
+    vec3 left = texture2D(m_VolumeTex, texCoord - vec2(texel.x, 0.0)).rgb;
+    vec3 right = texture2D(m_VolumeTex, texCoord + vec2(texel.x, 0.0)).rgb;
+    vec3 down = texture2D(m_VolumeTex, texCoord - vec2(0.0, texel.y)).rgb;
+    vec3 up = texture2D(m_VolumeTex, texCoord + vec2(0.0, texel.y)).rgb;
+    vec3 low = min(current.rgb, min(min(left, right), min(down, up)));
+    vec3 high = max(current.rgb, max(max(left, right), max(down, up)));
+
+    vec3 result = current.rgb;
+#ifdef HISTORY
+    vec4 world = m_ViewProjectionMatrixInverse * vec4(texCoord * 2.0 - 1.0, depth * 2.0 - 1.0, 1.0);
+    vec4 previous = m_PrevViewProjectionMatrix * vec4(world.xyz / world.w, 1.0);
+    vec2 previousCoord = previous.xy / previous.w * 0.5 + 0.5;
+
+    if (all(greaterThanEqual(previousCoord, vec2(0.0))) && all(lessThanEqual(previousCoord, vec2(1.0)))) {
+        vec4 history = texture2D(m_HistoryTex, previousCoord);
+        if (abs(history.a - previous.w) < DEPTH_THRESHOLD * previous.w) {
+            result = mix(clamp(history.rgb, low, high), current.rgb, m_TemporalBlend);
+        }
+    }
+#endif
+
+    gl_FragColor = vec4(result, linearDepth(depth));
+}
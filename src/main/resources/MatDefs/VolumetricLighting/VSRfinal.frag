@@ -1,11 +1,112 @@
+#ifdef FROXEL
+#import "MatDefs/VolumetricLighting/Froxel.glsllib"
+#endif
+
 varying vec2 texCoord;
 
 uniform sampler2D m_Texture;
 uniform sampler2D m_LightingVolumeTex;
 
+#ifdef INTENSITY_ONLY
+uniform vec4 m_LightColor;
+#endif
+
+#if defined(UPSAMPLE) || defined(FROXEL)
+uniform sampler2D m_DepthTexture;
+uniform vec2 m_LinearDepthFactorsCam;
+
+float linearDepth(vec2 uv) {
+    return m_LinearDepthFactorsCam.y / (texture2D(m_DepthTexture, uv).r - m_LinearDepthFactorsCam.x);
+}
+#endif
+
+#ifdef FROXEL
+uniform sampler2D m_FroxelTex;
+uniform sampler2D m_FroxelOddTex;
+
+// the slices are integrated into two atlases in turn
+vec4 froxelSample(vec2 cell, float slice) {
+    vec2 coord = froxelAtlasCoord(cell, slice);
+    return mix(texture2D(m_FroxelTex, coord), texture2D(m_FroxelOddTex, coord), mod(slice, 2.0));
+}
+
+// the integrated froxels at the scene depth of this pixel, scattered light in
+// rgb and transmittance in a. Froxel i holds the values at the far edge of
+// slice i, interpolated between the two edges around the depth.
+vec4 froxelVolume() {
+    // stays inside the tile, the atlas is filtered bilinearly
+    vec2 cell = clamp(texCoord * m_FroxelGrid.xy, vec2(0.5), m_FroxelGrid.xy - 0.5);
+    float edge = clamp(froxelSlice(min(linearDepth(texCoord), m_FroxelNearFar.y)), 0.0, m_FroxelGrid.z) - 1.0;
+    if (edge < 0.0) {
+        return mix(vec4(0.0, 0.0, 0.0, 1.0), froxelSample(cell, 0.0), edge + 1.0);
+    }
+    float slice = floor(edge);
+    return mix(froxelSample(cell, slice), froxelSample(cell, min(slice + 1.0, m_FroxelGrid.z - 1.0)), edge - slice);
+}
+#endif
+
+#ifdef UPSAMPLE
+uniform vec2 m_VolumeResolution;
+
+// relative depth difference beyond which a low res texel belongs to another surface
+const float DEPTH_THRESHOLD = 0.1;
+
+// nearest depth upsampling: bilinear where the four low res texels lie on the
+// same surface as this pixel, otherwise the texel closest in depth
+vec4 upsampleVolume() {
+    vec2 texel = 1.0 / m_VolumeResolution;
+    vec2 pos = texCoord * m_VolumeResolution - 0.5;
+    vec2 f = fract(pos);
+    vec2 uv00 = (floor(pos) + 0.5) * texel;
+    vec2 uv10 = uv00 + vec2(texel.x, 0.0);
+    vec2 uv01 = uv00 + vec2(0.0, texel.y);
+    vec2 uv11 = uv00 + texel;
+
+    // the volume pass clamped against the scene depth at the texel centers
+    float depth = linearDepth(texCoord);
+    vec4 diff = abs(vec4(linearDepth(uv00), linearDepth(uv10), linearDepth(uv01), linearDepth(uv11)) - depth);
+
+    vec4 v00 = texture2D(m_LightingVolumeTex, uv00);
+    vec4 v10 = texture2D(m_LightingVolumeTex, uv10);
+    vec4 v01 = texture2D(m_LightingVolumeTex, uv01);
+    vec4 v11 = texture2D(m_LightingVolumeTex, uv11);
+
+    if (max(max(diff.x, diff.y), max(diff.z, diff.w)) < DEPTH_THRESHOLD * depth) {
+        return mix(mix(v00, v10, f.x), mix(v01, v11, f.x), f.y);
+    }
+
+    vec4 nearest = v00;
+    float best = diff.x;
+    if (diff.y < best) { nearest = v10; best = diff.y; }
+    if (diff.z < best) { nearest = v01; best = diff.z; }
+    if (diff.w < best) { nearest = v11; }
+    return nearest;
+}
+#endif
+
 void main() {
     vec4 origColor = texture2D(m_Texture, texCoord); // rendered scene without the distortion material rendered
+
+#ifdef PASSTHROUGH
+    gl_FragColor = origColor; // every light volume culled, nothing to add
+    return;
+#endif
+#ifdef FROXEL
+    vec4 froxels = froxelVolume();
+    gl_FragColor = vec4(origColor.rgb * froxels.a + froxels.rgb, origColor.a);
+    return;
+#endif
+#ifdef UPSAMPLE
+    vec4 shadowVolume = upsampleVolume();
+#else
     vec4 shadowVolume = texture2D(m_LightingVolumeTex, texCoord); // only the shadowVolume material render
+#endif
+#ifdef INTENSITY_ONLY
+    shadowVolume = m_LightColor * shadowVolume.r;
+#endif
+#ifdef TEMPORAL
+    shadowVolume.a = 0.0;
+#endif
 
     //vec4 origColor = texture2D(m_DepthTexture, texCoord); 
     gl_FragColor = origColor + shadowVolume;
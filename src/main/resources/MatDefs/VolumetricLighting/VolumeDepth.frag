@@ -0,0 +1,40 @@
+varying vec2 texCoord;
+
+uniform sampler2D m_DepthTexture;
+
+#ifdef DOWNSAMPLE
+uniform vec2 m_VolumeResolution;
+uniform vec2 m_SceneResolution;
+
+// the scene texels a volume texel can read, up to a downsample factor of 15
+const int MAX_TEXELS = 17;
+#endif
+
+// copies the scene depth into the volume buffer for the light volumes to be
+// tested against. A downsampled buffer keeps the farthest depth of the scene
+// texels under a texel, so no volume fragment is rejected in front of the
+// depth the volume shader reads
+void main() {
+#ifdef DOWNSAMPLE
+    vec2 ratio = m_SceneResolution / m_VolumeResolution;
+    vec2 first = floor(floor(texCoord * m_VolumeResolution) * ratio);
+    // the texels under the volume texel and the bilinear footprint of its center
+    vec2 count = ceil(ratio) + 1.0;
+    float depth = 0.0;
+    for (int y = 0; y < MAX_TEXELS; y++) {
+        if (float(y) >= count.y) {
+            break;
+        }
+        for (int x = 0; x < MAX_TEXELS; x++) {
+            if (float(x) >= count.x) {
+                break;
+            }
+            vec2 uv = (min(first + vec2(x, y), m_SceneResolution - 1.0) + 0.5) / m_SceneResolution;
+            depth = max(depth, texture2D(m_DepthTexture, uv).r);
+        }
+    }
+    gl_FragDepth = depth;
+#else
+    gl_FragDepth = texture2D(m_DepthTexture, texCoord).r;
+#endif
+}
@@ -42,12 +42,21 @@ void main() {
 
     volumeDepth = min(volumeDepth, depthInCS); // clamp to scene depth
 
+#ifdef DIRECTIONAL
+    // parallel rays, the same scattering all along
+    float scatteringCoefficient = volumeDepth*m_LightIntensity;
+#else
     float scatteringCoefficient = ScatteringIntegral(m_CameraPos, m_LightPos, viewRay, volumeDepth)*m_LightIntensity;
+#endif
 
     if (gl_FrontFacing) {
         scatteringCoefficient*=-1.0;
     }
 
+#ifdef INTENSITY_ONLY
+    gl_FragColor = vec4(scatteringCoefficient);
+#else
     gl_FragColor = m_LightColor * scatteringCoefficient;
+#endif
 }
 
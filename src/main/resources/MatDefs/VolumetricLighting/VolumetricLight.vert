@@ -12,6 +12,12 @@ uniform vec3 m_LightPos;
 
 uniform vec2 m_LightNearFar;
 
+#ifdef PROCEDURAL
+// left / near and top / near of the light frustum, left and top when
+// DIRECTIONAL
+uniform vec2 m_FrustumTangents;
+#endif
+
 
 attribute vec3 inPosition;
 attribute vec2 inTexCoord;
@@ -39,7 +45,19 @@ const mat4 biasMat = mat4(0.5, 0.0, 0.0, 0.0,
 
 void main(){
 
+    #ifdef PROCEDURAL
+    // unit grid, z goes from the near to the far plane
+    float depth = mix(m_LightNearFar.x, m_LightNearFar.y, inPosition.z);
+    #ifdef DIRECTIONAL
+    vec4 position = vec4(inPosition.xy * m_FrustumTangents, depth, 1.0);
+    #else
+    vec4 position = vec4(inPosition.xy * m_FrustumTangents * depth, depth, 1.0);
+    #endif
+    bool farPoint = inPosition.z > 0.5;
+    #else
     vec4 position = vec4(inPosition, 1.0);
+    bool farPoint = position.z != m_LightNearFar.x;
+    #endif
 
     // position in WorldSpace
     //posInWS = g_WorldMatrix * position;
@@ -50,13 +68,25 @@ void main(){
     projCoord = biasMat * posInPLS;
    
 
-    if (position.z != m_LightNearFar.x) { // exclude top ring points, could change to use  inColor perhaps
+    #ifdef DIRECTIONAL
+    if (farPoint) {
+        // orthographic, the depth map is linear and the points move along z
+        vec4 depthMap = texture2DProj(m_ShadowDepthMap, projCoord);
+        position.z = mix(m_LightNearFar.x, m_LightNearFar.y, depthMap.r);
+    }
+    #else
+    if (farPoint) { // exclude top ring points, could change to use  inColor perhaps
         vec4 dir = position-g_WorldMatrixInverse*vec4(m_LightPos, 1.0); // normalize()
 
         // cookie goes here
 
        float z = 0.0;
+       #ifdef CUBE_FACE
+       // the faces of a point light cover the whole square
+       if (true) {
+       #else
        if (length(posInPLS.xy) < posInPLS.w) { // simple circlular clip
+       #endif
 
             vec4 depthMap = texture2DProj(m_ShadowDepthMap, projCoord);
 
@@ -75,6 +105,7 @@ void main(){
 
         position += dir*z;
     }
+    #endif
 
     posInCS = g_WorldViewMatrix * position;
     posInWS = g_WorldMatrix * position;
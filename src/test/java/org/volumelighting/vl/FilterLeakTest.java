@@ -0,0 +1,232 @@
+package org.volumelighting.vl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.asset.DesktopAssetManager;
+import com.jme3.light.SpotLight;
+import com.jme3.material.Material;
+import com.jme3.math.Vector3f;
+import com.jme3.post.FilterPostProcessor;
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.Caps;
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.ViewPort;
+import com.jme3.renderer.queue.RenderQueue;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.shape.Box;
+import com.jme3.system.NullRenderer;
+import com.jme3.texture.FrameBuffer;
+import com.jme3.texture.Image;
+import com.jme3.texture.Texture;
+import com.jme3.util.NativeObject;
+import com.jme3.util.NativeObjectManager;
+
+/**
+ * Adds, renders and removes thousands of filters on a renderer that does
+ * nothing but hand out ids, like a GL renderer would, for the frame buffers,
+ * images and vertex buffers it is given. Everything a filter made has to be
+ * disposed by the time it is removed: the mesh cache empties and the native
+ * objects go back to what the post processor holds on its own.
+ */
+public class FilterLeakTest {
+
+    private static final int FILTERS = 2000;
+    private static final int CHECK_INTERVAL = 250;
+
+    private TrackingRenderer renderer;
+    private ViewPort viewPort;
+    private FilterPostProcessor processor;
+    private VolumeLightGroupFilter group;
+
+    @Test
+    public void removedFiltersFreeEverything() {
+        AssetManager assetManager = new DesktopAssetManager(true);
+        renderer = new TrackingRenderer();
+        RenderManager renderManager = new RenderManager(renderer);
+
+        Camera cam = new Camera(64, 48);
+        cam.setFrustumPerspective(45f, 64f / 48f, 1f, 200f);
+        cam.setLocation(new Vector3f(0f, 20f, 40f));
+        cam.lookAt(Vector3f.ZERO, Vector3f.UNIT_Y);
+        viewPort = new ViewPort("Test", cam);
+        viewPort.attachScene(createScene(assetManager));
+
+        processor = new FilterPostProcessor(assetManager);
+        processor.initialize(renderManager, viewPort);
+        group = new VolumeLightGroupFilter();
+        processor.addFilter(group);
+
+        // the post processor and the group keep their own buffers
+        cycle(0);
+        group.disposeFreeVolumes();
+        renderer.deleteUnused();
+        int framebuffers = renderer.count(FrameBuffer.class);
+        int images = renderer.count(Image.class);
+        int buffers = renderer.count(VertexBuffer.class);
+        int deleted = renderer.deleted;
+        assertEquals(0, FrustumVolumeMeshCache.size());
+
+        for (int i = 1; i <= FILTERS; i++) {
+            cycle(i);
+            if (i % 7 == 0) {
+                group.disposeFreeVolumes();
+            }
+
+            if (i % CHECK_INTERVAL == 0) {
+                group.disposeFreeVolumes();
+                renderer.deleteUnused();
+                assertEquals("frame buffers after " + i, framebuffers, renderer.count(FrameBuffer.class));
+                assertEquals("images after " + i, images, renderer.count(Image.class));
+                assertEquals("vertex buffers after " + i, buffers, renderer.count(VertexBuffer.class));
+                assertEquals("cached meshes after " + i, 0, FrustumVolumeMeshCache.size());
+            }
+        }
+        assertTrue("nothing was disposed", renderer.deleted - deleted > FILTERS);
+
+        processor.removeFilter(group);
+        renderer.deleteUnused();
+        assertEquals(0, FrustumVolumeMeshCache.size());
+    }
+
+    // adds a filter and a light to the group, renders a frame and removes both
+    private void cycle(int i) {
+        SpotLight spot = new SpotLight(new Vector3f(i % 7, 20f, 0f), new Vector3f(0f, -1f, 0f), 30f + i % 13);
+        spot.setSpotOuterAngle(0.3f + (i % 97) * 0.003f);
+        VolumeLightFilter filter = new VolumeLightFilter(spot, 32, 1f);
+        filter.setProceduralGrid(i % 2 == 0);
+        filter.setDepthRejection(i % 3 == 0);
+        filter.setTemporal(i % 4 == 1);
+        processor.addFilter(filter);
+        group.addLight(spot, 16, 1f);
+
+        processor.preFrame(0.016f);
+        processor.postQueue(viewPort.getQueue());
+        processor.postFrame(null);
+        renderer.deleteUnused();
+
+        processor.removeFilter(filter);
+        group.removeLight(spot);
+    }
+
+    private static Node createScene(AssetManager assetManager) {
+        Node scene = new Node("Scene");
+        Mesh box = new Box(0.5f, 0.5f, 0.5f);
+        for (int i = 0; i < 16; i++) {
+            Geometry geometry = new Geometry("Box" + i, box);
+            geometry.setLocalTranslation((i % 4) * 3f - 4.5f, 0f, (i / 4) * 3f - 4.5f);
+            scene.attachChild(geometry);
+        }
+        scene.setShadowMode(RenderQueue.ShadowMode.CastAndReceive);
+        scene.setMaterial(new Material(assetManager, "Common/MatDefs/Misc/Unshaded.j3md"));
+        scene.updateGeometricState();
+        return scene;
+    }
+
+    /**
+     * Gives every frame buffer, image and vertex buffer it sees an id and
+     * registers it like GLRenderer does, and counts the ones not deleted yet.
+     * The objects are held strongly, so only an explicit dispose frees them,
+     * never the garbage collector.
+     */
+    private static final class TrackingRenderer extends NullRenderer {
+
+        private final EnumSet<Caps> caps = EnumSet.of(Caps.GLSL100, Caps.GLSL110, Caps.GLSL120,
+                Caps.GLSL130, Caps.GLSL140, Caps.GLSL150, Caps.PackedDepthStencilBuffer);
+        private final NativeObjectManager objectManager = new NativeObjectManager();
+        private final Map<Long, NativeObject> live = new HashMap<>();
+        private int nextId = 1;
+        private int deleted;
+
+        @Override
+        public EnumSet<Caps> getCaps() {
+            return caps;
+        }
+
+        int count(Class<? extends NativeObject> type) {
+            int count = 0;
+            for (NativeObject object : live.values()) {
+                if (type.isInstance(object)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        void deleteUnused() {
+            // at most 100 objects per call
+            int before;
+            do {
+                before = live.size();
+                objectManager.deleteUnused(this);
+            } while (live.size() < before);
+        }
+
+        private void track(NativeObject object) {
+            if (object != null && object.getId() == NativeObject.INVALID_ID) {
+                object.setId(nextId++);
+                objectManager.registerObject(object);
+                live.put(object.getUniqueId(), object);
+            }
+        }
+
+        private void untrack(NativeObject object) {
+            if (live.remove(object.getUniqueId()) != null) {
+                deleted++;
+            }
+            object.resetObject();
+        }
+
+        @Override
+        public void setFrameBuffer(FrameBuffer fb) {
+            if (fb == null) {
+                return;
+            }
+            track(fb);
+            for (int i = 0; i < fb.getNumColorTargets(); i++) {
+                Texture texture = fb.getColorTarget(i).getTexture();
+                track(texture != null ? texture.getImage() : null);
+            }
+            if (fb.getDepthTarget() != null && fb.getDepthTarget().getTexture() != null) {
+                track(fb.getDepthTarget().getTexture().getImage());
+            }
+        }
+
+        @Override
+        public void setTexture(int unit, Texture tex) {
+            track(tex.getImage());
+        }
+
+        @Override
+        public void renderMesh(Mesh mesh, int lod, int count, VertexBuffer[] instanceData) {
+            for (VertexBuffer vb : mesh.getBufferList().getArray()) {
+                track(vb);
+            }
+        }
+
+        @Override
+        public void deleteFrameBuffer(FrameBuffer fb) {
+            untrack(fb);
+        }
+
+        @Override
+        public void deleteImage(Image image) {
+            untrack(image);
+        }
+
+        @Override
+        public void deleteBuffer(VertexBuffer vb) {
+            untrack(vb);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package org.volumelighting.vl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.scene.mesh.IndexBuffer;
+
+/**
+ * Compares FrustumVolumeMesh with the list based generator it replaced, kept
+ * below as the reference. Positions have to match bit for bit and indices
+ * one by one. The reference has the later parallel projections and the
+ * banded far plane order, with a band of the resolution it writes the
+ * original rows.
+ *
+ * The index format is no longer always int: IndexBuffer picks byte, short or
+ * int storage from the vertex count, so only the values are compared.
+ */
+public class FrustumVolumeMeshTest {
+
+    private static final int[] RESOLUTIONS = {2, 3, 8, 15, 16, 17, 64, 128, 200};
+
+    @Test
+    public void perspectiveMatchesReference() {
+        Camera cam = new Camera(128, 128);
+        cam.setFrustumPerspective(45f, 1f, 0.5f, 30f);
+        checkResolutions(cam);
+
+        cam.setFrustumPerspective(12.5f, 1f, 1f, 1000f);
+        checkResolutions(cam);
+    }
+
+    @Test
+    public void parallelMatchesReference() {
+        Camera cam = new Camera(128, 128);
+        cam.setParallelProjection(true);
+        cam.setFrustum(0f, 300f, -50f, 50f, 50f, -50f);
+        checkResolutions(cam);
+
+        cam.setFrustum(0f, 12f, -3.3f, 3.3f, 3.3f, -3.3f);
+        checkResolutions(cam);
+    }
+
+    @Test
+    public void plainRowsMatchReference() {
+        for (int resolution : RESOLUTIONS) {
+            List<Integer> expected = new ArrayList<>();
+            addReferenceIndices(expected, resolution, resolution);
+            IndexBuffer indices = IndexBuffer.createIndexBuffer(FrustumVolumeMesh.vertexCount(resolution),
+                    FrustumVolumeMesh.indexCount(resolution));
+            FrustumVolumeMesh.writeIndices(indices, resolution, resolution);
+            assertIndices(expected, indices, resolution);
+        }
+    }
+
+    private void checkResolutions(Camera cam) {
+        for (int resolution : RESOLUTIONS) {
+            check(new FrustumVolumeMesh(resolution, cam), resolution, cam);
+        }
+    }
+
+    private void check(FrustumVolumeMesh mesh, int resolution, Camera cam) {
+        List<Vector3f> vertices = new ArrayList<>();
+        List<Integer> faces = new ArrayList<>();
+        generateReference(resolution, cam, FrustumVolumeMesh.FAR_PLANE_BAND, vertices, faces);
+
+        FloatBuffer positions = (FloatBuffer) mesh.getBuffer(VertexBuffer.Type.Position).getData();
+        assertEquals(vertices.size() * 3, positions.limit());
+        assertEquals(vertices.size(), FrustumVolumeMesh.vertexCount(resolution));
+        for (int i = 0; i < vertices.size(); i++) {
+            Vector3f v = vertices.get(i);
+            assertBits(v.x, positions.get(i * 3), resolution, i);
+            assertBits(v.y, positions.get(i * 3 + 1), resolution, i);
+            assertBits(v.z, positions.get(i * 3 + 2), resolution, i);
+        }
+        assertIndices(faces, mesh.getIndexBuffer(), resolution);
+    }
+
+    private static void assertBits(float expected, float actual, int resolution, int vertex) {
+        assertEquals("resolution " + resolution + " vertex " + vertex,
+                Float.floatToRawIntBits(expected), Float.floatToRawIntBits(actual));
+    }
+
+    private static void assertIndices(List<Integer> expected, IndexBuffer indices, int resolution) {
+        assertEquals(expected.size(), FrustumVolumeMesh.indexCount(resolution));
+        assertEquals(expected.size(), indices.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals("resolution " + resolution + " index " + i, expected.get(i).intValue(), indices.get(i));
+        }
+    }
+
+    /**
+     * The generator before the buffers were written in place, one object per
+     * vertex and index.
+     */
+    private static void generateReference(int resolution, Camera cam, int band,
+            List<Vector3f> finalVertices, List<Integer> finalFaces) {
+        boolean parallel = cam.isParallelProjection();
+        float frustumNear = cam.getFrustumNear();
+
+        float stepX = 2f * (parallel ? cam.getFrustumLeft() : cam.getFrustumLeft() / frustumNear) / resolution;
+        float stepY = 2f * (parallel ? cam.getFrustumTop() : cam.getFrustumTop() / frustumNear) / resolution;
+
+        float x, y;
+        float z = frustumNear;
+        float extent = parallel ? 1f : z;
+
+        stepX *= extent;
+        stepY *= extent;
+
+        float offsetX = -stepX * resolution / 2.0f;
+        float offsetY = -stepY * resolution / 2.0f;
+
+        finalVertices.add(new Vector3f(0, 0, z));
+
+        // top ring
+        for (int ii = 0; ii < resolution; ii++) {
+            y = (float) ii * stepY + offsetY;
+            finalVertices.add(new Vector3f(offsetX, y, z));
+        }
+
+        for (int ii = 1; ii < resolution - 1; ii++) {
+            x = (float) ii * stepX + offsetX;
+            finalVertices.add(new Vector3f(x, offsetY, z));
+            finalVertices.add(new Vector3f(x, -1f * offsetY - stepY, z));
+        }
+
+        x = -1f * offsetX - stepX;
+        for (int ii = 0; ii < resolution; ii++) {
+            y = (float) ii * stepY + offsetY;
+            finalVertices.add(new Vector3f(x, y, z));
+        }
+
+        stepX /= extent;
+        stepY /= extent;
+
+        // front grid
+        z = cam.getFrustumFar();
+        extent = parallel ? 1f : z;
+        stepX *= extent;
+        stepY *= extent;
+        offsetX = -stepX * resolution / 2.0f;
+        offsetY = -stepY * resolution / 2.0f;
+
+        for (int ii = 0; ii < resolution; ii++) {
+            for (int jj = 0; jj < resolution; jj++) {
+                x = ii * stepX + offsetX;
+                y = jj * stepY + offsetY;
+                finalVertices.add(new Vector3f(x, y, z));
+            }
+        }
+
+        addReferenceIndices(finalFaces, resolution, band);
+    }
+
+    private static void addReferenceIndices(List<Integer> finalFaces, int resolution, int band) {
+        // faces
+        for (int start = 1; start < resolution; start += band) {
+            int end = Math.min(start + band, resolution);
+            for (int ii = 1; ii < resolution; ii++) {
+                for (int jj = start; jj < end; jj++) {
+
+                    finalFaces.add(calcIndex(resolution, jj - 1, ii - 1));
+                    finalFaces.add(calcIndex(resolution, jj, ii - 1));
+                    finalFaces.add(calcIndex(resolution, jj - 1, ii));
+
+                    finalFaces.add(calcIndex(resolution, jj, ii));
+                    finalFaces.add(calcIndex(resolution, jj - 1, ii));
+                    finalFaces.add(calcIndex(resolution, jj, ii - 1));
+                }
+            }
+        }
+
+        // edges
+        int p1, p2, p3, p4;
+        for (int ii = 1; ii < resolution; ii++) {
+            p1 = calcTopIndex(resolution, ii - 1, 0);
+            p2 = calcTopIndex(resolution, ii, 0);
+            p3 = calcIndex(resolution, ii - 1, 0);
+            p4 = calcIndex(resolution, ii, 0);
+
+            finalFaces.add(p1);
+            finalFaces.add(p2);
+            finalFaces.add(p3);
+
+            finalFaces.add(p3);
+            finalFaces.add(p2);
+            finalFaces.add(p4);
+
+            finalFaces.add(p1);
+            finalFaces.add(0);
+            finalFaces.add(p2);
+
+            p1 = calcTopIndex(resolution, ii - 1, resolution - 1);
+            p2 = calcTopIndex(resolution, ii, resolution - 1);
+            p3 = calcIndex(resolution, ii - 1, resolution - 1);
+            p4 = calcIndex(resolution, ii, resolution - 1);
+
+            finalFaces.add(p1);
+            finalFaces.add(p3);
+            finalFaces.add(p2);
+
+            finalFaces.add(p3);
+            finalFaces.add(p4);
+            finalFaces.add(p2);
+
+            finalFaces.add(p1);
+            finalFaces.add(p2);
+            finalFaces.add(0);
+
+            p1 = calcTopIndex(resolution, 0, ii - 1);
+            p2 = calcTopIndex(resolution, 0, ii);
+            p3 = calcIndex(resolution, 0, ii - 1);
+            p4 = calcIndex(resolution, 0, ii);
+
+            finalFaces.add(p1);
+            finalFaces.add(p3);
+            finalFaces.add(p2);
+
+            finalFaces.add(p3);
+            finalFaces.add(p4);
+            finalFaces.add(p2);
+
+            finalFaces.add(p1);
+            finalFaces.add(p2);
+            finalFaces.add(0);
+
+            p1 = calcTopIndex(resolution, resolution - 1, ii - 1);
+            p2 = calcTopIndex(resolution, resolution - 1, ii);
+            p3 = calcIndex(resolution, resolution - 1, ii - 1);
+            p4 = calcIndex(resolution, resolution - 1, ii);
+
+            finalFaces.add(p1);
+            finalFaces.add(p2);
+            finalFaces.add(p3);
+
+            finalFaces.add(p3);
+            finalFaces.add(p2);
+            finalFaces.add(p4);
+
+            finalFaces.add(p1);
+            finalFaces.add(0);
+            finalFaces.add(p2);
+        }
+    }
+
+    // calculates the index for a far plane face vert
+    private static int calcIndex(int resolution, int row, int col) {
+        int topVerts = (resolution - 1) * 4;
+        return col * resolution + row + 1 + topVerts;
+    }
+
+    // calculates the index for near plane ring vert
+    private static int calcTopIndex(int resolution, int row, int col) {
+        int index = 1;
+        if (col == 0) {
+            return row + 1;
+        }
+        index += resolution;
+        index += (col - 1) * 2;
+        if (col == resolution - 1) {
+            index += row;
+        } else if (row == resolution - 1) {
+            index += 1;
+        }
+        return index;
+    }
+}
@@ -0,0 +1,159 @@
+package org.volumelighting.vl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumSet;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.asset.DesktopAssetManager;
+import com.jme3.light.SpotLight;
+import com.jme3.material.Material;
+import com.jme3.math.ColorRGBA;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.Caps;
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.ViewPort;
+import com.jme3.renderer.queue.RenderQueue;
+import com.jme3.scene.Geometry;
+import com.jme3.scene.Mesh;
+import com.jme3.scene.Node;
+import com.jme3.scene.shape.Box;
+import com.jme3.system.NullRenderer;
+
+/**
+ * Runs the shadow side of whole frames, sync, culling, caster gathering and
+ * the shadow pass, against a renderer that does nothing, like
+ * ShadowPassBenchmark does under JMH. After a warm-up the frames of a static
+ * scene must not allocate beyond what jME's RenderManager.setCamera does, and
+ * must find the same occluders every time.
+ */
+public class ShadowPassAllocationTest {
+
+    private static final int LIGHTS = 4;
+    private static final int WARMUP_FRAMES = 1000;
+    private static final int FRAMES = 500;
+    // RenderManager.setCamera allocates about 80 bytes per shadow pass
+    private static final long BYTES_PER_LIGHT_FRAME = 128;
+
+    @Test
+    public void framesDoNotAllocate() {
+        checkFrames(false);
+    }
+
+    @Test
+    public void cachedFramesDoNotAllocate() {
+        checkFrames(true);
+    }
+
+    private void checkFrames(boolean shadowMapCaching) {
+        com.sun.management.ThreadMXBean threads = getThreadBean();
+        long thread = Thread.currentThread().getId();
+
+        Camera viewCam = new Camera(1280, 720);
+        viewCam.setFrustumPerspective(45f, 1280f / 720f, 1f, 1000f);
+        viewCam.setLocation(new Vector3f(0f, 20f, 60f));
+        viewCam.lookAt(Vector3f.ZERO, Vector3f.UNIT_Y);
+        ViewPort viewPort = new ViewPort("Test", viewCam);
+        VolumeLight[] volumes = createVolumes(viewPort, shadowMapCaching);
+
+        try {
+            int expectedOccluders = frame(volumes, viewPort);
+            assertTrue("no occluders in view", expectedOccluders > 0);
+            for (int i = 0; i < WARMUP_FRAMES; i++) {
+                assertEquals(expectedOccluders, frame(volumes, viewPort));
+            }
+
+            long start = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < FRAMES; i++) {
+                int occluders = frame(volumes, viewPort);
+                if (occluders != expectedOccluders) {
+                    throw new AssertionError("Occluder count changed from " + expectedOccluders + " to " + occluders);
+                }
+            }
+            long allocated = threads.getThreadAllocatedBytes(thread) - start;
+
+            long budget = BYTES_PER_LIGHT_FRAME * LIGHTS * FRAMES;
+            assertTrue(allocated / FRAMES + " bytes per frame", allocated <= budget);
+        } finally {
+            // leaves the mesh cache empty for the other tests
+            for (VolumeLight volume : volumes) {
+                volume.cleanup();
+            }
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadBean() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(hotspot.isThreadAllocatedMemorySupported());
+        hotspot.setThreadAllocatedMemoryEnabled(true);
+        return hotspot;
+    }
+
+    private static int frame(VolumeLight[] volumes, ViewPort viewPort) {
+        int occluders = 0;
+        for (VolumeLight volume : volumes) {
+            volume.preFrame(viewPort.getCamera());
+            if (!volume.isCulled()) {
+                volume.postQueue(viewPort.getQueue());
+                occluders += volume.getOccluderCount();
+            }
+        }
+        return occluders;
+    }
+
+    private static VolumeLight[] createVolumes(ViewPort viewPort, boolean shadowMapCaching) {
+        AssetManager assetManager = new DesktopAssetManager(true);
+        RenderManager renderManager = new RenderManager(new NullRenderer() {
+            private final EnumSet<Caps> caps = EnumSet.of(Caps.GLSL100, Caps.GLSL110, Caps.GLSL120,
+                    Caps.GLSL130, Caps.GLSL140, Caps.GLSL150);
+
+            @Override
+            public EnumSet<Caps> getCaps() {
+                return caps;
+            }
+        });
+
+        // a grid of boxes in groups of 16
+        Node scene = new Node("Scene");
+        Mesh box = new Box(0.5f, 0.5f, 0.5f);
+        for (int group = 0; group < 16; group++) {
+            Node node = new Node("Group" + group);
+            node.setLocalTranslation((group % 4) * 10f - 15f, 0f, (group / 4) * 10f - 15f);
+            for (int i = 0; i < 16; i++) {
+                Geometry geometry = new Geometry("Box" + i, box);
+                geometry.setLocalTranslation((i % 4) * 2f - 3f, 0f, (i / 4) * 2f - 3f);
+                node.attachChild(geometry);
+            }
+            scene.attachChild(node);
+        }
+        scene.setShadowMode(RenderQueue.ShadowMode.CastAndReceive);
+        scene.setMaterial(new Material(assetManager, "Common/MatDefs/Misc/Unshaded.j3md"));
+        scene.updateGeometricState();
+        viewPort.attachScene(scene);
+
+        VolumeLight[] volumes = new VolumeLight[LIGHTS];
+        for (int i = 0; i < LIGHTS; i++) {
+            SpotLight spot = new SpotLight();
+            spot.setSpotRange(60f);
+            spot.setSpotInnerAngle(5f * FastMath.DEG_TO_RAD);
+            spot.setSpotOuterAngle(25f * FastMath.DEG_TO_RAD);
+            spot.setColor(ColorRGBA.White);
+            spot.setPosition(new Vector3f(i * 10f - 15f, 30f, 0f));
+            spot.setDirection(spot.getPosition().negate().normalizeLocal());
+
+            volumes[i] = new VolumeLight(spot, 0, 64, 1f);
+            volumes[i].setShadowMapCaching(shadowMapCaching);
+            volumes[i].initialize(assetManager, renderManager, viewPort);
+        }
+        return volumes;
+    }
+}
@@ -0,0 +1,79 @@
+package org.volumelighting.vl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.EnumSet;
+
+import org.junit.Test;
+
+import com.jme3.asset.AssetManager;
+import com.jme3.asset.DesktopAssetManager;
+import com.jme3.light.SpotLight;
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+import com.jme3.renderer.Camera;
+import com.jme3.renderer.Caps;
+import com.jme3.renderer.RenderManager;
+import com.jme3.renderer.ViewPort;
+import com.jme3.scene.Node;
+import com.jme3.system.NullRenderer;
+
+/**
+ * The levels of a light are fixed when its quality is set, later changes to
+ * the quality settings must not give it more meshes than shadow maps.
+ */
+public class VolumeLightQualityTest {
+
+    private static final int RESOLUTION = 64;
+
+    @Test
+    public void lowerMinResolutionKeepsLevels() {
+        VolumeLightQuality quality = new VolumeLightQuality();
+        quality.setMinResolution(32);
+
+        // far away, so the light wants its lowest level
+        Camera viewCam = new Camera(640, 480);
+        viewCam.setFrustumPerspective(45f, 640f / 480f, 1f, 5000f);
+        viewCam.setLocation(new Vector3f(0f, 0f, 3000f));
+        viewCam.lookAt(Vector3f.ZERO, Vector3f.UNIT_Y);
+        ViewPort viewPort = new ViewPort("Test", viewCam);
+        viewPort.attachScene(new Node("Scene"));
+
+        SpotLight spot = new SpotLight(new Vector3f(0f, 30f, 0f), new Vector3f(0f, -1f, 0f), 60f);
+        spot.setSpotOuterAngle(25f * FastMath.DEG_TO_RAD);
+        VolumeLight volume = new VolumeLight(spot, 0, RESOLUTION, 1f);
+        volume.setQuality(quality);
+        volume.initialize(createAssetManager(), createRenderManager(), viewPort);
+
+        try {
+            quality.setMinResolution(4);
+            volume.setProceduralGrid(true);
+            volume.setLight(spot, 0, 1f);
+            for (int i = 0; i < quality.getSwitchDelay() * 2; i++) {
+                volume.preFrame(viewCam);
+                assertFalse("light out of view", volume.isCulled());
+                volume.postQueue(viewPort.getQueue());
+            }
+            assertEquals(1, volume.getLevel());
+        } finally {
+            volume.cleanup();
+        }
+    }
+
+    private static AssetManager createAssetManager() {
+        return new DesktopAssetManager(true);
+    }
+
+    private static RenderManager createRenderManager() {
+        return new RenderManager(new NullRenderer() {
+            private final EnumSet<Caps> caps = EnumSet.of(Caps.GLSL100, Caps.GLSL110, Caps.GLSL120,
+                    Caps.GLSL130, Caps.GLSL140, Caps.GLSL150);
+
+            @Override
+            public EnumSet<Caps> getCaps() {
+                return caps;
+            }
+        });
+    }
+}
@@ -0,0 +1,168 @@
+package org.volumelighting.vl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.jme3.math.Vector2f;
+import com.jme3.math.Vector3f;
+import com.jme3.math.Vector4f;
+import com.jme3.renderer.Camera;
+
+/**
+ * Renders a small fixed scene, a spot light over a floor with a plate
+ * casting a shadow, and compares it with the checked-in image
+ * volume-reference.pfm. The image is a little endian PFM holding the R32F
+ * intensities, row by row from the bottom like the renderer writes them.
+ *
+ * Run with -Dvl.writeReference=&lt;directory&gt; to write a new reference
+ * after an intended change of the shader math.
+ */
+public class VolumeReferenceRendererTest {
+
+    private static final String REFERENCE = "volume-reference.pfm";
+    private static final int WIDTH = 80;
+    private static final int HEIGHT = 60;
+    private static final int SHADOW_SIZE = 64;
+    private static final int RESOLUTION = 32;
+    // absolute and relative per pixel tolerance
+    private static final float ABSOLUTE_TOLERANCE = 1e-4f;
+    private static final float RELATIVE_TOLERANCE = 1e-3f;
+
+    @Test
+    public void matchesReference() throws IOException {
+        VolumeReferenceRenderer renderer = new VolumeReferenceRenderer(WIDTH, HEIGHT);
+        check(render(renderer));
+    }
+
+    @Test
+    public void depthRejectionMatchesReference() throws IOException {
+        VolumeReferenceRenderer renderer = new VolumeReferenceRenderer(WIDTH, HEIGHT);
+        renderer.setDepthRejection(true);
+        renderer.setTileSize(16);
+        check(render(renderer));
+    }
+
+    private static void check(float[] image) throws IOException {
+        String directory = System.getProperty("vl.writeReference");
+        if (directory != null) {
+            writePfm(new File(directory, REFERENCE), image, WIDTH, HEIGHT);
+        }
+
+        float[] reference = readPfm(REFERENCE, WIDTH, HEIGHT);
+        int lit = 0;
+        for (int i = 0; i < image.length; i++) {
+            float tolerance = ABSOLUTE_TOLERANCE + RELATIVE_TOLERANCE * Math.abs(reference[i]);
+            if (Math.abs(image[i] - reference[i]) > tolerance) {
+                throw new AssertionError("pixel " + (i % WIDTH) + "," + (i / WIDTH) + " is " + image[i]
+                        + ", expected " + reference[i]);
+            }
+            if (reference[i] > ABSOLUTE_TOLERANCE) {
+                lit++;
+            }
+        }
+        // the volume covers part of the image, not none or all of it
+        assertTrue("lit pixels " + lit, lit > image.length / 20 && lit < image.length);
+    }
+
+    private static float[] render(VolumeReferenceRenderer renderer) {
+        Camera lightCam = new Camera(SHADOW_SIZE, SHADOW_SIZE);
+        lightCam.setFrustumPerspective(40f, 1f, 0.5f, 20f);
+        lightCam.setLocation(new Vector3f(0f, 10f, 0f));
+        lightCam.lookAt(Vector3f.ZERO, Vector3f.UNIT_Z);
+        lightCam.update();
+
+        Camera viewCam = new Camera(WIDTH, HEIGHT);
+        viewCam.setFrustumPerspective(50f, (float) WIDTH / HEIGHT, 0.5f, 100f);
+        viewCam.setLocation(new Vector3f(15f, 5f, 15f));
+        viewCam.lookAt(new Vector3f(0f, 2f, 0f), Vector3f.UNIT_Y);
+        viewCam.update();
+
+        float[] shadowDepth = renderDepth(lightCam, SHADOW_SIZE, SHADOW_SIZE);
+        float[] sceneDepth = renderDepth(viewCam, WIDTH, HEIGHT);
+        FrustumVolumeMesh mesh = new FrustumVolumeMesh(RESOLUTION, lightCam);
+        return renderer.render(mesh, lightCam, shadowDepth, SHADOW_SIZE, viewCam, sceneDepth, 1f);
+    }
+
+    // the floor at y 0 and a plate at y 5 from -1 to 1 in x and z
+    private static float[] renderDepth(Camera cam, int width, int height) {
+        float[] depth = new float[width * height];
+        Vector3f direction = new Vector3f();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                Vector3f origin = cam.getLocation();
+                cam.getWorldCoordinates(new Vector2f(x + 0.5f, y + 0.5f), 1f).subtract(origin, direction);
+                direction.normalizeLocal();
+
+                float hit = Float.POSITIVE_INFINITY;
+                if (direction.y < 0f) {
+                    hit = -origin.y / direction.y;
+                    float t = (5f - origin.y) / direction.y;
+                    if (t > 0f && Math.abs(origin.x + direction.x * t) < 1f
+                            && Math.abs(origin.z + direction.z * t) < 1f) {
+                        hit = t;
+                    }
+                }
+                depth[y * width + x] = hit == Float.POSITIVE_INFINITY ? 1f
+                        : Math.min(windowDepth(cam, origin.add(direction.mult(hit))), 1f);
+            }
+        }
+        return depth;
+    }
+
+    private static float windowDepth(Camera cam, Vector3f point) {
+        Vector4f clip = cam.getViewProjectionMatrix().mult(new Vector4f(point.x, point.y, point.z, 1f), null);
+        return clip.z / clip.w * 0.5f + 0.5f;
+    }
+
+    private static float[] readPfm(String name, int width, int height) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = VolumeReferenceRendererTest.class.getResourceAsStream(name)) {
+            if (in == null) {
+                throw new IOException("Missing reference image " + name);
+            }
+            byte[] chunk = new byte[8192];
+            for (int n; (n = in.read(chunk)) > 0; ) {
+                bytes.write(chunk, 0, n);
+            }
+        }
+
+        ByteBuffer data = ByteBuffer.wrap(bytes.toByteArray());
+        String[] header = new String[4];
+        for (int i = 0; i < header.length; i++) {
+            StringBuilder token = new StringBuilder();
+            for (char c = (char) data.get(); !Character.isWhitespace(c); c = (char) data.get()) {
+                token.append(c);
+            }
+            header[i] = token.toString();
+        }
+        assertEquals("Pf", header[0]);
+        assertEquals(width, Integer.parseInt(header[1]));
+        assertEquals(height, Integer.parseInt(header[2]));
+        data.order(Float.parseFloat(header[3]) < 0f ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+
+        float[] image = new float[width * height];
+        data.asFloatBuffer().get(image);
+        return image;
+    }
+
+    private static void writePfm(File file, float[] image, int width, int height) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(image.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        data.asFloatBuffer().put(image);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(("Pf\n" + width + " " + height + "\n-1.0\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(data.array());
+        }
+    }
+}